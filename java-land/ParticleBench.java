@@ -0,0 +1,1198 @@
+//JAVA 25+
+//PREVIEW
+//DEPS org.openjdk.jmh:jmh-core:1.37
+//DEPS org.openjdk.jmh:jmh-generator-annprocess:1.37
+//SOURCES ParticleSim.java
+//COMPILE_OPTIONS --add-modules jdk.incubator.vector -proc:full
+//RUNTIME_OPTIONS --add-modules jdk.incubator.vector --enable-native-access=ALL-UNNAMED
+
+package particlesim;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.foreign.MemorySegment;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// the engine's classes are nested in ParticleSim, so using them from here
+// isn't an access to auxiliary classes of another file
+import particlesim.ParticleSim.*;
+
+import static java.lang.foreign.ValueLayout.JAVA_FLOAT;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+
+/**
+ * JMH benchmarks for the tick kernel (which also counts tiles), the tile
+ * binning passes, the tile rasterizer, the worker group hand off, the tick
+ * tail latency with static or claimed chunks, the neighbor forces at several
+ * densities, the tick kernel with 1 to 64 point forces, the three phases
+ * of mesh gravity, the Z order sort with what it does to the tick and each
+ * of the tick kernels the startup tuner picks from. Run
+ * everything with {@code jbang ParticleBench.java} or pass the usual JMH
+ * arguments, e.g. {@code jbang ParticleBench.java Integrate -p species=256}.
+ * The {@code compact} parameter switches to 16 bit particle state, and
+ * {@code jbang ParticleBench.java precision} reports how far compact particles
+ * drift from float ones instead of running JMH, and
+ * {@code jbang ParticleBench.java gravity} checks mesh gravity against direct
+ * summation, {@code jbang ParticleBench.java kernels} checks every tick
+ * kernel against the scalar one, {@code jbang ParticleBench.java replay}
+ * checks an input log replays to the particles it recorded and
+ * {@code jbang ParticleBench.java serve} load tests the frame server with
+ * many local clients.
+ *
+ * The vector species is a static final of {@link ParticleEngine} so the JIT can
+ * treat it as a constant. JMH forks a fresh JVM for every parameter
+ * combination, so each state sets {@link ParticleEngine#VECTOR_BITS_PROPERTY}
+ * before the engine class is first touched.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector", "--enable-preview",
+        "--enable-native-access=ALL-UNNAMED" })
+public class ParticleBench {
+
+    static final float DELTA_TIME = 1.0f / 30.0f;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("precision")) {
+            reportPrecision(args.length > 1 ? Long.parseLong(args[1].replace("_", "")) : 1_000_000,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 300);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("gravity")) {
+            checkGravity(args.length > 1 ? Integer.parseInt(args[1].replace("_", "")) : 2000,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 64);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("kernels")) {
+            checkKernels(args.length > 1 ? Long.parseLong(args[1].replace("_", "")) : 100_003,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 60);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("replay")) {
+            checkReplay(args.length > 1 ? Long.parseLong(args[1].replace("_", "")) : 100_003,
+                    args.length > 2 ? Integer.parseInt(args[2]) : 60);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("serve")) {
+            loadServe(args.length > 1 ? Integer.parseInt(args[1]) : 16, args.length > 2 ? Integer.parseInt(args[2]) : 4,
+                    args.length > 3 ? Long.parseLong(args[3].replace("_", "")) : 1_000_000,
+                    args.length > 4 ? Integer.parseInt(args[4]) : 5);
+            return;
+        }
+        org.openjdk.jmh.Main.main(args);
+    }
+
+    /**
+     * Ticks a float and a compact engine from the same placement with the
+     * attractor held at the center and prints how far apart the particles get,
+     * along with the tick time of each.
+     */
+    static void reportPrecision(long particles, int frames) {
+        try (ParticleEngine exact = new ParticleEngine(particles, 1, false, false);
+                ParticleEngine compact = new ParticleEngine(particles, 1, false, true)) {
+            exact.resize(1200, 800);
+            compact.resize(1200, 800);
+            exact.placeParticlesSquare();
+            compact.placeParticlesSquare();
+            System.out.printf("Precision: %,d particles, %d frames at %.0f fps, %d vs %d bytes per particle%n",
+                    particles, frames, 1 / DELTA_TIME, exact.store.byteSize() / Math.max(1, particles),
+                    compact.store.byteSize() / Math.max(1, particles));
+            long exactNanos = 0;
+            long compactNanos = 0;
+            for (int frame = 1; frame <= frames; frame++) {
+                long start = System.nanoTime();
+                exact.tick(DELTA_TIME, 600f, 400f, true, 0f);
+                long mid = System.nanoTime();
+                compact.tick(DELTA_TIME, 600f, 400f, true, 0f);
+                compactNanos += System.nanoTime() - mid;
+                exactNanos += mid - start;
+                if (frame % 30 == 0 || frame == frames) {
+                    double sum = 0;
+                    double max = 0;
+                    for (long i = 0; i < particles; i++) {
+                        double error = Math.hypot(exact.store.positionX(i) - compact.store.positionX(i),
+                                exact.store.positionY(i) - compact.store.positionY(i));
+                        sum += error;
+                        max = Math.max(max, error);
+                    }
+                    System.out.printf("frame %4d: mean error %.3f px, max error %.3f px%n", frame,
+                            sum / Math.max(1, particles), max);
+                }
+            }
+            System.out.printf("(Tick float): %.3f ms%n", exactNanos / 1e6 / frames);
+            System.out.printf("(Tick compact): %.3f ms%n", compactNanos / 1e6 / frames);
+        }
+    }
+
+    /**
+     * Checks mesh gravity against direct summation on a small input. First
+     * the grid forces against a direct convolution of the deposited mass,
+     * which only differ by rounding if deposit and FFT are right, then the
+     * force at each particle against summing over every other particle with
+     * the same softening, which shows the error of the mesh itself. Exits
+     * with 1 when either is off by more than rounding or the mesh allows.
+     */
+    static void checkGravity(int particles, int mesh) {
+        final int size = 400;
+        try (ParticleEngine engine = new ParticleEngine(particles, 2)) {
+            engine.resize(size, size);
+            // a few dense clumps, uniform particles pull about equally from all sides
+            java.util.Random random = new java.util.Random(42);
+            for (int i = 0; i < particles; i++) {
+                int clump = i % 3;
+                engine.store.place(i, 100 + 100 * clump + 20 * (float) random.nextGaussian(),
+                        120 + 80 * clump + 20 * (float) random.nextGaussian(), 0xffffffff, 0);
+            }
+            engine.setGravity(engine.PULL_FORCE, mesh);
+            final MeshGravity gravity = engine.getGravity();
+            gravity.solve(engine, particles, 1f);
+            final float cell = (float) size / mesh;
+            final double constant = gravity.strength * MeshGravity.REFERENCE_DIST * MeshGravity.REFERENCE_DIST
+                    / particles;
+            System.out.printf("Gravity check: %,d particles, %dx%d mesh of %.2f px cells%n", particles, mesh, mesh,
+                    cell);
+
+            final double[] density = new double[mesh * mesh];
+            for (int i = 0; i < particles; i++) {
+                double u = engine.store.positionX(i) / cell - 0.5;
+                double v = engine.store.positionY(i) / cell - 0.5;
+                if (u >= 0 && u < mesh - 1 && v >= 0 && v < mesh - 1) {
+                    int cu = (int) u;
+                    int cv = (int) v;
+                    double fu = u - cu;
+                    double fv = v - cv;
+                    density[cv * mesh + cu] += (1 - fu) * (1 - fv);
+                    density[cv * mesh + cu + 1] += fu * (1 - fv);
+                    density[(cv + 1) * mesh + cu] += (1 - fu) * fv;
+                    density[(cv + 1) * mesh + cu + 1] += fu * fv;
+                }
+            }
+            double gridError = 0;
+            double gridNorm = 0;
+            for (int row = 0; row < mesh; row++) {
+                for (int col = 0; col < mesh; col++) {
+                    double fx = 0;
+                    double fy = 0;
+                    for (int cell2 = 0; cell2 < mesh * mesh; cell2++) {
+                        if (density[cell2] == 0) {
+                            continue;
+                        }
+                        double x = (cell2 % mesh - col) * cell;
+                        double y = (cell2 / mesh - row) * cell;
+                        double distSq = x * x + y * y + cell * cell;
+                        double pull = density[cell2] * constant / (distSq * Math.sqrt(distSq));
+                        fx += x * pull;
+                        fy += y * pull;
+                    }
+                    double ex = gravity.forceX[row * mesh + col] - fx;
+                    double ey = gravity.forceY[row * mesh + col] - fy;
+                    gridError += ex * ex + ey * ey;
+                    gridNorm += fx * fx + fy * fy;
+                }
+            }
+            final double gridRms = Math.sqrt(gridError / gridNorm);
+            System.out.printf("grid vs direct convolution: %.2e relative rms error%n", gridRms);
+
+            final float[] accel = new float[2];
+            double error = 0;
+            double norm = 0;
+            double within = 0;
+            for (int i = 0; i < particles; i++) {
+                float px = engine.store.positionX(i);
+                float py = engine.store.positionY(i);
+                accel[0] = 0;
+                accel[1] = 0;
+                gravity.addAccelerationAt(px, py, accel);
+                double fx = 0;
+                double fy = 0;
+                for (int j = 0; j < particles; j++) {
+                    double x = engine.store.positionX(j) - px;
+                    double y = engine.store.positionY(j) - py;
+                    double distSq = x * x + y * y + cell * cell;
+                    double pull = constant / (distSq * Math.sqrt(distSq));
+                    fx += x * pull;
+                    fy += y * pull;
+                }
+                double ex = accel[0] - fx;
+                double ey = accel[1] - fy;
+                double magnitude = Math.hypot(fx, fy);
+                error += ex * ex + ey * ey;
+                norm += fx * fx + fy * fy;
+                if (Math.hypot(ex, ey) < 0.1 * magnitude) {
+                    within++;
+                }
+            }
+            final double particleRms = Math.sqrt(error / norm);
+            System.out.printf("particles vs direct summation: %.2e relative rms error, %.1f%% within 10%%%n",
+                    particleRms, 100 * within / particles);
+            // the grid should only differ by float rounding, the particles by the mesh resolution
+            if (gridRms > 1e-4 || particleRms > 0.25) {
+                System.out.println("FAILED");
+                System.exit(1);
+            }
+            System.out.println("ok");
+        }
+    }
+
+    /**
+     * Checks every {@link TickKernel} against the scalar one, for float and
+     * compact storage. Each tick the scalar engine's particles are copied
+     * into the others, all of them tick once with the attractor and a ring
+     * of point forces, and the particles are compared, so errors don't
+     * compound over the run. The count should not be a multiple of the lanes
+     * so the chunk tails are covered. Exits with 1 when an exact kernel is
+     * off by more than rounding or the fast one by more than its
+     * approximate square root allows.
+     */
+    static void checkKernels(long particles, int ticks) {
+        System.out.printf("Kernels: %,d particles, %d ticks, %d lanes of %d bits%n", particles, ticks,
+                ParticleEngine.LANE_SIZE, ParticleEngine.F_SPECIES.vectorBitSize());
+        final TickKernel[] kernels = TickKernel.values();
+        for (boolean compact : new boolean[] { false, true }) {
+            final ParticleEngine[] engines = new ParticleEngine[kernels.length];
+            try {
+                for (TickKernel kernel : kernels) {
+                    final ParticleEngine engine = new ParticleEngine(particles, 2, false, compact);
+                    engines[kernel.ordinal()] = engine;
+                    engine.resize(1200, 800);
+                    engine.setRestSpeed(0);
+                    engine.setKernel(kernel);
+                    engine.forces.addRing(4, 600f, 400f, 800 / 3f, engine.PULL_FORCE);
+                    engine.placeParticlesSquare();
+                }
+                final ParticleEngine reference = engines[0];
+                final double[] positionErrors = new double[kernels.length];
+                final double[] velocityErrors = new double[kernels.length];
+                for (int tick = 0; tick < ticks; tick++) {
+                    for (int k = 1; k < kernels.length; k++) {
+                        copyParticles(reference, engines[k]);
+                    }
+                    for (ParticleEngine engine : engines) {
+                        engine.tick(DELTA_TIME, 600f, 400f, true, 0f);
+                    }
+                    for (int k = 1; k < kernels.length; k++) {
+                        final ParticleEngine engine = engines[k];
+                        for (long i = 0; i < particles; i++) {
+                            positionErrors[k] = Math.max(positionErrors[k],
+                                    Math.hypot(engine.store.positionX(i) - reference.store.positionX(i),
+                                            engine.store.positionY(i) - reference.store.positionY(i)));
+                            velocityErrors[k] = Math.max(velocityErrors[k],
+                                    Math.hypot(velocityX(engine, i) - velocityX(reference, i),
+                                            velocityY(engine, i) - velocityY(reference, i)));
+                        }
+                    }
+                }
+
+                boolean failed = false;
+                for (int k = 1; k < kernels.length; k++) {
+                    final boolean ok;
+                    if (compact) {
+                        // a particle may round the other way, one step of the fixed point grid
+                        ok = positionErrors[k] <= 2 / reference.store.scaleX
+                                && velocityErrors[k] <= 2 / ParticleStore.VELOCITY_UNITS;
+                    } else if (kernels[k].fastMath) {
+                        // a few ppm of forces in the thousands of px/s
+                        ok = positionErrors[k] <= 0.01 && velocityErrors[k] <= 0.1;
+                    } else {
+                        ok = positionErrors[k] <= 1e-4 && velocityErrors[k] <= 1e-3;
+                    }
+                    failed |= !ok;
+                    System.out.printf("%s %s vs scalar: max %.2e px, %.2e px/s, %s%n",
+                            compact ? "compact" : "float", kernels[k].name().toLowerCase(), positionErrors[k],
+                            velocityErrors[k], ok ? "ok" : "FAILED");
+                }
+                if (failed) {
+                    System.exit(1);
+                }
+            } finally {
+                for (ParticleEngine engine : engines) {
+                    if (engine != null) {
+                        engine.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Records an input log of the attractor held at (0, 0), where the log's
+     * mouse starts, then moved to the center and let go, and replays it into
+     * a fresh engine whose input starts at the center like a headless run.
+     * Exits with 1 when the replay doesn't end with the recorded particles.
+     */
+    static void checkReplay(long particles, int ticks) throws IOException {
+        final Path path = Files.createTempFile("particlesim", ".input");
+        try {
+            final SimOptions options = SimOptions.parse(new String[] { "--particles", Long.toString(particles) });
+            final long recorded;
+            try (ParticleEngine engine = new ParticleEngine(particles, 2)) {
+                engine.resize(1200, 800);
+                engine.placeParticlesSquare();
+                final TickInput input = new TickInput();
+                input.activeParticles = particles;
+                final InputLog log = new InputLog(path, engine, options, DELTA_TIME);
+                try {
+                    for (int tick = 0; tick < ticks; tick++) {
+                        final boolean corner = tick < ticks / 2;
+                        input.mouseX = corner ? 0 : 600f;
+                        input.mouseY = corner ? 0 : 400f;
+                        input.mousePressed = corner;
+                        log.record(input);
+                        input.tick(engine, DELTA_TIME);
+                    }
+                } finally {
+                    log.close();
+                }
+                recorded = log.checksum();
+            }
+
+            final InputLog.Replay replay = InputLog.Replay.open(path);
+            try (ParticleEngine engine = new ParticleEngine(particles, 2)) {
+                engine.resize(1200, 800);
+                engine.placeParticlesSquare();
+                final TickInput input = new TickInput();
+                input.mouseX = 600f;
+                input.mouseY = 400f;
+                while (replay.next(input)) {
+                    input.beforeFrame(engine);
+                    input.tick(engine, replay.tickSeconds);
+                }
+                final long replayed = engine.store.checksum();
+                final boolean ok = replayed == recorded && replayed == replay.checksum;
+                System.out.printf("Replay: %,d particles, %d ticks from the corner, checksum %016x vs %016x, %s%n",
+                        particles, replay.ticks, replayed, recorded, ok ? "ok" : "FAILED");
+                if (!ok) {
+                    System.exit(1);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * Load test of --serve. Runs frames back to back, first with no one
+     * watching and then while clients stream them from a FrameServer on a
+     * free local port, and prints both frame rates and what the clients
+     * received. The slow clients take 100 ms per message, like a browser on
+     * a poor link, and should skip frames without slowing the others or
+     * the frame loop down. The first client decodes every message and its
+     * picture is checked against the last framebuffer, exits with 1 when
+     * they differ.
+     */
+    static void loadServe(int clients, int slowClients, long particles, int seconds) throws Exception {
+        final SimOptions options = SimOptions.parse(new String[] { "--particles", Long.toString(particles),
+                "--kernel", "vector" });
+        final int w = options.width;
+        final int h = options.height;
+        // closed early so the streams end before their threads are joined
+        final FrameServer server = FrameServer.start(0);
+        try (ParticleEngine engine = ParticleEngine.create(options);
+                FramePipeline pipeline = new FramePipeline(engine, false)) {
+            engine.resize(w, h);
+            engine.placeParticlesSquare();
+            final int[] framebuffer = new int[w * h];
+            System.out.printf("Serve: %,d particles, %dx%d, %d threads, %d clients of which %d slow, %d s each%n",
+                    particles, w, h, engine.threadCount, clients, slowClients, seconds);
+            // warms up the tick for both runs
+            runFrames(engine, pipeline, framebuffer, () -> {
+            }, 1);
+            final double alone = runFrames(engine, pipeline, framebuffer, () -> {
+            }, seconds);
+
+            final HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            final URI uri = URI.create("http://localhost:" + server.port() + "/frames");
+            final StreamClient[] streams = new StreamClient[clients];
+            final Thread[] threads = new Thread[clients];
+            for (int i = 0; i < clients; i++) {
+                final StreamClient stream = new StreamClient(i >= clients - slowClients, i == 0);
+                streams[i] = stream;
+                threads[i] = Thread.ofVirtual().start(() -> stream.run(http, uri));
+            }
+            final long connectDeadline = System.nanoTime() + 10_000_000_000L;
+            while (server.clientCount() < clients && System.nanoTime() < connectDeadline) {
+                Thread.sleep(10);
+            }
+            final long[] publishNanos = { 0 };
+            final long servedStart = System.nanoTime();
+            final double served = runFrames(engine, pipeline, framebuffer, () -> {
+                final long start = System.nanoTime();
+                server.publish(framebuffer, w, h);
+                publishNanos[0] += System.nanoTime() - start;
+            }, seconds);
+            final double servedSeconds = (System.nanoTime() - servedStart) / 1e9;
+            final String sent = server.describe(servedSeconds);
+
+            // the checking client is fast, give it a moment to get the last frame
+            final long last = server.frameCount();
+            final long catchUpDeadline = System.nanoTime() + 5_000_000_000L;
+            while (streams[0].number < last && System.nanoTime() < catchUpDeadline) {
+                Thread.sleep(10);
+            }
+            final boolean matches = streams[0].number == last && streams[0].matches(framebuffer);
+            server.close();
+            for (Thread thread : threads) {
+                thread.join(1000);
+            }
+
+            System.out.printf("(Alone): %.2f frames/s%n", alone);
+            System.out.printf("(Served): %.2f frames/s, %.1f%% fewer, %.3f ms per frame copying it out%n", served,
+                    100 * (1 - served / alone), publishNanos[0] / 1e6 / Math.max(1, last));
+            for (boolean slow : new boolean[] { false, true }) {
+                double minRate = Double.MAX_VALUE;
+                double maxRate = 0;
+                double totalRate = 0;
+                long messages = 0;
+                long keys = 0;
+                int count = 0;
+                for (StreamClient stream : streams) {
+                    if (stream.slow == slow) {
+                        final double rate = stream.bytes / servedSeconds / (1 << 20);
+                        minRate = Math.min(minRate, rate);
+                        maxRate = Math.max(maxRate, rate);
+                        totalRate += rate;
+                        messages += stream.messages;
+                        keys += stream.keys;
+                        count++;
+                    }
+                }
+                if (count > 0) {
+                    System.out.printf("(%s clients): %d, %.2f MB/s each (%.2f to %.2f), %.1f of %.1f frames/s, "
+                            + "%.0f%% key frames%n", slow ? "Slow" : "Fast", count, totalRate / count, minRate,
+                            maxRate, messages / servedSeconds / count, last / servedSeconds,
+                            100.0 * keys / Math.max(1, messages));
+                }
+            }
+            System.out.printf("(Server): %s%n", sent);
+            System.out.printf("(Decoded): frame %d of %d, %s%n", streams[0].number, last,
+                    matches ? "matches the framebuffer" : "DIFFERS from the framebuffer");
+            if (!matches) {
+                System.exit(1);
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    private static double runFrames(ParticleEngine engine, FramePipeline pipeline, int[] framebuffer,
+            Runnable present, int seconds) {
+        final Runnable tick = () -> engine.tick(DELTA_TIME, 600f, 400f, true, 0f);
+        final long start = System.nanoTime();
+        final long end = start + seconds * 1_000_000_000L;
+        long frames = 0;
+        while (System.nanoTime() < end) {
+            pipeline.frame(tick, framebuffer, present);
+            frames++;
+        }
+        return frames / ((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Reads a frame stream the way the page served with it does, counting
+     * what arrives and, when decoding, keeping the picture.
+     */
+    private static final class StreamClient {
+        final boolean slow;
+        final boolean decoding;
+        long bytes;
+        long messages;
+        long keys;
+        // of the last message read
+        volatile long number;
+        private int[] pixels;
+
+        StreamClient(boolean slow, boolean decoding) {
+            this.slow = slow;
+            this.decoding = decoding;
+        }
+
+        void run(HttpClient http, URI uri) {
+            try (InputStream in = new BufferedInputStream(
+                    http.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofInputStream()).body())) {
+                final byte[] length = new byte[4];
+                while (in.readNBytes(length, 0, 4) == 4) {
+                    final int size = ByteBuffer.wrap(length).order(ByteOrder.LITTLE_ENDIAN).getInt();
+                    final byte[] message = in.readNBytes(size);
+                    bytes += 4 + message.length;
+                    messages++;
+                    if (message[0] == FrameServer.KEY) {
+                        keys++;
+                    }
+                    if (decoding) {
+                        decode(message);
+                    }
+                    number = ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN).getInt(9) & 0xFFFFFFFFL;
+                    if (slow) {
+                        Thread.sleep(100);
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // the server closed
+            }
+        }
+
+        private void decode(byte[] message) {
+            final ByteBuffer in = ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN);
+            final int kind = in.get();
+            final int width = in.getInt();
+            final int height = in.getInt();
+            in.getInt();
+            if (pixels == null || pixels.length != width * height) {
+                pixels = new int[width * height];
+            }
+            if (kind == FrameServer.KEY) {
+                Arrays.fill(pixels, 0);
+            }
+            int pixel = 0;
+            while (in.hasRemaining()) {
+                pixel += readVarint(in);
+                final int cleared = readVarint(in);
+                Arrays.fill(pixels, pixel, pixel + cleared, 0);
+                pixel += cleared;
+                final int drawn = readVarint(in);
+                for (int i = 0; i < drawn; i++) {
+                    pixels[pixel++] = (in.get() & 0xFF) << 16 | (in.get() & 0xFF) << 8 | in.get() & 0xFF;
+                }
+            }
+        }
+
+        boolean matches(int[] framebuffer) {
+            if (pixels == null || pixels.length != framebuffer.length) {
+                return false;
+            }
+            for (int i = 0; i < pixels.length; i++) {
+                if ((framebuffer[i] & 0xFFFFFF) != pixels[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int readVarint(ByteBuffer in) {
+            int value = 0;
+            for (int shift = 0;; shift += 7) {
+                final int b = in.get();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+    }
+
+    private static void copyParticles(ParticleEngine from, ParticleEngine to) {
+        final long bytes = from.numParticles * (from.store.compact ? Short.BYTES : Float.BYTES);
+        MemorySegment.copy(from.positionsX, 0, to.positionsX, 0, bytes);
+        MemorySegment.copy(from.positionsY, 0, to.positionsY, 0, bytes);
+        MemorySegment.copy(from.velocitiesX, 0, to.velocitiesX, 0, bytes);
+        MemorySegment.copy(from.velocitiesY, 0, to.velocitiesY, 0, bytes);
+        to.wake();
+    }
+
+    private static float velocityX(ParticleEngine engine, long i) {
+        return engine.store.compact
+                ? engine.velocitiesX.getAtIndex(JAVA_SHORT, i) / ParticleStore.VELOCITY_UNITS
+                : engine.velocitiesX.getAtIndex(JAVA_FLOAT, i);
+    }
+
+    private static float velocityY(ParticleEngine engine, long i) {
+        return engine.store.compact
+                ? engine.velocitiesY.getAtIndex(JAVA_SHORT, i) / ParticleStore.VELOCITY_UNITS
+                : engine.velocitiesY.getAtIndex(JAVA_FLOAT, i);
+    }
+
+    static void selectSpecies(String species) {
+        System.setProperty(ParticleEngine.VECTOR_BITS_PROPERTY, species);
+        int expected = species.equals("preferred")
+                ? ParticleEngine.speciesFor("preferred").vectorBitSize()
+                : Integer.parseInt(species);
+        if (ParticleEngine.F_SPECIES.vectorBitSize() != expected) {
+            throw new IllegalStateException("ParticleEngine was initialized before the species was selected");
+        }
+    }
+
+    static int[] parseResolution(String resolution) {
+        String[] parts = resolution.split("x");
+        return new int[] { Integer.parseInt(parts[0]), Integer.parseInt(parts[1]) };
+    }
+
+    /**
+     * A single task over the whole particle range, for the per-thread kernels.
+     */
+    @State(Scope.Thread)
+    public static class KernelState {
+        @Param({ "preferred", "128", "256", "512" })
+        public String species;
+
+        @Param({ "1000000", "20000000" })
+        public long particles;
+
+        @Param({ "true", "false" })
+        public boolean mousePressed;
+
+        @Param({ "false", "true" })
+        public boolean compact;
+
+        ParticleEngine engine;
+        ParticleUpdateTask task;
+        long vectorEnd;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            selectSpecies(species);
+            engine = new ParticleEngine(particles, 1, false, compact);
+            engine.resize(1200, 800);
+            engine.placeParticlesSquare();
+            task = new ParticleUpdateTask();
+            task.updateParams(0, 0, particles, engine, DELTA_TIME, 0f, 600f, 400f, mousePressed);
+            vectorEnd = (particles / ParticleEngine.LANE_SIZE) * ParticleEngine.LANE_SIZE;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            engine.close();
+        }
+    }
+
+    /**
+     * A single task over a range that doesn't fill the last vector, run with
+     * each {@link TickKernel} the way a chunk is ticked.
+     */
+    @State(Scope.Thread)
+    public static class TickKernelState {
+        @Param({ "scalar", "vector", "masked", "fast" })
+        public String kernel;
+
+        @Param({ "1000003", "20000003" })
+        public long particles;
+
+        @Param({ "0", "16" })
+        public int attractors;
+
+        @Param({ "false", "true" })
+        public boolean compact;
+
+        ParticleEngine engine;
+        ParticleUpdateTask task;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            engine = new ParticleEngine(particles, 1, false, compact);
+            engine.resize(1200, 800);
+            engine.placeParticlesSquare();
+            engine.forces.addRing(attractors, 600f, 400f, 800 / 3f, engine.PULL_FORCE);
+            engine.setKernel(TickKernel.valueOf(kernel.toUpperCase()));
+            task = new ParticleUpdateTask();
+            task.updateParams(0, 0, particles, engine, DELTA_TIME, 0f, 600f, 400f, true);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            engine.close();
+        }
+    }
+
+    /**
+     * A full engine with its worker pool, for the multi threaded phases.
+     */
+    @State(Scope.Thread)
+    public static class FrameState {
+        @Param({ "preferred" })
+        public String species;
+
+        @Param({ "1000000", "20000000" })
+        public long particles;
+
+        @Param({ "1200x800", "3840x2160" })
+        public String resolution;
+
+        @Param({ "1", "4", "16" })
+        public int threads;
+
+        @Param({ "false" })
+        public boolean compact;
+
+        // camera zoom around the center, particles off screen aren't binned
+        @Param({ "1" })
+        public float zoom;
+
+        ParticleEngine engine;
+        int[] framebuffer;
+        float centerX;
+        float centerY;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            selectSpecies(species);
+            int[] size = parseResolution(resolution);
+            engine = new ParticleEngine(particles, threads, false, compact);
+            engine.resize(size[0], size[1]);
+            engine.placeParticlesSquare();
+            framebuffer = new int[size[0] * size[1]];
+            centerX = size[0] / 2.0f;
+            centerY = size[1] / 2.0f;
+            engine.camera.zoomAt(centerX, centerY, zoom);
+            // bin a frame so the rasterizer sees realistic tiles
+            engine.tick(DELTA_TIME, centerX, centerY, true, 0f);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            engine.close();
+        }
+    }
+
+    /**
+     * Just the worker group, for the cost of one phase hand off and barrier.
+     */
+    @State(Scope.Thread)
+    public static class GroupState {
+        @Param({ "1", "4", "16" })
+        public int threads;
+
+        WorkerGroup workers;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            workers = new WorkerGroup(threads);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            workers.close();
+        }
+    }
+
+    /**
+     * A full engine with a worker per cpu next to busy threads that stand in
+     * for other load on a shared host or a slow core, for the tail latency of
+     * a tick split into one static chunk per worker or claimed in smaller ones.
+     */
+    @State(Scope.Thread)
+    public static class ChunkState {
+        @Param({ "20000000" })
+        public long particles;
+
+        @Param({ "1", "4", "8" })
+        public int chunksPerWorker;
+
+        @Param({ "0", "1" })
+        public int noiseThreads;
+
+        // 0 is one per cpu
+        @Param({ "0" })
+        public int threads;
+
+        ParticleEngine engine;
+        Thread[] noise;
+        volatile boolean stopNoise;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            engine = new ParticleEngine(particles, threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+            engine.resize(1200, 800);
+            engine.setChunksPerWorker(chunksPerWorker);
+            engine.placeParticlesSquare();
+            noise = new Thread[noiseThreads];
+            for (int i = 0; i < noise.length; i++) {
+                noise[i] = new Thread(() -> {
+                    while (!stopNoise) {
+                        // burn a cpu
+                    }
+                }, "noise-" + i);
+                noise[i].setDaemon(true);
+                noise[i].start();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws InterruptedException {
+            stopNoise = true;
+            for (Thread thread : noise) {
+                thread.join();
+            }
+            engine.close();
+        }
+    }
+
+    /**
+     * The tick kernel over one range with a number of point forces that each
+     * pull and swirl with an inverse falloff, which is the longest path
+     * through the force loop. The mouse attractor is off, so attractors is
+     * the whole force count.
+     */
+    @State(Scope.Thread)
+    public static class ForceState {
+        @Param({ "1", "2", "4", "8", "16", "32", "64" })
+        public int attractors;
+
+        @Param({ "1000000" })
+        public long particles;
+
+        @Param({ "false", "true" })
+        public boolean compact;
+
+        ParticleEngine engine;
+        ParticleUpdateTask task;
+        long vectorEnd;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            engine = new ParticleEngine(particles, 1, false, compact);
+            engine.resize(1200, 800);
+            engine.placeParticlesSquare();
+            java.util.Random random = new java.util.Random(attractors);
+            for (int i = 0; i < attractors; i++) {
+                engine.forces.add(1200 * random.nextFloat(), 800 * random.nextFloat(), 80_000f,
+                        i % 2 == 0 ? 40_000f : -40_000f, ForceField.Falloff.INVERSE, Float.POSITIVE_INFINITY);
+            }
+            task = new ParticleUpdateTask();
+            task.updateParams(0, 0, particles, engine, DELTA_TIME, 0f, 600f, 400f, false);
+            vectorEnd = (particles / ParticleEngine.LANE_SIZE) * ParticleEngine.LANE_SIZE;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            engine.close();
+        }
+    }
+
+    @Benchmark
+    public void forceField(ForceState state) {
+        if (state.compact) {
+            state.task.integrateCompact(0, state.vectorEnd);
+        } else {
+            state.task.integrateVector(0, state.vectorEnd);
+        }
+    }
+
+    /**
+     * An engine with mesh gravity, for its deposit and FFT phases on the
+     * worker group and the tick kernel that interpolates the forces, which
+     * runs on one thread like {@link #integrateVector}.
+     */
+    @State(Scope.Thread)
+    public static class GravityState {
+        @Param({ "1000000", "20000000" })
+        public long particles;
+
+        @Param({ "128", "256", "512" })
+        public int mesh;
+
+        @Param({ "1", "4", "16" })
+        public int threads;
+
+        ParticleEngine engine;
+        MeshGravity gravity;
+        ParticleUpdateTask task;
+        long vectorEnd;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            engine = new ParticleEngine(particles, threads);
+            engine.resize(1200, 800);
+            engine.placeParticlesSquare();
+            engine.setGravity(engine.PULL_FORCE, mesh);
+            gravity = engine.getGravity();
+            gravity.solve(engine, particles, DELTA_TIME);
+            task = new ParticleUpdateTask();
+            task.updateParams(0, 0, particles, engine, DELTA_TIME, 0f, 600f, 400f, true);
+            vectorEnd = (particles / ParticleEngine.LANE_SIZE) * ParticleEngine.LANE_SIZE;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            engine.close();
+        }
+    }
+
+    @Benchmark
+    public void gravityDeposit(GravityState state) {
+        state.gravity.deposit(state.engine, state.particles);
+    }
+
+    @Benchmark
+    public void gravityTransform(GravityState state) {
+        state.gravity.transform(state.engine.workers, DELTA_TIME);
+    }
+
+    @Benchmark
+    public void gravityInterpolate(GravityState state) {
+        state.task.integrateVector(0, state.vectorEnd);
+    }
+
+    /**
+     * An engine with neighbor interaction on a 1200x800 viewport, where 1M,
+     * 4M and 16M particles are about 1, 4 and 16 per pixel. The forces only
+     * change velocities, so the density stays put between invocations.
+     */
+    @State(Scope.Thread)
+    public static class InteractState {
+        @Param({ "1000000", "4000000", "16000000" })
+        public long particles;
+
+        @Param({ "1", "2", "4" })
+        public float radius;
+
+        @Param({ "1", "4", "16" })
+        public int threads;
+
+        ParticleEngine engine;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            engine = new ParticleEngine(particles, threads);
+            engine.resize(1200, 800);
+            engine.placeParticlesSquare();
+            engine.setInteraction(radius, NeighborGrid.DEFAULT_STRENGTH);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            engine.close();
+        }
+    }
+
+    @Benchmark
+    public void interact(InteractState state) {
+        state.engine.interact(DELTA_TIME);
+    }
+
+    /**
+     * An engine with reordering on, for the cost of a Z order sort. The
+     * particles are already sorted after the first invocation, which is the
+     * usual case for the periodic sorts, only their gather is faster than
+     * sorting a random order.
+     */
+    @State(Scope.Thread)
+    public static class ReorderState {
+        @Param({ "1000000", "20000000" })
+        public long particles;
+
+        @Param({ "1", "4", "16" })
+        public int threads;
+
+        ParticleEngine engine;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            engine = new ParticleEngine(particles, threads);
+            engine.resize(1200, 800);
+            engine.placeParticlesSquare();
+            engine.setReorder(0);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            engine.close();
+        }
+    }
+
+    @Benchmark
+    public void reorder(ReorderState state) {
+        state.engine.reorder();
+    }
+
+    /**
+     * Randomly placed particles in placement order or sorted into Z order,
+     * for what the order does to the tick and the tile binning. The particles
+     * are at rest with the attractor off, so they keep their order.
+     */
+    @State(Scope.Thread)
+    public static class LocalityState {
+        @Param({ "1000000", "20000000" })
+        public long particles;
+
+        @Param({ "1", "4", "16" })
+        public int threads;
+
+        @Param({ "false", "true" })
+        public boolean sorted;
+
+        ParticleEngine engine;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            engine = new ParticleEngine(particles, threads);
+            engine.resize(1200, 800);
+            engine.placeParticlesSquare();
+            // particles are placed at rest, which would make every tick idle
+            engine.setRestSpeed(0);
+            if (sorted) {
+                engine.setReorder(0);
+                engine.reorder();
+                engine.setReorder(-1);
+            }
+            engine.tick(DELTA_TIME, 600f, 400f, false, 0f);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            engine.close();
+        }
+    }
+
+    @Benchmark
+    public void localityTick(LocalityState state) {
+        state.engine.tick(DELTA_TIME, 600f, 400f, false, 0f);
+    }
+
+    @Benchmark
+    public void localityBin(LocalityState state) {
+        state.engine.binParticles();
+    }
+
+    /**
+     * Particles at rest with nothing pulling on them, ticked and drawn with
+     * resting on or off.
+     */
+    @State(Scope.Thread)
+    public static class RestState {
+        @Param({ "1000000", "20000000" })
+        public long particles;
+
+        @Param({ "1", "4", "16" })
+        public int threads;
+
+        @Param({ "false", "true" })
+        public boolean resting;
+
+        ParticleEngine engine;
+        int[] framebuffer;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            engine = new ParticleEngine(particles, threads);
+            engine.resize(1200, 800);
+            engine.placeParticlesSquare();
+            engine.setRestSpeed(resting ? ParticleEngine.DEFAULT_REST_SPEED : 0);
+            framebuffer = new int[1200 * 800];
+            engine.tick(DELTA_TIME, 600f, 400f, false, 0f);
+            engine.renderIfChanged(framebuffer, engine.latestFrame());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            engine.close();
+        }
+    }
+
+    @Benchmark
+    public int[] restFrame(RestState state) {
+        state.engine.tick(DELTA_TIME, 600f, 400f, false, 0f);
+        state.engine.renderIfChanged(state.framebuffer, state.engine.latestFrame());
+        return state.framebuffer;
+    }
+
+    /**
+     * A rendered frame in the ARGB image the panel presents or the opaque
+     * one the canvas presents, and an INT_RGB image standing in for the
+     * screen, which is what a 24 bit display is. Needs no display.
+     */
+    @State(Scope.Thread)
+    public static class BlitState {
+        @Param({ "INT_ARGB", "INT_RGB" })
+        public String source;
+
+        BufferedImage frame;
+        BufferedImage screen;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            frame = new BufferedImage(1200, 800,
+                    source.equals("INT_RGB") ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+            screen = new BufferedImage(1200, 800, BufferedImage.TYPE_INT_RGB);
+            try (ParticleEngine engine = new ParticleEngine(1_000_000, 1)) {
+                engine.resize(1200, 800);
+                engine.placeParticlesSquare();
+                engine.tick(DELTA_TIME, 600f, 400f, true, 0f);
+                engine.render(((DataBufferInt) frame.getRaster().getDataBuffer()).getData());
+            }
+        }
+    }
+
+    @Benchmark
+    public BufferedImage blit(BlitState state) {
+        Graphics2D g = state.screen.createGraphics();
+        g.drawImage(state.frame, 0, 0, null);
+        g.dispose();
+        return state.screen;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public void tickTail(ChunkState state) {
+        state.engine.tick(DELTA_TIME, 600f, 400f, true, 0f);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void emptyPhase(GroupState state) {
+        state.workers.run(id -> {
+        });
+    }
+
+    @Benchmark
+    public void integrateVector(KernelState state) {
+        if (state.compact) {
+            state.task.integrateCompact(0, state.vectorEnd);
+        } else {
+            state.task.integrateVector(0, state.vectorEnd);
+        }
+    }
+
+    @Benchmark
+    public void integrateScalar(KernelState state) {
+        if (state.compact) {
+            state.task.integrateCompactScalar(0, state.particles);
+        } else {
+            state.task.integrateScalar(0, state.particles);
+        }
+    }
+
+    @Benchmark
+    public void integrateKernel(TickKernelState state) {
+        state.task.integrate();
+    }
+
+    @Benchmark
+    public void tick(FrameState state) {
+        state.engine.tick(DELTA_TIME, state.centerX, state.centerY, true, 0f);
+    }
+
+    @Benchmark
+    public void binParticles(FrameState state) {
+        state.engine.binParticles();
+    }
+
+    @Benchmark
+    public int[] render(FrameState state) {
+        state.engine.setRenderMode(RenderMode.OVERWRITE);
+        state.engine.render(state.framebuffer);
+        return state.framebuffer;
+    }
+
+    @Benchmark
+    public int[] renderDensity(FrameState state) {
+        state.engine.setRenderMode(RenderMode.DENSITY);
+        state.engine.render(state.framebuffer);
+        return state.framebuffer;
+    }
+}
@@ -1,7 +1,9 @@
 //JAVA 25+
 //PREVIEW
 //COMPILE_OPTIONS --add-modules jdk.incubator.vector
-//RUNTIME_OPTIONS --add-modules jdk.incubator.vector
+//RUNTIME_OPTIONS --add-modules jdk.incubator.vector --enable-native-access=ALL-UNNAMED
+
+package particlesim;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
@@ -9,778 +11,7093 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferStrategy;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteOrder;
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.stream.IntStream;
-import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 
 import jdk.incubator.vector.ByteVector;
 import jdk.incubator.vector.FloatVector;
 import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
 import jdk.incubator.vector.ShortVector;
 import jdk.incubator.vector.VectorMask;
 import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
 import jdk.incubator.vector.VectorSpecies;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
 import static jdk.incubator.vector.VectorOperators.*;
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_FLOAT;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.lang.foreign.ValueLayout.JAVA_LONG_UNALIGNED;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
 
 public class ParticleSim {
 
     public static void main(String[] args) {
-        new ParticleSim().createAndShowGUI();
+        SimOptions options = SimOptions.parse(args);
+        InputLog.Replay replay = null;
+        if (options.replayPath != null) {
+            try {
+                replay = InputLog.Replay.open(Path.of(options.replayPath));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not replay " + options.replayPath, e);
+            }
+            options = replay.options(args);
+        }
+        if (options.vectorBits != null) {
+            // must happen before ParticleEngine is initialized
+            System.setProperty(ParticleEngine.VECTOR_BITS_PROPERTY, options.vectorBits);
+        }
+        if (options.servePort >= 0 && replay == null) {
+            runServer(options);
+            return;
+        }
+        if (options.headless) {
+            runHeadless(options, replay);
+            return;
+        }
+        new ParticleSim().createAndShowGUI(options);
     }
 
-    private void createAndShowGUI() {
+    private void createAndShowGUI(SimOptions options) {
         JFrame frame = new JFrame("Sips Java");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
-        int width = 1200;
-        int height = 800;
-
-        ParticlePanel particlePanel = new ParticlePanel(width, height);
+        ParticlePanel particlePanel = new ParticlePanel(options);
         frame.add(particlePanel);
 
         frame.pack();
         frame.setLocationRelativeTo(null);
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                // before EXIT_ON_CLOSE, so the input log gets its end
+                particlePanel.stopSimulation();
+            }
+        });
         frame.setVisible(true);
 
         particlePanel.startSimulation();
     }
-}
 
-class ParticlePanel extends JPanel
-        implements MouseListener, MouseMotionListener, ComponentListener, KeyListener {
-
-    public final float PULL_FORCE = 800f;
-    public final float MIN_PULL_DIST = 1.0f;
-    public final float FRICTION = 0.9f;
-
-    public static final int NUM_PARTICLES = 20_000_000;
-    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
-    private static final VectorSpecies<Float> F_SPECIES = FloatVector.SPECIES_PREFERRED;
-    private static final int LANE_SIZE = F_SPECIES.length();
-    private final ExecutorService executorService = Executors.newFixedThreadPool(CPU_COUNT);
-    private final ParticleUpdateTask[] tasks = new ParticleUpdateTask[CPU_COUNT];
-    private final Set<Character> keysPressed = Collections.synchronizedSet(new HashSet<>());
-    private Map<Character, Point> velInputMap = Map.of(
-            'a', new Point(1, 0),
-            'd', new Point(-1, 0),
-            's', new Point(0, -1),
-            'w', new Point(0, 1));
-
-    public float[] positionsX = new float[NUM_PARTICLES];
-    public float[] positionsY = new float[NUM_PARTICLES];
-    public float[] velocitiesX = new float[NUM_PARTICLES];
-    public float[] velocitiesY = new float[NUM_PARTICLES];
-    // private float[] startX = new float[NUM_PARTICLES];
-    // private float[] startY = new float[NUM_PARTICLES];
-    public int[] colors = new int[NUM_PARTICLES];
-
-    public BufferedImage image;
-    // private byte[] pixelArray;
-    private int width;
-    private int height;
-    // private byte[][] threadPixelBuffers;
-    public int[][] threadPixelBuffers;
-
-    public Point mousePosition = new Point(0, 0);
-    public boolean isMousePressed = false;
-
-    private volatile boolean running = false;
-    private Thread gameLoopThread;
-    private static final long NS_PER_SECOND = 1_000_000_000L;
-    private static final double TARGET_FPS = 30.0;
-    private static final double NS_PER_TICK = NS_PER_SECOND / TARGET_FPS;
-    private boolean isResizeRequested = false;
-    private boolean isResetRequested = false;
-    private boolean isSlowDownRequested = false;
-    final int resetSquareType = 1;
-    final int resetSquareMultiType = 2;
-    final int resetCircleType = 3;
-    final int resetImageType = 4;
-    private int resetType = 0;
-    private boolean isPanning = false;
-    public volatile Point panDeltaInput = new Point(0, 0);
-    public float inputVelScale = 0.2f;
-    private boolean shouldReturnToStart = false;
-
-    private long lastTickTime;
-    private int frames = 0;
-
-    public ParticlePanel(int width, int height) {
-        setSize(width, height);
-        setPreferredSize(new Dimension(width, height));
-        this.handleResize(width, height);
-
-        // create tasks
-        var i = 0;
-        while (i < CPU_COUNT) {
-            tasks[i] = new ParticleUpdateTask();
-            i++;
-        }
-
-        placeParticlesSquare();
-        addMouseListener(this);
-        addMouseMotionListener(this);
-        addComponentListener(this);
-        addKeyListener(this);
-        setBackground(Color.BLACK);
-        setFocusable(true);
-        requestFocusInWindow();
-        setIgnoreRepaint(true);
-
-        lastTickTime = System.nanoTime();
-        frames = 0;
-    }
-
-    public void startSimulation() {
-        if (!running) {
-            running = true;
-            gameLoopThread = new Thread(this::gameLoop);
-            gameLoopThread.start();
-        }
-    }
-
-    private void gameLoop() {
-        lastTickTime = System.nanoTime();
-
-        while (running) {
-            long now = System.nanoTime();
-            long timeElapsed = now - lastTickTime;
-            this.processInputRequests();
-
-            if (timeElapsed >= NS_PER_TICK) {
-                float deltaTime = timeElapsed / (float) NS_PER_SECOND;
-                lastTickTime = now;
+    /**
+     * Runs the simulation without AWT, ticking and rendering into a plain int
+     * framebuffer with the attractor held at the center of the viewport,
+     * for the whole run or the first --release frames. A replay takes the
+     * input of every tick from its log instead, runs a frame per logged
+     * tick and then checks the particles ended where the recording left
+     * them.
+     */
+    private static void runHeadless(SimOptions options, InputLog.Replay replay) {
+        final float deltaTime = replay != null ? replay.tickSeconds : (float) (1.0 / options.targetFps);
+        final long createStart = System.nanoTime();
+        boolean replayed = true;
 
-                for (var key : this.keysPressed) {
-                    float speed = 500;
-                    if (this.velInputMap.containsKey(key)) {
-                        this.panDeltaInput.x += velInputMap.get(key).x * speed * deltaTime;
-                        this.panDeltaInput.y += velInputMap.get(key).y * speed * deltaTime;
+        try (ParticleEngine engine = ParticleEngine.create(options);
+                FramePipeline pipeline = new FramePipeline(engine, options.pipelined)) {
+            // after create, a restored run brings its own viewport
+            final int w = options.width;
+            final int h = options.height;
+            int[] framebuffer = new int[w * h];
+            engine.resize(w, h);
+            // a restore is timed from before create maps the snapshot
+            final long placeStart = options.restorePath == null ? System.nanoTime() : createStart;
+            if (options.restorePath == null) {
+                engine.placeParticlesSquare();
+            }
+            final long placeNanos = System.nanoTime() - placeStart;
+            final TickInput input = new TickInput();
+            input.mouseX = w / 2.0f;
+            input.mouseY = h / 2.0f;
+            input.activeParticles = engine.numParticles;
+            final int release = options.releaseFrame;
+            final int[] ticked = { 0 };
+            final InputLog log = options.inputLogPath == null ? null : startInputLog(options, engine, deltaTime);
+            final Runnable tick = () -> {
+                if (replay == null) {
+                    input.mousePressed = release < 0 || ticked[0]++ < release;
+                }
+                if (log != null) {
+                    try {
+                        log.record(input);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Could not log input to " + log.path, e);
                     }
                 }
+                input.tick(engine, deltaTime);
+                input.clearEvents();
+            };
+            final Runnable present = () -> {
+            };
+            if (replay != null) {
+                // the logged active counts replace the governor
+                options.budgetMillis = 0;
+                options.warmupFrames = (int) Math.min(options.warmupFrames, replay.ticks);
+                options.frames = (int) (replay.ticks - options.warmupFrames);
+            }
+            // runs through warmup too, which gives it time to settle
+            final FrameGovernor governor = options.budgetMillis > 0
+                    ? new FrameGovernor(engine, FrameGovernor.budgetOf(options.budgetMillis))
+                    : null;
+
+            System.out.printf("Headless: %,d particles, %dx%d, %d threads, %d chunks, %d lanes of %d bits\n",
+                    engine.numParticles, w, h, engine.threadCount, engine.getChunkCount(), ParticleEngine.LANE_SIZE,
+                    ParticleEngine.F_SPECIES.vectorBitSize());
+            System.out.printf("Storage: %,d MB off-heap%s%s, %s rendering%s, %s kernel\n",
+                    engine.store.byteSize() >> 20, engine.store.compact ? " compact" : "",
+                    engine.store.hugePages ? " on huge pages" : "", options.renderMode.name().toLowerCase(),
+                    options.pipelined ? ", pipelined" : "", engine.getKernel().name().toLowerCase());
+            final MeshGravity gravity = engine.getGravity();
+            if (gravity != null) {
+                System.out.printf("Gravity: %dx%d mesh, strength %.0f\n", gravity.mesh, gravity.mesh,
+                        gravity.strength);
+            }
+            final NeighborGrid neighbors = engine.getInteraction();
+            if (neighbors != null) {
+                System.out.printf("Interact: %.1f px radius, strength %.0f, %,d MB scratch\n", neighbors.radius,
+                        neighbors.strength, engine.numParticles * NeighborGrid.bytesPerParticle() >> 20);
+            }
+            final MortonOrder order = engine.getReorder();
+            if (order != null) {
+                System.out.printf("Reorder: %s, %,d MB scratch\n", order.interval > 0
+                        ? "every " + order.interval + " frames or when locality halves"
+                        : "when locality halves", engine.numParticles * MortonOrder.bytesPerParticle() >> 20);
+            }
 
-                long tickStart = System.nanoTime();
-                tick(deltaTime);
-                long tickEnd = System.nanoTime();
-                long tickDuration = (tickEnd - tickStart);
+            for (int i = 0; i < options.warmupFrames; i++) {
+                framebuffer = beforeHeadlessFrame(engine, input, replay, framebuffer);
+                pipeline.frame(tick, framebuffer, present);
+                if (governor != null) {
+                    governor.afterFrame(pipeline.frameNanos);
+                }
+            }
+            engine.workers.resetStats();
+            engine.stats.reset();
+            if (order != null) {
+                order.resetStats();
+            }
+            // only the measured frames are recorded
+            final FrameRecorder recorder = options.recordPath == null ? null
+                    : startRecorder(options, engine.getWidth(), engine.getHeight());
+            pipeline.setRecorder(recorder);
 
-                long renderStart = System.nanoTime();
-                render();
+            long tickTotal = 0;
+            long renderTotal = 0;
+            long frameTotal = 0;
+            double activeTotal = 0;
+            for (int i = 0; i < options.frames; i++) {
+                framebuffer = beforeHeadlessFrame(engine, input, replay, framebuffer);
+                activeTotal += engine.getActiveParticles();
+                pipeline.frame(tick, framebuffer, present);
+                tickTotal += pipeline.tickNanos;
+                renderTotal += pipeline.renderNanos;
+                frameTotal += pipeline.frameNanos;
+                if (governor != null) {
+                    governor.afterFrame(pipeline.frameNanos);
+                }
+            }
+            pipeline.setRecorder(null);
 
-                Graphics2D g = (Graphics2D) getGraphics();
-                g.drawImage(image, 0, 0, this);
-                g.dispose();
-                Toolkit.getDefaultToolkit().sync();
-                frames++;
+            final int frames = Math.max(1, options.frames);
+            System.out.printf("(%s): %.3f ms\n", options.restorePath == null ? "Place" : "Restore",
+                    placeNanos / 1_000_000.0);
+            System.out.printf("(Tick): %.3f ms\n", tickTotal / 1_000_000.0 / frames);
+            System.out.printf("(Render): %.3f ms\n", renderTotal / 1_000_000.0 / frames);
+            System.out.printf("(Frame): %.3f ms\n", frameTotal / 1_000_000.0 / frames);
+            System.out.printf("(Frames/sec): %.2f\n", frames / (frameTotal / 1e9));
+            System.out.printf("(Ticks/sec): %.2f\n", frames / (tickTotal / 1e9));
+            System.out.printf("(ns/particle): %.4f\n", tickTotal / Math.max(1, activeTotal));
+            if (governor != null) {
+                System.out.printf("(Governor): %s, %,.0f active on average\n", governor.describe(),
+                        activeTotal / frames);
+            }
+            if (order != null) {
+                System.out.printf("(Reorder): %d sorts, %.3f ms/frame amortized, locality %.3f sorted, %.3f now\n",
+                        order.sortCount(), order.sortNanos() / 1_000_000.0 / frames, order.sortedLocality(),
+                        order.locality());
+            }
+
+            final long[] waits = new long[engine.workers.size()];
+            final long phases = engine.workers.barrierWaits(waits);
+            final StringBuilder perWorker = new StringBuilder();
+            for (int id = 0; id < waits.length; id++) {
+                perWorker.append(id == 0 ? "" : " ").append(String.format("%.3f", waits[id] / 1_000_000.0 / frames));
+            }
+            System.out.printf("(Barrier wait ms/frame over %d phases): %s\n", phases / frames, perWorker);
+            engine.stats.print(System.out);
 
-                long renderEnd = System.nanoTime();
-                long renderDuration = (renderEnd - renderStart);
+            if (recorder != null) {
+                final long closeStart = System.nanoTime();
+                recorder.close();
+                System.out.printf("(Record): %d frames, %d dropped, %,d MB %s to %s, peak queue %d of %d\n",
+                        recorder.writtenFrames(), recorder.droppedFrames(), recorder.writtenBytes() >> 20,
+                        recorder.format.name().toLowerCase(), recorder.path, recorder.peakQueuedFrames(),
+                        FrameRecorder.POOL_SIZE);
+                System.out.printf("(Record stall): %.3f ms/frame, %.3f ms draining after the run\n",
+                        recorder.stalledNanos() / 1_000_000.0 / frames, (System.nanoTime() - closeStart) / 1_000_000.0);
+            }
 
-                if (frames % TARGET_FPS == 0) {
-                    float tickDurationMs = tickDuration / 1_000_000.0f;
-                    float renderDurationMs = renderDuration / 1_000_000.0f;
-                    System.out.printf("(Tick): %.3f ms\n", tickDurationMs);
-                    System.out.printf("(Render): %.3f ms\n", renderDurationMs);
-                    System.out.printf("(Total): %.3f ms\n", tickDurationMs + renderDurationMs);
+            if (log != null) {
+                try {
+                    log.close();
+                    System.out.printf("(Input log): %d ticks to %s, checksum %016x\n", log.ticks(), log.path,
+                            log.checksum());
+                } catch (IOException e) {
+                    System.err.println("Input log failed: " + e.getMessage());
                 }
-            } else {
+            }
+            if (replay != null) {
+                final long checksum = engine.store.checksum();
+                replayed = checksum == replay.checksum;
+                System.out.printf("(Replay): %d ticks of %s on %d threads, %s kernel, checksum %016x, %s\n",
+                        replay.ticks, replay.path, engine.threadCount, engine.getKernel().name().toLowerCase(),
+                        checksum, replayed ? "matches the recording" : String.format(
+                                "recorded %016x on %d threads, %s kernel", replay.checksum, replay.threads,
+                                replay.kernel.name().toLowerCase()));
+                if (replay.lanes != ParticleEngine.LANE_SIZE) {
+                    System.out.printf("(Replay): recorded with %d lanes, replayed with %d\n", replay.lanes,
+                            ParticleEngine.LANE_SIZE);
+                }
+            }
+
+            if (options.savePath != null) {
+                final ParticleSnapshot.Save save = ParticleSnapshot.save(engine, Path.of(options.savePath));
                 try {
-                    Thread.sleep(1);
+                    save.await();
+                    System.out.printf("(Save): %.3f ms, %,d MB to %s\n", save.elapsedNanos() / 1_000_000.0,
+                            save.totalBytes >> 20, save.path);
+                } catch (IOException e) {
+                    System.err.println("Snapshot failed: " + e.getMessage());
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
-                    System.err.println("Game loop interrupted.");
-                    running = false;
                 }
             }
         }
+        if (!replayed) {
+            System.exit(1);
+        }
     }
 
-    private void tick(float deltaTime) {
-        final int vectorizedEndIndex = (NUM_PARTICLES / LANE_SIZE) * LANE_SIZE;
-        final int chunkSize = vectorizedEndIndex / CPU_COUNT;
-        final var futures = new ArrayList<Future<?>>(CPU_COUNT);
+    /**
+     * Runs headless in real time and streams every frame to the browsers
+     * connected to --serve, with the attractor at the center of the
+     * viewport like a headless run, until the process is stopped.
+     */
+    private static void runServer(SimOptions options) {
+        final float deltaTime = (float) (1.0 / options.targetFps);
+        final long frameNanos = (long) (1e9 / options.targetFps);
+        final int statsFrames = (int) options.targetFps;
 
-        // safe input data
-        final int panDx = this.panDeltaInput.x;
-        final int panDy = this.panDeltaInput.y;
-        final float vScale = this.isSlowDownRequested ? this.inputVelScale : 0f;
-
-        // only reset if there was a change.
-        this.panDeltaInput.x = 0;
-        this.panDeltaInput.y = 0;
+        try (ParticleEngine engine = ParticleEngine.create(options);
+                FramePipeline pipeline = new FramePipeline(engine, options.pipelined);
+                FrameServer server = FrameServer.start(options.servePort)) {
+            final int w = options.width;
+            final int h = options.height;
+            final int[] framebuffer = new int[w * h];
+            engine.resize(w, h);
+            if (options.restorePath == null) {
+                engine.placeParticlesSquare();
+            }
+            final TickInput input = new TickInput();
+            input.mouseX = w / 2.0f;
+            input.mouseY = h / 2.0f;
+            final int release = options.releaseFrame;
+            final int[] ticked = { 0 };
+            final Runnable tick = () -> {
+                input.mousePressed = release < 0 || ticked[0]++ < release;
+                input.tick(engine, deltaTime);
+            };
+            // only runs for frames that were drawn, idle frames send nothing
+            final Runnable present = () -> server.publish(framebuffer, w, h);
+            final FrameGovernor governor = options.budgetMillis > 0
+                    ? new FrameGovernor(engine, FrameGovernor.budgetOf(options.budgetMillis))
+                    : null;
+            System.out.printf("Serving %,d particles at %dx%d on http://localhost:%d/\n", engine.numParticles, w, h,
+                    server.port());
 
-        for (int i = 0; i < CPU_COUNT; i++) {
-            int start = i * chunkSize;
-            int end = (i == CPU_COUNT - 1) ? vectorizedEndIndex : start + chunkSize;
-            ParticleUpdateTask task = tasks[i];
-            task.updateParams(i, start, end, this, deltaTime, panDx, panDy, vScale);
-            futures.add(executorService.submit(task));
+            long next = System.nanoTime();
+            long statsStart = next;
+            for (long frame = 1;; frame++) {
+                pipeline.frame(tick, framebuffer, present);
+                if (governor != null) {
+                    governor.afterFrame(pipeline.frameNanos);
+                }
+                if (frame % statsFrames == 0) {
+                    final long now = System.nanoTime();
+                    System.out.printf("(Last %d frames%s)\n", statsFrames, pipeline.isPipelined() ? ", pipelined" : "");
+                    engine.stats.print(System.out);
+                    engine.stats.reset();
+                    if (governor != null) {
+                        System.out.printf("(Governor): %s\n", governor.describe());
+                    }
+                    System.out.printf("(Serve): %s\n", server.describe((now - statsStart) / 1e9));
+                    statsStart = now;
+                }
+                // frames that run late push the schedule back rather than hurry to catch up
+                next += frameNanos;
+                final long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                } else {
+                    next = System.nanoTime();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not serve on port " + options.servePort, e);
         }
+    }
 
-        this.isSlowDownRequested = false;
+    /**
+     * Gets a headless frame's input ready. The governor may have changed
+     * the active count, a replay applies its resizes and placements, and
+     * returns the framebuffer to render into.
+     */
+    private static int[] beforeHeadlessFrame(ParticleEngine engine, TickInput input, InputLog.Replay replay,
+            int[] framebuffer) {
+        if (replay == null) {
+            input.activeParticles = engine.getActiveParticles();
+            return framebuffer;
+        }
+        replay.next(input);
+        if (input.width != 0) {
+            engine.resize(input.width, input.height);
+            // the recorder drops frames that are not the size it started at
+            framebuffer = new int[input.width * input.height];
+        }
+        input.beforeFrame(engine);
+        return framebuffer;
+    }
 
-        for (Future<?> future : futures) {
-            try {
-                future.get();
-            } catch (InterruptedException | ExecutionException e) {
-                e.printStackTrace();
-            }
+    static InputLog startInputLog(SimOptions options, ParticleEngine engine, float tickSeconds) {
+        try {
+            return new InputLog(Path.of(options.inputLogPath), engine, options, tickSeconds);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not log input to " + options.inputLogPath, e);
         }
     }
 
-    private void render() {
-        int[] buff = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
-        Arrays.fill(buff, 0);
-        final int PIXEL_COUNT = buff.length;
-        IntStream.range(0, CPU_COUNT).parallel().forEach(chunkIndex -> {
-            int chunkSize = PIXEL_COUNT / CPU_COUNT;
-            int start = chunkIndex * chunkSize;
-            int end = (chunkIndex == CPU_COUNT - 1) ? PIXEL_COUNT : start + chunkSize;
+    /**
+     * Records at the viewport the measured frames start with, which a
+     * replay may have resized.
+     */
+    static FrameRecorder startRecorder(SimOptions options, int width, int height) {
+        try {
+            return new FrameRecorder(Path.of(options.recordPath), width, height, options.targetFps,
+                    options.recordPolicy);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not record to " + options.recordPath, e);
+        }
+    }
 
-            for (int i = start; i < end; i++) {
-                int color = 0;
+    /**
+     * Command line settings shared by the windowed and headless entry points.
+     */
+    static class SimOptions {
+        public boolean headless = false;
+        public int frames = 300;
+        public int warmupFrames = 30;
+        public long particles = ParticleEngine.DEFAULT_NUM_PARTICLES;
+        public int threads = Runtime.getRuntime().availableProcessors();
+        public int chunksPerWorker = ParticleEngine.DEFAULT_CHUNKS_PER_WORKER;
+        // frame time the governor aims for in ms, 0 leaves every particle active
+        public double budgetMillis = 0;
+        public int width = 1200;
+        public int height = 800;
+        public double targetFps = 30.0;
+        public String vectorBits = null;
+        public boolean hugePages = false;
+        public boolean compact = false;
+        public boolean pipelined = false;
+        public RenderMode renderMode = RenderMode.OVERWRITE;
+        public PresentMode presentMode = PresentMode.CANVAS;
+        public int densitySaturation = TileRenderer.DEFAULT_DENSITY_SATURATION;
+        // neighbor interaction radius in px, 0 turns it off
+        public float interactRadius = 0;
+        public float interactStrength = NeighborGrid.DEFAULT_STRENGTH;
+        // point forces around the center of the viewport, see ForceField
+        public int attractors = 0;
+        // pull of all the mass at 100 px in px/s^2, 0 turns mesh gravity off
+        public float gravity = 0;
+        public int gravityMesh = MeshGravity.DEFAULT_MESH;
+        // camera zoom around the center of the viewport
+        public float zoom = 1f;
+        // frames between Z order sorts, 0 sorts when locality drops, -1 never
+        public int reorderInterval = -1;
+        // px/s under which particles left alone count as at rest, 0 never rests
+        public float restSpeed = ParticleEngine.DEFAULT_REST_SPEED;
+        // headless frames, warmup included, before the attractor lets go, -1 never
+        public int releaseFrame = -1;
+        // integrate loop of the tick, null times them all at startup and takes the fastest
+        public TickKernel kernel = null;
+        public String savePath = null;
+        public String restorePath = null;
+        public String recordPath = null;
+        public FrameRecorder.Policy recordPolicy = FrameRecorder.Policy.DROP;
+        // windowed ticks are a fixed 1 / 30 s rather than the time since the last one
+        public boolean fixedStep = false;
+        public String inputLogPath = null;
+        public String replayPath = null;
+        // localhost port to stream frames on, 0 picks one, -1 doesn't serve
+        public int servePort = -1;
+        // as given, for the header of an input log
+        public String[] args = new String[0];
 
-                for (int localIndex = 0; localIndex < CPU_COUNT; localIndex++) {
-                    int col = threadPixelBuffers[localIndex][i];
-                    if (col != 0) {
-                        color = col;
-                        break;
+        public static SimOptions parse(String[] args) {
+            SimOptions options = new SimOptions();
+            options.args = args.clone();
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--headless" -> options.headless = true;
+                    case "--frames" -> options.frames = parseCount(args, ++i);
+                    case "--warmup" -> options.warmupFrames = parseCount(args, ++i);
+                    case "--particles" -> options.particles = parseLong(args, ++i);
+                    case "--threads" -> options.threads = Math.max(1, parseCount(args, ++i));
+                    case "--chunks" -> options.chunksPerWorker = Math.max(1, parseCount(args, ++i));
+                    case "--budget" -> options.budgetMillis = Double.parseDouble(parseValue(args, ++i));
+                    case "--width" -> options.width = Math.max(1, parseCount(args, ++i));
+                    case "--height" -> options.height = Math.max(1, parseCount(args, ++i));
+                    case "--vector-bits" -> options.vectorBits = parseValue(args, ++i);
+                    case "--huge-pages" -> options.hugePages = true;
+                    case "--compact" -> options.compact = true;
+                    case "--pipelined" -> options.pipelined = true;
+                    case "--render" -> options.renderMode = RenderMode.valueOf(parseValue(args, ++i).toUpperCase());
+                    case "--present" -> options.presentMode = PresentMode.valueOf(parseValue(args, ++i).toUpperCase());
+                    case "--saturation" -> options.densitySaturation = Math.max(1, parseCount(args, ++i));
+                    case "--interact" -> options.interactRadius = Float.parseFloat(parseValue(args, ++i));
+                    case "--gravity" -> options.gravity = Float.parseFloat(parseValue(args, ++i));
+                    case "--mesh" -> options.gravityMesh = parseCount(args, ++i);
+                    case "--zoom" -> options.zoom = Float.parseFloat(parseValue(args, ++i));
+                    case "--reorder" -> options.reorderInterval = Math.max(0, parseCount(args, ++i));
+                    case "--rest-speed" -> options.restSpeed = Float.parseFloat(parseValue(args, ++i));
+                    case "--release" -> options.releaseFrame = Math.max(0, parseCount(args, ++i));
+                    case "--kernel" -> options.kernel = parseKernel(parseValue(args, ++i));
+                    case "--attractors" -> options.attractors = Math.max(0, parseCount(args, ++i));
+                    case "--interact-strength" -> options.interactStrength = Float.parseFloat(parseValue(args, ++i));
+                    case "--save" -> options.savePath = parseValue(args, ++i);
+                    case "--restore" -> options.restorePath = parseValue(args, ++i);
+                    case "--record" -> options.recordPath = parseValue(args, ++i);
+                    case "--record-policy" -> options.recordPolicy = FrameRecorder.policyOf(parseValue(args, ++i));
+                    case "--fixed-step" -> options.fixedStep = true;
+                    case "--input-log" -> {
+                        options.inputLogPath = parseValue(args, ++i);
+                        options.fixedStep = true;
                     }
+                    case "--serve" -> {
+                        options.servePort = parseCount(args, ++i);
+                        options.headless = true;
+                    }
+                    case "--replay" -> {
+                        options.replayPath = parseValue(args, ++i);
+                        options.headless = true;
+                    }
+                    default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
                 }
-                buff[i] = (0xFF << 24) | color;
             }
-        });
+            return options;
+        }
+
+        private static TickKernel parseKernel(String value) {
+            return value.equals("auto") ? null : TickKernel.valueOf(value.toUpperCase());
+        }
+
+        private static int parseCount(String[] args, int i) {
+            return Integer.parseInt(parseValue(args, i).replace("_", ""));
+        }
+
+        private static long parseLong(String[] args, int i) {
+            return Long.parseLong(parseValue(args, i).replace("_", ""));
+        }
+
+        private static String parseValue(String[] args, int i) {
+            if (i >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+            }
+            return args[i];
+        }
     }
 
-    private void processInputRequests() {
-        if (this.isResizeRequested) {
-            this.isResizeRequested = false;
-            this.handleResize(getWidth(), getHeight());
+    /**
+     * Owns the particle state and the worker pool. Has no AWT dependencies so it
+     * can tick and render on machines without a display; callers pass in the
+     * viewport, attractor and pan for each tick and supply the framebuffer.
+     */
+    static class ParticleEngine implements AutoCloseable {
+
+        public final float PULL_FORCE = 800f;
+        public final float MIN_PULL_DIST = 1.0f;
+        public final float FRICTION = 0.9f;
+
+        public static final int DEFAULT_NUM_PARTICLES = 20_000_000;
+        public static final String VECTOR_BITS_PROPERTY = "particlesim.vectorBits";
+        // read once at class init so the JIT treats the species as a constant
+        static final VectorSpecies<Float> F_SPECIES = speciesFor(System.getProperty(VECTOR_BITS_PROPERTY, "preferred"));
+        static final int LANE_SIZE = F_SPECIES.length();
+
+        public final long numParticles;
+        public final int threadCount;
+        final WorkerGroup workers;
+        private final ParticleUpdateTask[] tasks;
+        // particles per chunk the tick aims for, and how many chunks a worker may get
+        static final long CHUNK_PARTICLES = 1 << 16;
+        static final int DEFAULT_CHUNKS_PER_WORKER = 4;
+        private int chunkCount;
+        private int chunksPerWorker;
+        private boolean dynamicChunks;
+        private long[] chunkStarts;
+        // particles [0, active) are ticked and drawn, the rest stay where they are
+        private long activeParticles;
+        // a chunk whose fastest particle is slower than this is left alone while
+        // nothing pushes it, see setRestSpeed
+        static final float DEFAULT_REST_SPEED = 0.05f;
+        private float restSpeedSq = DEFAULT_REST_SPEED * DEFAULT_REST_SPEED;
+        // fastest particle of each chunk after its last integrate, squared, and
+        // the chunks the current tick skips
+        float[] chunkSpeedsSq;
+        boolean[] chunkResting;
+        // what the framebuffer last drawn into already shows
+        private int[] drawnBuffer;
+        private long drawnSerial;
+        private RenderMode drawnMode;
+        private float drawnExposure;
+        final AtomicInteger nextChunk = new AtomicInteger();
+        final FrameStats stats;
+        // forces on top of the mouse attractor, only change between frames
+        public final ForceField forces = new ForceField();
+        // how the world is drawn, only changes between frames
+        public final Camera camera = new Camera();
+        // which integrate loop the tick runs, only changes between frames
+        private volatile TickKernel kernel = TickKernel.VECTOR;
+        // null unless particles push each other, see setInteraction
+        private NeighborGrid neighbors;
+        // null unless particles pull on each other, see setGravity
+        private MeshGravity gravity;
+        // null unless the particles are kept in Z order, see setReorder
+        private MortonOrder order;
+
+        public final ParticleStore store;
+        public final MemorySegment positionsX;
+        public final MemorySegment positionsY;
+        public final MemorySegment velocitiesX;
+        public final MemorySegment velocitiesY;
+        public final MemorySegment colors;
+
+        public final TileRenderer tiles;
+        private int width;
+        private int height;
+        // held while particles are written, so snapshots can copy between ticks
+        final ReentrantLock stateLock = new ReentrantLock();
+        private volatile long placements = 0;
+
+        public ParticleEngine(long numParticles, int threadCount) {
+            this(numParticles, threadCount, false);
+        }
+
+        public ParticleEngine(long numParticles, int threadCount, boolean hugePages) {
+            this(numParticles, threadCount, hugePages, false);
+        }
+
+        public ParticleEngine(long numParticles, int threadCount, boolean hugePages, boolean compact) {
+            this(ParticleStore.allocate(numParticles, hugePages, compact), threadCount);
+        }
+
+        /**
+         * Runs on existing particles, such as a mapped snapshot. The engine closes
+         * the store.
+         */
+        public ParticleEngine(ParticleStore store, int threadCount) {
+            this.numParticles = store.count;
+            this.activeParticles = store.count;
+            this.threadCount = threadCount;
+            this.workers = new WorkerGroup(threadCount);
+            this.tasks = new ParticleUpdateTask[threadCount];
+            this.stats = new FrameStats(threadCount);
+
+            this.store = store;
+            this.positionsX = store.positionsX;
+            this.positionsY = store.positionsY;
+            this.velocitiesX = store.velocitiesX;
+            this.velocitiesY = store.velocitiesY;
+            this.colors = store.colors;
+            this.tiles = new TileRenderer(numParticles, threadCount);
+
+            // create tasks
+            var i = 0;
+            while (i < threadCount) {
+                tasks[i] = new ParticleUpdateTask();
+                i++;
+            }
+            setChunksPerWorker(DEFAULT_CHUNKS_PER_WORKER);
+        }
+
+        /**
+         * Splits the particles into chunks of about {@link #CHUNK_PARTICLES}, but
+         * no more than chunksPerWorker for each worker, which claim them as they
+         * finish their last one. A worker on a slow core or one that gets
+         * descheduled then holds up the frame by at most a chunk. With one chunk
+         * per worker, worker i always gets chunk i, the plain static split.
+         * Every chunk keeps its own tile counts, so more chunks cost more binning
+         * work per tile, and at high resolutions there are fewer chunks than asked
+         * for, see {@link TileRenderer#maxChunks}. Only call between frames.
+         */
+        public void setChunksPerWorker(int chunksPerWorker) {
+            this.chunksPerWorker = chunksPerWorker;
+            layoutChunks();
         }
-        if (this.isResetRequested) {
-            this.isResetRequested = false;
-            if (resetType == resetSquareType) {
-                placeParticlesSquare();
+
+        /**
+         * Limits ticking and drawing to the first count particles, the others
+         * keep their state and pick up from it when they are active again. Only
+         * call between frames.
+         */
+        public void setActiveParticles(long count) {
+            final long active = Math.max(0, Math.min(count, numParticles));
+            if (active != activeParticles) {
+                this.activeParticles = active;
+                layoutChunks();
             }
-            if (resetType == resetSquareMultiType) {
-                placeParticlesSquareMulti();
+        }
+
+        public long getActiveParticles() {
+            return activeParticles;
+        }
+
+        /**
+         * Sets the speed in px/s under which a chunk counts as at rest. While no
+         * force acts on the particles, a tick skips the chunks at rest and keeps
+         * their tile counts, and when every chunk is at rest and the view hasn't
+         * moved it skips binning too, so the last frame stands. 0.05 px/s is
+         * slow enough that friction stops a particle within half a pixel. 0 turns
+         * resting off. Only call between frames.
+         */
+        public void setRestSpeed(float pxPerSecond) {
+            this.restSpeedSq = pxPerSecond > 0 ? pxPerSecond * pxPerSecond : -1f;
+        }
+
+        /**
+         * Makes every chunk move on the next tick, for when particles were
+         * written or the tile counts of resting chunks no longer hold.
+         */
+        void wake() {
+            Arrays.fill(chunkSpeedsSq, Float.POSITIVE_INFINITY);
+        }
+
+        /**
+         * Marks the chunks this tick can skip and returns how many. Nothing is
+         * at rest while forces act, even a slow particle is about to speed up.
+         */
+        private int markResting(boolean calm) {
+            int resting = 0;
+            for (int c = 0; c < chunkCount; c++) {
+                // NaN speeds never rest
+                chunkResting[c] = calm && chunkSpeedsSq[c] <= restSpeedSq;
+                if (chunkResting[c]) {
+                    resting++;
+                }
             }
-            if (resetType == resetCircleType) {
-                placeParticlesCircle();
+            return resting;
+        }
+
+        /**
+         * Picks the integrate loop of the tick, see {@link TickKernel}. Only
+         * call between frames.
+         */
+        public void setKernel(TickKernel kernel) {
+            this.kernel = kernel;
+        }
+
+        public TickKernel getKernel() {
+            return kernel;
+        }
+
+        /**
+         * Makes particles within radius px of each other push apart, or pull
+         * together with a negative strength, see {@link NeighborGrid}. A radius
+         * of 0 turns it off. Only call between frames.
+         */
+        public void setInteraction(float radius, float strength) {
+            if (neighbors != null) {
+                neighbors.close();
+                neighbors = null;
             }
-            if (resetType == resetImageType) {
-                placeParticlesAsImage();
+            if (radius > 0) {
+                if (store.compact) {
+                    throw new IllegalArgumentException("Particle interaction needs float particles, not --compact");
+                }
+                neighbors = new NeighborGrid(numParticles, threadCount, radius, strength);
             }
         }
-    }
 
-    @Override
-    public void mousePressed(MouseEvent e) {
-        if (e.getButton() == MouseEvent.BUTTON1) {
-            isMousePressed = true;
+        NeighborGrid getInteraction() {
+            return neighbors;
         }
-        if (e.getButton() == MouseEvent.BUTTON3) {
-            isPanning = true;
+
+        /**
+         * Makes every particle pull on every other through a mesh of mesh x mesh
+         * cells over the viewport, see {@link MeshGravity}. Strength is the pull
+         * of all the mass at 100 px in px/s^2, 0 turns it off. Only call between
+         * frames.
+         */
+        public void setGravity(float strength, int mesh) {
+            if (strength == 0) {
+                this.gravity = null;
+                return;
+            }
+            if (store.compact) {
+                throw new IllegalArgumentException("Mesh gravity needs float particles, not --compact");
+            }
+            this.gravity = new MeshGravity(mesh, threadCount, strength);
         }
-        mousePosition = e.getPoint();
-    }
 
-    @Override
-    public void mouseReleased(MouseEvent e) {
-        isMousePressed = false;
-        isPanning = false;
-    }
+        MeshGravity getGravity() {
+            return gravity;
+        }
 
-    @Override
-    public void mouseDragged(MouseEvent e) {
-        Point current = e.getPoint();
-        if (isPanning) {
-            int dx = current.x - mousePosition.x;
-            int dy = current.y - mousePosition.y;
-            panDeltaInput.x += dx;
-            panDeltaInput.y += dy;
+        /**
+         * Solves the mesh forces of the active particles for a tick, tick runs
+         * this before moving them.
+         */
+        void solveGravity(float deltaTime) {
+            final long start = System.nanoTime();
+            gravity.solve(this, activeParticles, deltaTime);
+            stats.record(FrameStats.Phase.GRAVITY, System.nanoTime() - start);
         }
 
-        mousePosition = current;
-    }
+        /**
+         * Sorts the particles by the Morton code of their pixel every interval
+         * frames and whenever they have drifted out of order, see
+         * {@link MortonOrder}. An interval of 0 sorts on drift alone, a negative
+         * one turns it off. Only call between frames.
+         */
+        public void setReorder(int interval) {
+            if (order != null) {
+                order.close();
+                order = null;
+            }
+            if (interval >= 0) {
+                order = new MortonOrder(numParticles, threadCount, interval);
+            }
+        }
 
-    @Override
-    public void mouseClicked(MouseEvent e) {
-    }
+        MortonOrder getReorder() {
+            return order;
+        }
 
-    @Override
-    public void mouseEntered(MouseEvent e) {
-    }
+        /**
+         * Sorts the active particles into Z order. Moves every particle, so a
+         * snapshot being saved fails as it would after a reset.
+         */
+        void reorder() {
+            final long start = System.nanoTime();
+            stateLock.lock();
+            try {
+                placements++;
+                order.sort(this, activeParticles);
+                wake();
+            } finally {
+                stateLock.unlock();
+            }
+            stats.record(FrameStats.Phase.REORDER, System.nanoTime() - start);
+        }
 
-    @Override
-    public void mouseExited(MouseEvent e) {
-    }
+        /**
+         * Packs the attractor and the forces for the next tick.
+         */
+        void packForces(float deltaTime, float attractorX, float attractorY, boolean attractorActive) {
+            forces.pack(deltaTime, attractorX, attractorY, attractorActive, PULL_FORCE, MIN_PULL_DIST);
+        }
 
-    @Override
-    public void mouseMoved(MouseEvent e) {
-    }
+        /**
+         * Adds one tick's neighbor forces to the velocities of the active
+         * particles, tick runs this before moving them.
+         */
+        void interact(float deltaTime) {
+            final long start = System.nanoTime();
+            neighbors.apply(this, activeParticles, deltaTime);
+            stats.record(FrameStats.Phase.INTERACT, System.nanoTime() - start);
+        }
 
-    @Override
-    public void componentResized(ComponentEvent e) {
-        this.isResizeRequested = true;
-    }
+        private void layoutChunks() {
+            final long vectorizedEndIndex = (activeParticles / LANE_SIZE) * LANE_SIZE;
+            final long wanted = (activeParticles + CHUNK_PARTICLES - 1) / CHUNK_PARTICLES;
+            // a chunk's count in one tile has to fit the int tile counts
+            final long fewest = Math.max(threadCount, (activeParticles + Integer.MAX_VALUE - 1) / Integer.MAX_VALUE);
+            final int chunks = chunksPerWorker <= 1 ? (int) fewest
+                    : (int) Math.max(fewest, Math.min(wanted,
+                            Math.min((long) threadCount * chunksPerWorker, tiles.maxChunks())));
+            final long[] starts = new long[chunks + 1];
+            for (int c = 0; c < chunks; c++) {
+                // whole vectors so the tail that doesn't fill one is all in the last chunk
+                starts[c] = vectorizedEndIndex * c / chunks / LANE_SIZE * LANE_SIZE;
+            }
+            starts[chunks] = activeParticles;
+            this.chunkStarts = starts;
+            this.chunkCount = chunks;
+            this.dynamicChunks = chunks > threadCount || chunksPerWorker > 1;
+            this.chunkSpeedsSq = new float[chunks];
+            this.chunkResting = new boolean[chunks];
+            wake();
+            tiles.setChunkCount(chunks);
+        }
 
-    private void handleResize(int w, int h) {
-        this.width = w;
-        this.height = h;
-        this.setSize(w, h);
-        this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        public int getChunkCount() {
+            return chunkCount;
+        }
 
-        threadPixelBuffers = new int[CPU_COUNT][];
-        for (int i = 0; i < CPU_COUNT; i++) {
-            threadPixelBuffers[i] = new int[w * h];
+        long chunkStart(int chunk) {
+            return chunkStarts[chunk];
         }
-    }
 
-    @Override
-    public void componentMoved(ComponentEvent e) {
-    }
+        /**
+         * The next chunk for the worker to take, or -1 when the phase is done.
+         * Call with the number of chunks the worker already took this phase.
+         */
+        int claimChunk(int id, int taken) {
+            if (!dynamicChunks) {
+                return taken == 0 ? id : -1;
+            }
+            final int chunk = nextChunk.getAndIncrement();
+            return chunk < chunkCount ? chunk : -1;
+        }
 
-    @Override
-    public void componentShown(ComponentEvent e) {
-    }
+        /**
+         * Builds the engine the options ask for. A restored run takes its
+         * particle count, storage and viewport from the snapshot and writes them
+         * back into the options.
+         */
+        public static ParticleEngine create(SimOptions options) {
+            ParticleEngine engine;
+            if (options.restorePath != null) {
+                final ParticleSnapshot snapshot;
+                try {
+                    snapshot = ParticleSnapshot.open(Path.of(options.restorePath));
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not restore " + options.restorePath, e);
+                }
+                options.particles = snapshot.store.count;
+                options.compact = snapshot.store.compact;
+                options.width = Math.max(1, snapshot.width);
+                options.height = Math.max(1, snapshot.height);
+                engine = new ParticleEngine(snapshot.store, options.threads);
+            } else {
+                engine = new ParticleEngine(options.particles, options.threads, options.hugePages, options.compact);
+            }
+            engine.setRenderMode(options.renderMode);
+            engine.setDensitySaturation(options.densitySaturation);
+            engine.setChunksPerWorker(options.chunksPerWorker);
+            if (options.interactRadius > 0) {
+                engine.setInteraction(options.interactRadius, options.interactStrength);
+            }
+            if (options.gravity != 0) {
+                engine.setGravity(options.gravity, options.gravityMesh);
+            }
+            engine.setReorder(options.reorderInterval);
+            engine.setRestSpeed(options.restSpeed);
+            engine.setKernel(options.kernel != null ? options.kernel : KernelTuner.tune(options, System.out));
+            engine.camera.zoomAt(options.width / 2f, options.height / 2f, options.zoom);
+            engine.forces.addRing(options.attractors, options.width / 2f, options.height / 2f,
+                    Math.min(options.width, options.height) / 3f, engine.PULL_FORCE);
+            return engine;
+        }
 
-    @Override
-    public void componentHidden(ComponentEvent e) {
-    }
+        /**
+         * Maps a vector width setting to a float species. Widths wider than the
+         * preferred shape would silently fall back to the slow java implementation
+         * of the vector API, so those are rejected.
+         */
+        static VectorSpecies<Float> speciesFor(String bits) {
+            VectorSpecies<Float> species = switch (bits) {
+                case "preferred" -> FloatVector.SPECIES_PREFERRED;
+                case "128" -> FloatVector.SPECIES_128;
+                case "256" -> FloatVector.SPECIES_256;
+                case "512" -> FloatVector.SPECIES_512;
+                default -> throw new IllegalArgumentException("Unknown vector width: " + bits);
+            };
+            if (species.vectorBitSize() > FloatVector.SPECIES_PREFERRED.vectorBitSize()) {
+                throw new IllegalArgumentException(bits + " bit vectors are not accelerated on this cpu, max is "
+                        + FloatVector.SPECIES_PREFERRED.vectorBitSize());
+            }
+            return species;
+        }
 
-    public int calculateOklabColor(float L, float a, float b) {
-        float Lp = L + 0.3963377774f * a + 0.2158037573f * b;
-        float ap = L - 0.1055613423f * a + 0.0782353724f * b;
-        float bp = L - 0.3081758091f * a - 1.0732513936f * b;
-        float l = Lp * Lp * Lp;
-        float m = ap * ap * ap;
-        float s = bp * bp * bp;
-        float R_linear = 4.0767416621f * l - 3.3077115913f * m + 0.2309699292f * s;
-        float G_linear = -1.2684380046f * l + 2.6097574011f * m - 0.3413193965f * s;
-        float B_linear = -0.0041960863f * l - 0.7034186147f * m + 1.7076147010f * s;
-        float R_nonlinear;
-        if (R_linear <= 0.0031308f) {
-            R_nonlinear = R_linear * 12.92f;
-        } else {
-            R_nonlinear = (float) (1.055 * Math.pow(R_linear, 1.0f / 2.4f) - 0.055);
+        public void setRenderMode(RenderMode mode) {
+            tiles.mode = mode;
         }
 
-        float G_nonlinear;
-        if (G_linear <= 0.0031308f) {
-            G_nonlinear = G_linear * 12.92f;
-        } else {
-            G_nonlinear = (float) (1.055 * Math.pow(G_linear, 1.0f / 2.4f) - 0.055);
+        public RenderMode getRenderMode() {
+            return tiles.mode;
         }
 
-        float B_nonlinear;
-        if (B_linear <= 0.0031308f) {
-            B_nonlinear = B_linear * 12.92f;
-        } else {
-            B_nonlinear = (float) (1.055 * Math.pow(B_linear, 1.0f / 2.4f) - 0.055);
+        /**
+         * Sets how many particles have to land on a pixel before density
+         * rendering draws it at full brightness.
+         */
+        public void setDensitySaturation(int hits) {
+            tiles.setDensitySaturation(hits);
         }
 
-        int r = (int) (R_nonlinear * 255.0f);
-        int g = (int) (G_nonlinear * 255.0f);
-        int b_val = (int) (B_nonlinear * 255.0f);
+        public int getWidth() {
+            return width;
+        }
 
-        r = Math.max(0, Math.min(255, r));
-        g = Math.max(0, Math.min(255, g));
-        b_val = Math.max(0, Math.min(255, b_val));
+        public int getHeight() {
+            return height;
+        }
 
-        return (0xFF << 24) | (r << 16) | (g << 8) | b_val;
-    }
+        public void resize(int w, int h) {
+            this.width = w;
+            this.height = h;
+            tiles.resize(w, h);
+            this.drawnBuffer = null;
+            // the chunk cap follows the tile count, and wakes every chunk
+            layoutChunks();
+        }
+
+        /**
+         * Moves the particles by one tick and bins them for drawing through the
+         * camera. The attractor is in world coordinates.
+         */
+        public void tick(float deltaTime, float attractorX, float attractorY, boolean attractorActive, float vScale) {
+            packForces(deltaTime, attractorX, attractorY, attractorActive);
+            if (tiles.setView(camera.originX, camera.originY, camera.zoom)) {
+                // resting chunks were counted into the old tiles
+                wake();
+            }
+            final boolean calm = forces.packedCount == 0 && forces.driftX == 0 && forces.driftY == 0
+                    && gravity == null && neighbors == null;
+            final int resting = markResting(calm);
+            stats.recordResting(resting, chunkCount);
+            if (resting == chunkCount) {
+                // nothing moves and the bins of the last frame still hold
+                stats.skip(FrameStats.Phase.REORDER);
+                stats.skip(FrameStats.Phase.INTEGRATE);
+                stats.skip(FrameStats.Phase.BIN);
+                return;
+            }
+            for (int i = 0; i < threadCount; i++) {
+                tasks[i].updateParams(i, this, deltaTime, vScale);
+            }
+            final long integrateStart;
+            stateLock.lock();
+            try {
+                if (order != null) {
+                    if (order.due(this, activeParticles)) {
+                        reorder();
+                        markResting(false);
+                    } else {
+                        stats.skip(FrameStats.Phase.REORDER);
+                    }
+                }
+                if (gravity != null) {
+                    solveGravity(deltaTime);
+                }
+                if (neighbors != null) {
+                    interact(deltaTime);
+                }
+                integrateStart = System.nanoTime();
+                nextChunk.set(0);
+                workers.run(id -> tasks[id].run());
+            } finally {
+                stateLock.unlock();
+            }
+            final long binStart = System.nanoTime();
+            stats.record(FrameStats.Phase.INTEGRATE, binStart - integrateStart);
 
-    @Override
-    public void keyTyped(KeyEvent e) {
-        if (e.getKeyChar() == ' ') {
-            this.isSlowDownRequested = true;
+            binParticles();
+            stats.record(FrameStats.Phase.BIN, System.nanoTime() - binStart);
         }
-        if (e.getKeyChar() == '2') {
-            this.isResetRequested = true;
-            this.resetType = resetSquareMultiType;
+
+        /**
+         * Second half of the tile counting sort. Turns the per-chunk tile counts
+         * gathered during the tick into write offsets and moves every particle's
+         * packed pixel into its tile's bin.
+         */
+        void binParticles() {
+            workers.run(tiles::sumTiles);
+            tiles.scanRanges();
+            workers.run(tiles::assignOffsets);
+            nextChunk.set(0);
+            workers.run(id -> tasks[id].binTiles());
+            tiles.publish();
         }
-        if (e.getKeyChar() == '1') {
-            this.isResetRequested = true;
-            this.resetType = resetSquareType;
+
+        /**
+         * Draws the last ticked frame.
+         */
+        public void render(int[] buff) {
+            render(buff, tiles.frontFrame());
         }
-        if (e.getKeyChar() == '3') {
-            this.isResetRequested = true;
-            this.resetType = resetCircleType;
+
+        /**
+         * Draws a frame taken from {@link #latestFrame}. Can run alongside the
+         * next tick when double buffered.
+         */
+        void render(int[] buff, TileRenderer.BinnedFrame frame) {
+            if (buff.length != width * height) {
+                throw new IllegalArgumentException(
+                        "Framebuffer holds " + buff.length + " pixels, viewport needs " + width * height);
+            }
+            final long start = System.nanoTime();
+            this.drawnMode = tiles.mode;
+            this.drawnExposure = tiles.densityExposure();
+            tiles.beginRasterize();
+            workers.run(id -> tiles.rasterize(id, buff, frame));
+            this.drawnBuffer = buff;
+            this.drawnSerial = frame.serial;
+            stats.record(FrameStats.Phase.RASTERIZE, System.nanoTime() - start);
         }
-        if (e.getKeyChar() == '4') {
-            this.isResetRequested = true;
-            this.resetType = resetImageType;
+
+        /**
+         * Draws the frame unless buff already shows it, which it does after an
+         * idle tick. Returns whether it drew.
+         */
+        boolean renderIfChanged(int[] buff, TileRenderer.BinnedFrame frame) {
+            if (buff == drawnBuffer && frame.serial == drawnSerial && tiles.mode == drawnMode
+                    && tiles.densityExposure() == drawnExposure) {
+                stats.skip(FrameStats.Phase.RASTERIZE);
+                return false;
+            }
+            render(buff, frame);
+            return true;
         }
-        if (e.getKeyChar() == 'r') {
-            this.shouldReturnToStart = !this.shouldReturnToStart;
+
+        TileRenderer.BinnedFrame latestFrame() {
+            return tiles.frontFrame();
         }
-    }
 
-    @Override
-    public void keyPressed(KeyEvent e) {
-        keysPressed.add(e.getKeyChar());
-    }
+        /**
+         * Lets a tick bin into a second buffer while the previous frame is drawn,
+         * see {@link FramePipeline}. Only call between frames.
+         */
+        public void setDoubleBuffered(boolean doubleBuffered) {
+            tiles.setDoubleBuffered(doubleBuffered);
+        }
 
-    @Override
-    public void keyReleased(KeyEvent e) {
-        keysPressed.remove(e.getKeyChar());
-    }
+        @Override
+        public void close() {
+            workers.close();
+            store.close();
+            tiles.close();
+            if (neighbors != null) {
+                neighbors.close();
+            }
+            if (order != null) {
+                order.close();
+            }
+        }
 
-    private void placeParticlesSquare() {
-        final float centerX = this.width / 2.0f;
-        final float centerY = this.height / 2.0f;
+        public static int calculateOklabColor(float L, float a, float b) {
+            float Lp = L + 0.3963377774f * a + 0.2158037573f * b;
+            float ap = L - 0.1055613423f * a + 0.0782353724f * b;
+            float bp = L - 0.3081758091f * a - 1.0732513936f * b;
+            float l = Lp * Lp * Lp;
+            float m = ap * ap * ap;
+            float s = bp * bp * bp;
+            float R_linear = 4.0767416621f * l - 3.3077115913f * m + 0.2309699292f * s;
+            float G_linear = -1.2684380046f * l + 2.6097574011f * m - 0.3413193965f * s;
+            float B_linear = -0.0041960863f * l - 0.7034186147f * m + 1.7076147010f * s;
+            float R_nonlinear;
+            if (R_linear <= 0.0031308f) {
+                R_nonlinear = R_linear * 12.92f;
+            } else {
+                R_nonlinear = (float) (1.055 * Math.pow(R_linear, 1.0f / 2.4f) - 0.055);
+            }
+
+            float G_nonlinear;
+            if (G_linear <= 0.0031308f) {
+                G_nonlinear = G_linear * 12.92f;
+            } else {
+                G_nonlinear = (float) (1.055 * Math.pow(G_linear, 1.0f / 2.4f) - 0.055);
+            }
+
+            float B_nonlinear;
+            if (B_linear <= 0.0031308f) {
+                B_nonlinear = B_linear * 12.92f;
+            } else {
+                B_nonlinear = (float) (1.055 * Math.pow(B_linear, 1.0f / 2.4f) - 0.055);
+            }
 
-        final float L_CONSTANT = 0.7f;
-        final float C_CONSTANT = 0.25f;
+            int r = (int) (R_nonlinear * 255.0f);
+            int g = (int) (G_nonlinear * 255.0f);
+            int b_val = (int) (B_nonlinear * 255.0f);
 
-        for (int i = 0; i < NUM_PARTICLES; i++) {
-            positionsX[i] = (float) this.width * fastRandomFloat();
-            positionsY[i] = (float) this.height * fastRandomFloat();
-            // startX[i] = positionsX[i];
-            // startY[i] = positionsY[i];
-            velocitiesX[i] = 0;
-            velocitiesY[i] = 0;
+            r = Math.max(0, Math.min(255, r));
+            g = Math.max(0, Math.min(255, g));
+            b_val = Math.max(0, Math.min(255, b_val));
 
-            float dx = positionsX[i] - centerX;
-            float dy = positionsY[i] - centerY;
-            double angleRadians = Math.atan2(dy, dx);
-            float h = (float) ((angleRadians + Math.PI) / (2.0 * Math.PI));
-            float a = (float) (C_CONSTANT * Math.cos(angleRadians));
-            float b = (float) (C_CONSTANT * Math.sin(angleRadians));
-            colors[i] = calculateOklabColor(L_CONSTANT, a, b);
+            return (0xFF << 24) | (r << 16) | (g << 8) | b_val;
         }
-    }
 
-    private void placeParticlesCircle() {
-        final float centerX = this.width / 2.0f;
-        final float centerY = this.height / 2.0f;
+        public void placeParticlesSquare() {
+            final float w = this.width;
+            final float h = this.height;
+            final float centerX = w / 2.0f;
+            final float centerY = h / 2.0f;
+            store.useHuePalette(width, height);
 
-        final float L_CONSTANT = 0.7f;
-        final float C_CONSTANT = 0.25f;
-        final float radius = Math.min(this.width, this.height) / 2;
+            placeInParallel((from, to, random) -> {
+                for (long i = from; i < to; i++) {
+                    float x = w * random.nextFloat();
+                    float y = h * random.nextFloat();
+                    int hue = OklabTable.hueIndex(x - centerX, y - centerY);
+                    store.place(i, x, y, OklabTable.color(hue), OklabTable.hueFraction(hue));
+                }
+            });
+        }
 
-        for (int i = 0; i < NUM_PARTICLES; i++) {
-            var d = fastRandomFloat() * radius;
-            var angle = fastRandomFloat() * 2 * Math.PI;
-            var cosA = (float) Math.cos(angle);
-            var sinA = (float) Math.sin(angle);
-            positionsX[i] = cosA * d + centerX;
-            positionsY[i] = sinA * d + centerY;
-            // startX[i] = positionsX[i];
-            // startY[i] = positionsY[i];
-            velocitiesX[i] = 0;
-            velocitiesY[i] = 0;
+        public void placeParticlesCircle() {
+            final float centerX = this.width / 2.0f;
+            final float centerY = this.height / 2.0f;
+            final float radius = Math.min(this.width, this.height) / 2;
+            store.useHuePalette(width, height);
 
-            float a = (float) (C_CONSTANT * cosA);
-            float b = (float) (C_CONSTANT * sinA);
-            colors[i] = calculateOklabColor(L_CONSTANT, a, b);
+            placeInParallel((from, to, random) -> {
+                for (long i = from; i < to; i++) {
+                    // a uniformly random direction without any trig, pick points in
+                    // the unit square until one lands inside the circle
+                    float ux;
+                    float uy;
+                    float lengthSq;
+                    do {
+                        ux = 2 * random.nextFloat() - 1;
+                        uy = 2 * random.nextFloat() - 1;
+                        lengthSq = ux * ux + uy * uy;
+                    } while (lengthSq > 1 || lengthSq < 1e-12f);
+                    float d = random.nextFloat() * radius / (float) Math.sqrt(lengthSq);
+                    int hue = OklabTable.hueIndex(ux, uy);
+                    store.place(i, ux * d + centerX, uy * d + centerY, OklabTable.color(hue),
+                            OklabTable.hueFraction(hue));
+                }
+            });
         }
-    }
 
-    private void placeParticlesAsImage() {
-        float width = this.width;
-        float height = this.height;
-        SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                JFileChooser fileChooser = new JFileChooser();
-                fileChooser.setDialogTitle("Select Image Input File");
-                FileNameExtensionFilter filter = new FileNameExtensionFilter(
-                        "Image Files (JPG, PNG, GIF)", "jpg", "jpeg", "png", "gif");
-                fileChooser.setFileFilter(filter);
-                int userSelection = fileChooser.showOpenDialog(null);
-
-                if (userSelection != JFileChooser.APPROVE_OPTION) {
-                    return;
+        /**
+         * Lays the particles out as the pixels of an image centered in the
+         * viewport, repeating the image when there are more particles than pixels.
+         */
+        public void placeParticlesFromImage(BufferedImage sourceImage) {
+            final float width = this.width;
+            final float height = this.height;
+            final long N = numParticles;
+            final int particleGridSide = (int) Math.floor(Math.sqrt(N));
+            final int sourceW = sourceImage.getWidth();
+            final int sourceH = sourceImage.getHeight();
+
+            float scaleFactorW = (float) particleGridSide / sourceW;
+            float scaleFactorH = (float) particleGridSide / sourceH;
+            float scaleFactor = Math.min(scaleFactorW, scaleFactorH);
+            final int scaledW = (int) (sourceW * scaleFactor);
+            final int scaledH = (int) (sourceH * scaleFactor);
+
+            final int pixelCount = scaledW * scaledH;
+
+            BufferedImage scaledImage = new BufferedImage(scaledW, scaledH, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = scaledImage.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            g.drawImage(sourceImage, 0, 0, scaledW, scaledH, null);
+            g.dispose();
+            final int[] pixels = ((DataBufferInt) scaledImage.getRaster().getDataBuffer()).getData();
+            // whole pixels so particles sit on pixel centers, an odd margin would
+            // put them on pixel edges where compact rounding splits rows
+            final float centerImageX = (float) Math.floor((width - scaledW) / 2.0f);
+            final float centerImageY = (float) Math.floor((height - scaledH) / 2.0f);
+            store.useRgbPalette(this.width, this.height);
+
+            // every worker lays out a band of rows, then repeats the image over
+            // its share of the remaining particles
+            final int bands = workers.size();
+            writeParticles(id -> {
+                final int rowEnd = (int) ((long) scaledH * (id + 1) / bands);
+                for (int y = (int) ((long) scaledH * id / bands); y < rowEnd; y++) {
+                    for (int x = 0; x < scaledW; x++) {
+                        final int index = y * scaledW + x;
+                        store.place(index, centerImageX + x + 0.5f, centerImageY + y + 0.5f, pixels[index] | 0xFF000000,
+                                0f);
+                    }
                 }
-                File selectedFile = fileChooser.getSelectedFile();
-                if (selectedFile == null || !selectedFile.exists()) {
-                    return;
+            });
+            if (pixelCount == 0) {
+                return;
+            }
+            final long repeats = N - pixelCount;
+            writeParticles(id -> {
+                final long end = pixelCount + repeats * (id + 1) / bands;
+                for (long i = pixelCount + repeats * id / bands; i < end; i++) {
+                    // startX[i] = baseX[sourceIndex];
+                    // startY[i] = baseY[sourceIndex];
+                    store.copy(i % pixelCount, i);
                 }
+            });
+        }
 
-                try {
-                    BufferedImage sourceImage = ImageIO.read(selectedFile);
-                    if (sourceImage == null) {
-                        JOptionPane.showMessageDialog(
-                                null,
-                                "Error: File is not a valid image format.",
-                                "Loading Error",
-                                JOptionPane.ERROR_MESSAGE);
-                        return;
-                    }
+        public void placeParticlesSquareMulti() {
+            final float EPSILON = 1.0f;
 
-                    final int N = NUM_PARTICLES;
-                    final int particleGridSide = (int) Math.floor(Math.sqrt(N));
-                    final int sourceW = sourceImage.getWidth();
-                    final int sourceH = sourceImage.getHeight();
+            final int NUM_CENTERS = 5;
+            final float[] targetX = new float[NUM_CENTERS];
+            final float[] targetY = new float[NUM_CENTERS];
 
-                    float scaleFactorW = (float) particleGridSide / sourceW;
-                    float scaleFactorH = (float) particleGridSide / sourceH;
-                    float scaleFactor = Math.min(scaleFactorW, scaleFactorH);
-                    int scaledW = (int) (sourceW * scaleFactor);
-                    int scaledH = (int) (sourceH * scaleFactor);
+            final float margin = 0.12f;
+            final float minX = this.width * margin;
+            final float maxX = this.width * (1.0f - margin);
+            final float rangeX = maxX - minX;
 
-                    final int pixelCount = scaledW * scaledH;
+            final float minY = this.height * margin;
+            final float maxY = this.height * (1.0f - margin);
+            final float rangeY = maxY - minY;
 
-                    BufferedImage scaledImage = new BufferedImage(scaledW, scaledH, BufferedImage.TYPE_INT_RGB);
-                    Graphics2D g = scaledImage.createGraphics();
-                    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
-                            RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-                    g.drawImage(sourceImage, 0, 0, scaledW, scaledH, null);
-                    g.dispose();
-                    final float centerImageX = (width - scaledW) / 2.0f;
-                    final float centerImageY = (height - scaledH) / 2.0f;
-
-                    int baseIndex = 0;
-                    for (int y = 0; y < scaledH; y++) {
-                        for (int x = 0; x < scaledW; x++) {
-                            positionsX[baseIndex] = centerImageX + x + 0.5f;
-                            positionsY[baseIndex] = centerImageY + y + 0.5f;
-                            velocitiesX[baseIndex] = 0;
-                            velocitiesY[baseIndex] = 0;
-                            colors[baseIndex] = scaledImage.getRGB(x, y);
-                            baseIndex++;
-                        }
-                    }
+            for (int j = 0; j < NUM_CENTERS; j++) {
+                targetX[j] = minX + rangeX * fastRandomFloat();
+                targetY[j] = minY + rangeY * fastRandomFloat();
+            }
+            final float w = this.width;
+            final float h = this.height;
+            store.useHuePalette(width, height);
 
-                    for (int i = baseIndex; i < N; i++) {
-                        int idx = i % pixelCount;
-                        positionsX[i] = positionsX[idx];
-                        positionsY[i] = positionsY[idx];
-                        // startX[i] = baseX[sourceIndex];
-                        // startY[i] = baseY[sourceIndex];
-                        velocitiesX[i] = 0;
-                        velocitiesY[i] = 0;
-                        colors[i] = colors[idx];
+            placeInParallel((from, to, random) -> {
+                for (long i = from; i < to; i++) {
+                    float x = w * random.nextFloat();
+                    float y = h * random.nextFloat();
+
+                    // blend the unit directions away from each center, the hue
+                    // wheel color of a direction (dx, dy) / r is just a scaled a, b
+                    float totalWeight = 0;
+                    float blendedA = 0;
+                    float blendedB = 0;
+                    for (int j = 0; j < NUM_CENTERS; j++) {
+                        float dxToCenter = x - targetX[j];
+                        float dyToCenter = y - targetY[j];
+                        float distSq = dxToCenter * dxToCenter + dyToCenter * dyToCenter;
+                        float weight = 1.0f / (distSq + EPSILON);
+                        totalWeight += weight;
+                        if (distSq > 0) {
+                            float weightOverDist = weight / (float) Math.sqrt(distSq);
+                            blendedA += dxToCenter * weightOverDist;
+                            blendedB += dyToCenter * weightOverDist;
+                        } else {
+                            blendedA += weight;
+                        }
                     }
 
-                } catch (Exception e) {
-                    JOptionPane.showMessageDialog(
-                            null,
-                            "Error reading file: " + e.getMessage(),
-                            "Loading Error",
-                            JOptionPane.ERROR_MESSAGE);
-                    e.printStackTrace();
+                    float finalA = blendedA / totalWeight;
+                    float finalB = blendedB / totalWeight;
+                    int hue = OklabTable.hueIndex(finalA, finalB);
+                    float chroma = (float) Math.sqrt(finalA * finalA + finalB * finalB);
+                    store.place(i, x, y, OklabTable.color(chroma, hue), OklabTable.hueFraction(hue));
                 }
-            }
-        });
-    }
-
-    private void placeParticlesSquareMulti() {
-        final float L_CONSTANT = 0.7f;
-        final float C_CONSTANT = 0.25f;
-        final float EPSILON = 1.0f;
+            });
+        }
 
-        final int NUM_CENTERS = 5;
-        final float[] targetX = new float[NUM_CENTERS];
-        final float[] targetY = new float[NUM_CENTERS];
+        /**
+         * Fills [from, to) using its own random stream.
+         */
+        @FunctionalInterface
+        interface Placement {
+            void place(long from, long to, BlockRandom random);
+        }
 
-        final float margin = 0.12f;
-        final float minX = this.width * margin;
-        final float maxX = this.width * (1.0f - margin);
-        final float rangeX = maxX - minX;
+        static final long PLACEMENT_BLOCK = 1 << 16;
 
-        final float minY = this.height * margin;
-        final float maxY = this.height * (1.0f - margin);
-        final float rangeY = maxY - minY;
+        /**
+         * Hands out fixed size blocks of particles to the workers. Each block
+         * draws from a stream seeded by its index, so a layout is the same for
+         * any thread count and a reset takes roughly a frame.
+         */
+        private void placeInParallel(Placement placement) {
+            final long seed = nextSeed();
+            final long blocks = (numParticles + PLACEMENT_BLOCK - 1) / PLACEMENT_BLOCK;
+            final AtomicLong nextBlock = new AtomicLong();
+            writeParticles(id -> {
+                final BlockRandom random = new BlockRandom();
+                long block;
+                while ((block = nextBlock.getAndIncrement()) < blocks) {
+                    random.seed(seed, block);
+                    final long from = block * PLACEMENT_BLOCK;
+                    placement.place(from, Math.min(from + PLACEMENT_BLOCK, numParticles), random);
+                }
+            });
+        }
 
-        for (int j = 0; j < NUM_CENTERS; j++) {
-            targetX[j] = minX + rangeX * fastRandomFloat();
-            targetY[j] = minY + rangeY * fastRandomFloat();
+        /**
+         * Runs a phase that overwrites particles, which invalidates a snapshot
+         * being saved.
+         */
+        private void writeParticles(IntConsumer phase) {
+            stateLock.lock();
+            try {
+                placements++;
+                workers.run(phase);
+                wake();
+            } finally {
+                stateLock.unlock();
+            }
         }
 
-        for (int i = 0; i < NUM_PARTICLES; i++) {
-            positionsX[i] = (float) this.width * fastRandomFloat();
-            positionsY[i] = (float) this.height * fastRandomFloat();
-            // startX[i] = positionsX[i];
-            // startY[i] = positionsY[i];
-            velocitiesX[i] = 0;
-            velocitiesY[i] = 0;
+        /**
+         * Number of placement phases and reorders so far.
+         */
+        long placementCount() {
+            return placements;
+        }
 
-            float totalWeight = 0;
-            double blendedA = 0;
-            double blendedB = 0;
+        /**
+         * xorshift64 like {@link #fastRandomFloat}, with the seed spread by a
+         * splitmix64 step so streams of neighboring blocks are unrelated.
+         */
+        static final class BlockRandom {
+            private static final float INT_TO_UNIT = 1.0f / 4294967296.0f;
+            private long state;
 
-            for (int j = 0; j < NUM_CENTERS; j++) {
-                float dxToCenter = positionsX[i] - targetX[j];
-                float dyToCenter = positionsY[i] - targetY[j];
-                float distSq = dxToCenter * dxToCenter + dyToCenter * dyToCenter;
-                float weight = 1.0f / (distSq + EPSILON);
-                totalWeight += weight;
-                double angleRadians = Math.atan2(dyToCenter, dxToCenter);
-                double centerA = C_CONSTANT * Math.cos(angleRadians);
-                double centerB = C_CONSTANT * Math.sin(angleRadians);
+            void seed(long seed, long block) {
+                long z = seed + (block + 1) * 0x9E3779B97F4A7C15L;
+                z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+                z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+                z ^= z >>> 31;
+                state = z == 0 ? 1 : z;
+            }
 
-                blendedA += centerA * weight;
-                blendedB += centerB * weight;
+            float nextFloat() {
+                state ^= (state << 13);
+                state ^= (state >>> 17);
+                state ^= (state << 5);
+                return (state & 0xFFFFFFFFL) * INT_TO_UNIT;
             }
+        }
+
+        private long xorshiftState = 1;
 
-            float finalA = (float) (blendedA / totalWeight);
-            float finalB = (float) (blendedB / totalWeight);
+        private float fastRandomFloat() {
+            final float INT_TO_UNIT = 1.0f / 4294967296.0f;
+            xorshiftState ^= (xorshiftState << 13);
+            xorshiftState ^= (xorshiftState >>> 17);
+            xorshiftState ^= (xorshiftState << 5);
+
+            return (xorshiftState & 0xFFFFFFFFL) * INT_TO_UNIT;
+        }
 
-            colors[i] = calculateOklabColor(L_CONSTANT, finalA, finalB);
+        private long nextSeed() {
+            fastRandomFloat();
+            return xorshiftState;
         }
     }
 
-    private long xorshiftState = 1;
+    /**
+     * Precomputed sRGB colors for the Oklab hue wheel at L 0.7 the placements
+     * use, by hue and chroma, so placing particles needs no trig or pow. Hues are
+     * indexed by diamond angle, a cheap monotonic stand in for atan2 that runs
+     * 0..4 around the circle, with the table entries spaced evenly in it.
+     */
+    static final class OklabTable {
+        static final float LIGHTNESS = 0.7f;
+        static final float MAX_CHROMA = 0.25f;
+        static final int HUE_STEPS = 1024;
+        static final int CHROMA_STEPS = 32;
 
-    private float fastRandomFloat() {
-        final float INT_TO_UNIT = 1.0f / 4294967296.0f;
-        xorshiftState ^= (xorshiftState << 13);
-        xorshiftState ^= (xorshiftState >>> 17);
-        xorshiftState ^= (xorshiftState << 5);
+        // rows of HUE_STEPS colors from chroma 0 up to MAX_CHROMA
+        private static final int[] COLORS = new int[(CHROMA_STEPS + 1) * HUE_STEPS];
+        // hue as a fraction of a turn starting at -pi, what compact palettes index by
+        private static final float[] HUE_FRACTIONS = new float[HUE_STEPS];
 
-        return (xorshiftState & 0xFFFFFFFFL) * INT_TO_UNIT;
-    }
-}
+        static {
+            for (int k = 0; k < HUE_STEPS; k++) {
+                double t = (k + 0.5) * 4.0 / HUE_STEPS;
+                int quadrant = (int) t;
+                double f = t - quadrant;
+                double angle = quadrant * Math.PI / 2 + Math.atan2(f, 1 - f);
+                if (angle > Math.PI) {
+                    angle -= 2 * Math.PI;
+                }
+                HUE_FRACTIONS[k] = (float) ((angle + Math.PI) / (2 * Math.PI));
+                for (int c = 0; c <= CHROMA_STEPS; c++) {
+                    double chroma = MAX_CHROMA * c / CHROMA_STEPS;
+                    COLORS[c * HUE_STEPS + k] = ParticleEngine.calculateOklabColor(LIGHTNESS,
+                            (float) (chroma * Math.cos(angle)), (float) (chroma * Math.sin(angle)));
+                }
+            }
+        }
 
-class ParticleUpdateTask implements Runnable {
-    private static final VectorSpecies<Float> F_SPECIES = FloatVector.SPECIES_PREFERRED;
-    private static final VectorSpecies<Integer> I_SPECIES = IntVector.SPECIES_PREFERRED;
-
-    private static final int LANE_SIZE = F_SPECIES.length();
-
-    private int startIndex;
-    private int endIndex;
-    private ParticlePanel panel;
-    private float deltaTime;
-    private int id;
-    private int panDx;
-    private int panDy;
-    private float vScale;
-
-    public ParticleUpdateTask() {
-    }
-
-    public void updateParams(int id, int start, int end, ParticlePanel panel, float deltaTime, int panX, int panY,
-            float vScale) {
-        this.startIndex = start;
-        this.endIndex = end;
-        this.panel = panel;
-        this.deltaTime = deltaTime;
-        this.id = id;
-        this.panDx = panX;
-        this.panDy = panY;
-        this.vScale = vScale;
-    }
-
-    @Override
-    public void run() {
-        final float[] positionsX = panel.positionsX;
-        final float[] positionsY = panel.positionsY;
-        final float[] velocitiesX = panel.velocitiesX;
-        final float[] velocitiesY = panel.velocitiesY;
-        final int[] colors = panel.colors;
-        final int w = panel.getWidth();
-        final int h = panel.getHeight();
-
-        // Constants derived from ParticlePanel state
-        final FloatVector MOUSE_X_VEC = FloatVector.broadcast(F_SPECIES, (float) panel.mousePosition.x);
-        final FloatVector MOUSE_Y_VEC = FloatVector.broadcast(F_SPECIES, (float) panel.mousePosition.y);
-        final float minPullDist = panel.MIN_PULL_DIST;
-        final float gf = panel.PULL_FORCE * deltaTime;
-        final float frictionScalar = (float) Math.pow(panel.FRICTION, deltaTime);
-        final FloatVector FRICTION_DT_VEC = FloatVector.broadcast(F_SPECIES, frictionScalar);
-        final boolean mouseIsPressed = panel.isMousePressed;
-
-        final int vectorEndIndex = startIndex + ((endIndex - startIndex) / LANE_SIZE) * LANE_SIZE;
-        final float ox = this.panDx;
-        final float oy = this.panDy;
-
-        for (int i = startIndex; i < vectorEndIndex; i += LANE_SIZE) {
-            FloatVector px = FloatVector.fromArray(F_SPECIES, positionsX, i);
-            FloatVector py = FloatVector.fromArray(F_SPECIES, positionsY, i);
-            FloatVector vx = FloatVector.fromArray(F_SPECIES, velocitiesX, i);
-            FloatVector vy = FloatVector.fromArray(F_SPECIES, velocitiesY, i);
-
-            if (mouseIsPressed) {
-                FloatVector dx = MOUSE_X_VEC.sub(px);
-                FloatVector dy = MOUSE_Y_VEC.sub(py);
-                FloatVector distSq = dx.mul(dx).add(dy.mul(dy));
-                var gravityMask = distSq.compare(GT, minPullDist);
-
-                if (gravityMask.anyTrue()) {
-                    FloatVector dist = distSq.sqrt();
-                    FloatVector forceX = dx.div(dist).mul(gf);
-                    FloatVector forceY = dy.div(dist).mul(gf);
-                    vx = vx.add(forceX, gravityMask);
-                    vy = vy.add(forceY, gravityMask);
-                }
-            }
-
-            px = px.add(vx.mul(deltaTime)).add(ox);
-            py = py.add(vy.mul(deltaTime)).add(oy);
-            vx = vx.mul(FRICTION_DT_VEC);
-            vy = vy.mul(FRICTION_DT_VEC);
-
-            px.intoArray(positionsX, i);
-            py.intoArray(positionsY, i);
-            vx.intoArray(velocitiesX, i);
-            vy.intoArray(velocitiesY, i);
-        }
-
-        for (int i = vectorEndIndex; i < endIndex; i++) {
-            float px = positionsX[i];
-            float py = positionsY[i];
-            float vx = velocitiesX[i];
-            float vy = velocitiesY[i];
-
-            if (mouseIsPressed) {
-                float dx = (float) MOUSE_X_VEC.lane(0) - px;
-                float dy = (float) MOUSE_Y_VEC.lane(0) - py;
-                float distSq = dx * dx + dy * dy;
+        private OklabTable() {
+        }
 
-                if (distSq > 1.0f) {
-                    float dist = (float) Math.sqrt(distSq);
-                    float forceX = (dx / dist) * gf;
-                    float forceY = (dy / dist) * gf;
-                    vx += forceX;
-                    vy += forceY;
-                }
+        /**
+         * The table hue of direction (x, y), (0, 0) counts as angle 0 like atan2.
+         */
+        static int hueIndex(float x, float y) {
+            final float sum = Math.abs(x) + Math.abs(y);
+            if (sum == 0) {
+                return 0;
+            }
+            final float t;
+            if (y >= 0) {
+                t = x >= 0 ? y / sum : 1 - x / sum;
+            } else {
+                t = x < 0 ? 2 - y / sum : 3 + x / sum;
             }
+            return Math.min((int) (t * (HUE_STEPS / 4)), HUE_STEPS - 1);
+        }
+
+        /**
+         * Full chroma color of a hue.
+         */
+        static int color(int hue) {
+            return COLORS[CHROMA_STEPS * HUE_STEPS + hue];
+        }
 
-            px += vx * deltaTime + ox;
-            py += vy * deltaTime + oy;
-            vx *= frictionScalar;
-            vy *= frictionScalar;
+        /**
+         * Color at a fraction of full chroma, 0..1.
+         */
+        static int color(float chroma, int hue) {
+            int row = Math.min(Math.max(Math.round(chroma * CHROMA_STEPS), 0), CHROMA_STEPS);
+            return COLORS[row * HUE_STEPS + hue];
+        }
 
-            positionsX[i] = px;
-            positionsY[i] = py;
-            velocitiesX[i] = vx;
-            velocitiesY[i] = vy;
+        static float hueFraction(int hue) {
+            return HUE_FRACTIONS[hue];
         }
+    }
+
+    /**
+     * A fixed set of threads that run one phase of work at a time, every worker
+     * calling the phase with its id. The thread that calls {@link #run} does
+     * worker 0's share itself, so a group of n only starts n - 1 threads and a
+     * single threaded group never hands off at all.
+     *
+     * Between phases workers spin briefly before parking, so back to back
+     * phases within a frame (integrate, bin, draw) start without a wake up,
+     * while an idle group between frames costs nothing. Spinning is skipped
+     * when there are more workers than cpus since it would only steal time from
+     * the workers still busy. Callers are serialized, so a pipelined render and
+     * tick share the group phase by phase.
+     */
+    static class WorkerGroup implements AutoCloseable {
+        static final long SPIN_NANOS = 50_000;
+
+        private final int size;
+        private final Worker[] workers;
+        private final boolean spin;
+        private final ReentrantLock dispatch = new ReentrantLock();
+        private final AtomicInteger remaining = new AtomicInteger();
+        private volatile IntConsumer phase;
+        private volatile int generation;
+        private volatile boolean closed;
+        private volatile Thread caller;
+        private volatile boolean callerParked;
+        private volatile Throwable failure;
+
+        // finish time of each worker in the current phase, and the time each one
+        // has spent at the barrier waiting for the slowest since the last reset
+        private final long[] finishNanos;
+        private final long[] barrierWaitNanos;
+        private long phaseCount;
 
-        if (this.vScale != 0) {
-            final float vs = vScale;
-            for (int i = startIndex; i < endIndex; i++) {
-                velocitiesX[i] *= vs;
-                velocitiesY[i] *= vs;
+        WorkerGroup(int size) {
+            this.size = Math.max(1, size);
+            this.spin = this.size <= Runtime.getRuntime().availableProcessors();
+            this.finishNanos = new long[this.size];
+            this.barrierWaitNanos = new long[this.size];
+            this.workers = new Worker[this.size - 1];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new Worker(i + 1);
+                workers[i].start();
             }
         }
 
-        var pixels = panel.threadPixelBuffers[id];
-        Arrays.fill(pixels, 0);
-        for (int i = startIndex; i < endIndex; i++) {
-            int px = (int) Math.min(Math.max(positionsX[i], 0), w - 1);
-            int py = (int) Math.min(Math.max(positionsY[i], 0), h - 1);
-            int index = py * w + px;
-            pixels[index] = colors[i];
+        int size() {
+            return size;
         }
-    }
-}
\ No newline at end of file
+
+        /**
+         * Runs work(id) for every id in [0, size) and returns once all of them
+         * are done. When any of them threw, rethrows that once the others are
+         * done, since the phase then left part of its work undone.
+         */
+        void run(IntConsumer work) {
+            dispatch.lock();
+            try {
+                if (closed) {
+                    throw new IllegalStateException("Worker group is closed");
+                }
+                this.caller = Thread.currentThread();
+                this.phase = work;
+                remaining.set(size);
+                generation++;
+                for (Worker worker : workers) {
+                    if (worker.parked) {
+                        LockSupport.unpark(worker);
+                    }
+                }
+
+                runShare(0, work);
+                awaitPhase();
+
+                long last = 0;
+                for (int id = 0; id < size; id++) {
+                    last = Math.max(last, finishNanos[id]);
+                }
+                for (int id = 0; id < size; id++) {
+                    barrierWaitNanos[id] += last - finishNanos[id];
+                }
+                phaseCount++;
+                this.phase = null;
+
+                final Throwable t = failure;
+                if (t != null) {
+                    failure = null;
+                    if (t instanceof RuntimeException e) {
+                        throw e;
+                    }
+                    if (t instanceof Error e) {
+                        throw e;
+                    }
+                    throw new IllegalStateException("Worker failed", t);
+                }
+            } finally {
+                dispatch.unlock();
+            }
+        }
+
+        private void runShare(int id, IntConsumer work) {
+            try {
+                work.accept(id);
+            } catch (Throwable t) {
+                failure = t;
+            }
+            finishNanos[id] = System.nanoTime();
+            if (remaining.decrementAndGet() == 0 && id != 0 && callerParked) {
+                LockSupport.unpark(caller);
+            }
+        }
+
+        private void awaitPhase() {
+            if (spin) {
+                final long start = System.nanoTime();
+                while (remaining.get() != 0 && System.nanoTime() - start < SPIN_NANOS) {
+                    Thread.onSpinWait();
+                }
+            }
+            while (remaining.get() != 0) {
+                callerParked = true;
+                if (remaining.get() != 0) {
+                    LockSupport.park(this);
+                }
+                callerParked = false;
+            }
+        }
+
+        /**
+         * Copies each worker's accumulated barrier wait, the time between it
+         * finishing its share and the slowest worker finishing, into waits.
+         * Returns the number of phases run since the last reset.
+         */
+        long barrierWaits(long[] waits) {
+            dispatch.lock();
+            try {
+                System.arraycopy(barrierWaitNanos, 0, waits, 0, Math.min(waits.length, size));
+                return phaseCount;
+            } finally {
+                dispatch.unlock();
+            }
+        }
+
+        void resetStats() {
+            dispatch.lock();
+            try {
+                Arrays.fill(barrierWaitNanos, 0);
+                phaseCount = 0;
+            } finally {
+                dispatch.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            dispatch.lock();
+            try {
+                closed = true;
+                generation++;
+            } finally {
+                dispatch.unlock();
+            }
+            for (Worker worker : workers) {
+                LockSupport.unpark(worker);
+            }
+            for (Worker worker : workers) {
+                try {
+                    worker.join(TimeUnit.MINUTES.toMillis(1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        private final class Worker extends Thread {
+            private final int id;
+            volatile boolean parked;
+
+            Worker(int id) {
+                super("particle-worker-" + id);
+                this.id = id;
+                setDaemon(true);
+            }
+
+            @Override
+            public void run() {
+                // not the current generation, a phase dispatched before this
+                // thread got going would be skipped and the caller left waiting
+                int seen = 0;
+                while (true) {
+                    seen = awaitGeneration(seen);
+                    if (closed) {
+                        return;
+                    }
+                    runShare(id, phase);
+                }
+            }
+
+            private int awaitGeneration(int seen) {
+                if (spin) {
+                    final long start = System.nanoTime();
+                    while (generation == seen && System.nanoTime() - start < SPIN_NANOS) {
+                        Thread.onSpinWait();
+                    }
+                }
+                while (generation == seen) {
+                    parked = true;
+                    if (generation == seen) {
+                        LockSupport.park(WorkerGroup.this);
+                    }
+                    parked = false;
+                }
+                return generation;
+            }
+        }
+    }
+
+    /**
+     * Off-heap SoA particle state. Every field is its own segment allocated from
+     * one shared arena, so particle counts are only limited by memory rather than
+     * the 2^31 element cap of java arrays, and none of it is visible to the GC.
+     *
+     * The compact layout trades precision for bandwidth: 9 bytes per particle
+     * instead of 20. Positions are fixed point shorts with POSITION_UNITS per
+     * width/height of the frame they were placed in, which covers four frames
+     * either side of the origin at ~0.15 px steps for a 1200 px window.
+     * Velocities are shorts in quarter px/s and colors are an index into a 256
+     * entry palette. The compact kernels widen to floats in registers and round
+     * back on store, so particles slower than ~4 px/s at 30 fps stop moving.
+     */
+    static class ParticleStore implements AutoCloseable {
+        // cache line alignment keeps vector loads from splitting lines
+        static final long ALIGNMENT = 64;
+        static final long HUGE_PAGE_SIZE = 2L << 20;
+        private static final int MADV_HUGEPAGE = 14;
+        static final float POSITION_UNITS = 8192f;
+        static final float VELOCITY_UNITS = 4f;
+
+        public final long count;
+        public final boolean hugePages;
+        public final boolean compact;
+        // floats and argb ints, or shorts and palette bytes when compact
+        public final MemorySegment positionsX;
+        public final MemorySegment positionsY;
+        public final MemorySegment velocitiesX;
+        public final MemorySegment velocitiesY;
+        public final MemorySegment colors;
+        public final int[] palette = new int[256];
+        // compact position units per pixel
+        volatile float scaleX = 1f;
+        volatile float scaleY = 1f;
+        private boolean huePalette = false;
+        private final Arena arena;
+
+        private ParticleStore(long count, boolean hugePages, boolean compact, Arena arena) {
+            this.count = count;
+            this.compact = compact;
+            this.arena = arena;
+            final long scalarBytes = compact ? Short.BYTES : Float.BYTES;
+            this.positionsX = allocate(arena, count * scalarBytes, hugePages);
+            this.positionsY = allocate(arena, count * scalarBytes, hugePages);
+            this.velocitiesX = allocate(arena, count * scalarBytes, hugePages);
+            this.velocitiesY = allocate(arena, count * scalarBytes, hugePages);
+            this.colors = allocate(arena, count * (compact ? Byte.BYTES : Integer.BYTES), hugePages);
+            boolean advised = false;
+            if (hugePages) {
+                advised = adviseHugePages(positionsX) & adviseHugePages(positionsY)
+                        & adviseHugePages(velocitiesX) & adviseHugePages(velocitiesY)
+                        & adviseHugePages(colors);
+                if (!advised) {
+                    System.err.println("Huge pages unavailable, using regular pages.");
+                }
+            }
+            this.hugePages = advised;
+        }
+
+        private ParticleStore(long count, boolean compact, Arena arena, MemorySegment[] sections) {
+            this.count = count;
+            this.compact = compact;
+            this.arena = arena;
+            this.hugePages = false;
+            this.positionsX = sections[0];
+            this.positionsY = sections[1];
+            this.velocitiesX = sections[2];
+            this.velocitiesY = sections[3];
+            this.colors = sections[4];
+        }
+
+        /**
+         * Allocates zeroed storage for count particles. With hugePages the
+         * segments are aligned to 2 MB and the kernel is asked to back them with
+         * transparent huge pages, which only works on Linux.
+         */
+        public static ParticleStore allocate(long count, boolean hugePages) {
+            return allocate(count, hugePages, false);
+        }
+
+        public static ParticleStore allocate(long count, boolean hugePages, boolean compact) {
+            if (count < 0) {
+                throw new IllegalArgumentException("Particle count must not be negative: " + count);
+            }
+            return new ParticleStore(count, hugePages, compact, Arena.ofShared());
+        }
+
+        /**
+         * Uses existing memory, in the order of {@link #sections}, which stays
+         * valid until the arena is closed by {@link #close}.
+         */
+        static ParticleStore wrap(long count, boolean compact, Arena arena, MemorySegment[] sections) {
+            return new ParticleStore(count, compact, arena, sections);
+        }
+
+        private static MemorySegment allocate(Arena arena, long bytes, boolean hugePages) {
+            if (!hugePages) {
+                return arena.allocate(Math.max(bytes, 1), ALIGNMENT).asSlice(0, bytes);
+            }
+            long rounded = (bytes + HUGE_PAGE_SIZE - 1) / HUGE_PAGE_SIZE * HUGE_PAGE_SIZE;
+            return arena.allocate(Math.max(rounded, HUGE_PAGE_SIZE), HUGE_PAGE_SIZE).asSlice(0, bytes);
+        }
+
+        private static boolean adviseHugePages(MemorySegment segment) {
+            if (!System.getProperty("os.name", "").startsWith("Linux") || segment.byteSize() == 0) {
+                return false;
+            }
+            try {
+                Linker linker = Linker.nativeLinker();
+                MemorySegment madviseAddress = linker.defaultLookup().find("madvise").orElse(null);
+                if (madviseAddress == null) {
+                    return false;
+                }
+                MethodHandle madvise = linker.downcallHandle(madviseAddress,
+                        FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT));
+                long length = (segment.byteSize() + HUGE_PAGE_SIZE - 1) / HUGE_PAGE_SIZE * HUGE_PAGE_SIZE;
+                return (int) madvise.invokeExact(segment, length, MADV_HUGEPAGE) == 0;
+            } catch (Throwable e) {
+                return false;
+            }
+        }
+
+        public long byteSize() {
+            return compact
+                    ? count * (4L * Short.BYTES + Byte.BYTES)
+                    : count * (4L * Float.BYTES + Integer.BYTES);
+        }
+
+        MemorySegment[] sections() {
+            return new MemorySegment[] { positionsX, positionsY, velocitiesX, velocitiesY, colors };
+        }
+
+        /**
+         * Hash of every particle's bits, for telling whether two runs ended in
+         * exactly the same state. Reads the whole store, so only call it once in
+         * a while.
+         */
+        long checksum() {
+            final MemorySegment[] sections = sections();
+            final long[] strides = sectionStrides(compact);
+            long hash = count;
+            for (int k = 0; k < sections.length; k++) {
+                final MemorySegment section = sections[k];
+                final long bytes = count * strides[k];
+                final long words = bytes / Long.BYTES;
+                for (long i = 0; i < words; i++) {
+                    hash = hash * 0x9E3779B97F4A7C15L + section.getAtIndex(JAVA_LONG_UNALIGNED, i);
+                }
+                for (long i = words * Long.BYTES; i < bytes; i++) {
+                    hash = hash * 0x9E3779B97F4A7C15L + section.get(JAVA_BYTE, i);
+                }
+            }
+            return hash;
+        }
+
+        /**
+         * Bytes per particle of each of the {@link #sections}.
+         */
+        static long[] sectionStrides(boolean compact) {
+            final long scalar = compact ? Short.BYTES : Float.BYTES;
+            return new long[] { scalar, scalar, scalar, scalar, compact ? Byte.BYTES : Integer.BYTES };
+        }
+
+        boolean usesHuePalette() {
+            return huePalette;
+        }
+
+        /**
+         * Puts back the palette and compact frame of a saved store.
+         */
+        void restoreFrame(float scaleX, float scaleY, int[] palette, boolean huePalette) {
+            this.scaleX = scaleX;
+            this.scaleY = scaleY;
+            System.arraycopy(palette, 0, this.palette, 0, this.palette.length);
+            this.huePalette = huePalette;
+        }
+
+        /**
+         * Starts a placement whose colors come from the Oklab hue wheel, so
+         * compact colors can be picked by hue alone. Also fixes the frame compact
+         * positions are measured against.
+         */
+        void useHuePalette(int w, int h) {
+            setFrame(w, h);
+            if (!huePalette) {
+                for (int k = 0; k < palette.length; k++) {
+                    double angle = 2.0 * Math.PI * (k + 0.5) / palette.length - Math.PI;
+                    palette[k] = ParticleEngine.calculateOklabColor(0.7f, (float) (0.25 * Math.cos(angle)),
+                            (float) (0.25 * Math.sin(angle)));
+                }
+                huePalette = true;
+            }
+        }
+
+        /**
+         * Starts a placement with arbitrary colors, compact colors use a 3-3-2
+         * rgb palette.
+         */
+        void useRgbPalette(int w, int h) {
+            setFrame(w, h);
+            if (huePalette || palette[palette.length - 1] == 0) {
+                for (int k = 0; k < palette.length; k++) {
+                    int r = (k >> 5) * 255 / 7;
+                    int g = ((k >> 2) & 7) * 255 / 7;
+                    int b = (k & 3) * 255 / 3;
+                    palette[k] = (0xFF << 24) | (r << 16) | (g << 8) | b;
+                }
+                huePalette = false;
+            }
+        }
+
+        private void setFrame(int w, int h) {
+            this.scaleX = POSITION_UNITS / Math.max(1, w);
+            this.scaleY = POSITION_UNITS / Math.max(1, h);
+        }
+
+        /**
+         * Puts particle i at rest at (x, y). Compact storage keeps the palette
+         * entry for hue (0..1 around the Oklab wheel) or the nearest 3-3-2 color.
+         */
+        void place(long i, float x, float y, int argb, float hue) {
+            if (!compact) {
+                positionsX.setAtIndex(JAVA_FLOAT, i, x);
+                positionsY.setAtIndex(JAVA_FLOAT, i, y);
+                velocitiesX.setAtIndex(JAVA_FLOAT, i, 0);
+                velocitiesY.setAtIndex(JAVA_FLOAT, i, 0);
+                colors.setAtIndex(JAVA_INT, i, argb);
+                return;
+            }
+            positionsX.setAtIndex(JAVA_SHORT, i, quantize(x * scaleX));
+            positionsY.setAtIndex(JAVA_SHORT, i, quantize(y * scaleY));
+            velocitiesX.setAtIndex(JAVA_SHORT, i, (short) 0);
+            velocitiesY.setAtIndex(JAVA_SHORT, i, (short) 0);
+            int index = huePalette
+                    ? (int) (hue * palette.length) & (palette.length - 1)
+                    : ((argb >> 16) & 0xE0) | ((argb >> 11) & 0x1C) | ((argb >> 6) & 0x03);
+            colors.setAtIndex(JAVA_BYTE, i, (byte) index);
+        }
+
+        void copy(long from, long to) {
+            if (!compact) {
+                positionsX.setAtIndex(JAVA_FLOAT, to, positionsX.getAtIndex(JAVA_FLOAT, from));
+                positionsY.setAtIndex(JAVA_FLOAT, to, positionsY.getAtIndex(JAVA_FLOAT, from));
+                velocitiesX.setAtIndex(JAVA_FLOAT, to, velocitiesX.getAtIndex(JAVA_FLOAT, from));
+                velocitiesY.setAtIndex(JAVA_FLOAT, to, velocitiesY.getAtIndex(JAVA_FLOAT, from));
+                colors.setAtIndex(JAVA_INT, to, colors.getAtIndex(JAVA_INT, from));
+                return;
+            }
+            positionsX.setAtIndex(JAVA_SHORT, to, positionsX.getAtIndex(JAVA_SHORT, from));
+            positionsY.setAtIndex(JAVA_SHORT, to, positionsY.getAtIndex(JAVA_SHORT, from));
+            velocitiesX.setAtIndex(JAVA_SHORT, to, velocitiesX.getAtIndex(JAVA_SHORT, from));
+            velocitiesY.setAtIndex(JAVA_SHORT, to, velocitiesY.getAtIndex(JAVA_SHORT, from));
+            colors.setAtIndex(JAVA_BYTE, to, colors.getAtIndex(JAVA_BYTE, from));
+        }
+
+        float positionX(long i) {
+            return compact
+                    ? positionsX.getAtIndex(JAVA_SHORT, i) / scaleX
+                    : positionsX.getAtIndex(JAVA_FLOAT, i);
+        }
+
+        float positionY(long i) {
+            return compact
+                    ? positionsY.getAtIndex(JAVA_SHORT, i) / scaleY
+                    : positionsY.getAtIndex(JAVA_FLOAT, i);
+        }
+
+        /**
+         * Rounds half away from zero and saturates to the short range.
+         */
+        static short quantize(float units) {
+            return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(units)));
+        }
+
+        /**
+         * Rounds toward zero and saturates, for velocities. Rounding to nearest
+         * would hold every particle slower than ~35 px/s at its speed, since a
+         * tick of friction takes off less than half a unit there, so they never
+         * come to rest.
+         */
+        static short quantizeVelocity(float units) {
+            return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, (int) units));
+        }
+
+        @Override
+        public void close() {
+            arena.close();
+        }
+    }
+
+    /**
+     * Binary snapshots of the particle state. A snapshot is a 4 KB header
+     * followed by the five {@link ParticleStore} arrays, each starting on a page
+     * boundary and laid out exactly as in memory, so restoring just maps the file
+     * and the tick runs on the mapped pages. The mapping is private, ticks never
+     * write back to the file.
+     *
+     * The header is in native byte order:
+     * <pre>
+     *   0  "PSIMSNAP"
+     *   8  int version
+     *  12  int 0x01020304, to reject files from a machine of the other byte order
+     *  16  long particle count
+     *  24  int flags, 1 compact, 2 hue palette
+     *  28  int viewport width, 32 int viewport height
+     *  36  float compact scale x, 40 float compact scale y
+     *  48  five longs, file offset of each array
+     * 128  256 int palette
+     * </pre>
+     */
+    static final class ParticleSnapshot {
+        static final int VERSION = 1;
+        static final long HEADER_BYTES = 4096;
+        static final long SECTION_ALIGNMENT = 4096;
+        // particles copied per hold of the engine's state lock while saving
+        static final long SAVE_CHUNK = 1 << 18;
+        private static final byte[] MAGIC = "PSIMSNAP".getBytes(StandardCharsets.US_ASCII);
+        private static final int BYTE_ORDER_MARK = 0x01020304;
+        private static final int FLAG_COMPACT = 1;
+        private static final int FLAG_HUE_PALETTE = 2;
+        private static final long VERSION_OFFSET = 8;
+        private static final long BYTE_ORDER_OFFSET = 12;
+        private static final long COUNT_OFFSET = 16;
+        private static final long FLAGS_OFFSET = 24;
+        private static final long WIDTH_OFFSET = 28;
+        private static final long HEIGHT_OFFSET = 32;
+        private static final long SCALE_X_OFFSET = 36;
+        private static final long SCALE_Y_OFFSET = 40;
+        private static final long SECTIONS_OFFSET = 48;
+        private static final long PALETTE_OFFSET = 128;
+
+        final ParticleStore store;
+        final int width;
+        final int height;
+
+        private ParticleSnapshot(ParticleStore store, int width, int height) {
+            this.store = store;
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * Maps a snapshot without reading the particles, pages are loaded as the
+         * first tick touches them. The store owns the mapping and unmaps it when
+         * closed.
+         */
+        static ParticleSnapshot open(Path path) throws IOException {
+            final Arena arena = Arena.ofShared();
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                final long fileBytes = channel.size();
+                if (fileBytes < HEADER_BYTES) {
+                    throw new IOException(path + " is too small to be a snapshot");
+                }
+                final MemorySegment file = channel.map(FileChannel.MapMode.PRIVATE, 0, fileBytes, arena);
+                if (MemorySegment.ofArray(MAGIC).mismatch(file.asSlice(0, MAGIC.length)) != -1) {
+                    throw new IOException(path + " is not a particle snapshot");
+                }
+                if (file.get(JAVA_INT, BYTE_ORDER_OFFSET) != BYTE_ORDER_MARK) {
+                    throw new IOException(path + " was saved on a machine with a different byte order");
+                }
+                final int version = file.get(JAVA_INT, VERSION_OFFSET);
+                if (version != VERSION) {
+                    throw new IOException(path + " is snapshot version " + version + ", expected " + VERSION);
+                }
+                final long count = file.get(JAVA_LONG, COUNT_OFFSET);
+                final int flags = file.get(JAVA_INT, FLAGS_OFFSET);
+                final boolean compact = (flags & FLAG_COMPACT) != 0;
+                final long[] strides = ParticleStore.sectionStrides(compact);
+                final MemorySegment[] sections = new MemorySegment[strides.length];
+                for (int k = 0; k < sections.length; k++) {
+                    final long offset = file.get(JAVA_LONG, SECTIONS_OFFSET + k * Long.BYTES);
+                    final long bytes = count * strides[k];
+                    if (count < 0 || offset < HEADER_BYTES || offset % ParticleStore.ALIGNMENT != 0
+                            || offset > fileBytes - bytes) {
+                        throw new IOException(path + " is truncated or has a corrupt header");
+                    }
+                    sections[k] = file.asSlice(offset, bytes);
+                }
+                final ParticleStore store = ParticleStore.wrap(count, compact, arena, sections);
+                final int[] palette = new int[store.palette.length];
+                MemorySegment.copy(file, JAVA_INT, PALETTE_OFFSET, palette, 0, palette.length);
+                store.restoreFrame(file.get(JAVA_FLOAT, SCALE_X_OFFSET), file.get(JAVA_FLOAT, SCALE_Y_OFFSET), palette,
+                        (flags & FLAG_HUE_PALETTE) != 0);
+                return new ParticleSnapshot(store, file.get(JAVA_INT, WIDTH_OFFSET), file.get(JAVA_INT, HEIGHT_OFFSET));
+            } catch (IOException | RuntimeException e) {
+                arena.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Starts saving the engine's particles on a background thread. Call from
+         * the thread that ticks, between ticks, the header is taken right away.
+         * The particles are copied a chunk at a time while the engine keeps
+         * running, so each particle is saved as of some tick during the save but
+         * not all from the same one.
+         */
+        static Save save(ParticleEngine engine, Path path) {
+            return new Save(engine, path);
+        }
+
+        static final class Save {
+            final Path path;
+            final long totalBytes;
+            private final ParticleEngine engine;
+            private final ParticleStore store;
+            private final int flags;
+            private final int width;
+            private final int height;
+            private final float scaleX;
+            private final float scaleY;
+            private final int[] palette;
+            private final long placement;
+            private final long startNanos = System.nanoTime();
+            private final Thread thread;
+            private volatile long savedParticles;
+            private volatile long elapsedNanos;
+            private volatile Exception failure;
+
+            private Save(ParticleEngine engine, Path path) {
+                this.engine = engine;
+                this.path = path;
+                this.store = engine.store;
+                engine.stateLock.lock();
+                try {
+                    this.flags = (store.compact ? FLAG_COMPACT : 0) | (store.usesHuePalette() ? FLAG_HUE_PALETTE : 0);
+                    this.width = engine.getWidth();
+                    this.height = engine.getHeight();
+                    this.scaleX = store.scaleX;
+                    this.scaleY = store.scaleY;
+                    this.palette = store.palette.clone();
+                    this.placement = engine.placementCount();
+                } finally {
+                    engine.stateLock.unlock();
+                }
+                this.totalBytes = sectionOffsets(store.count, store.compact)[5];
+                this.thread = new Thread(this::write, "snapshot");
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            private void write() {
+                final Path partial = path.resolveSibling(path.getFileName() + ".part");
+                try {
+                    try (Arena arena = Arena.ofConfined();
+                            FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE,
+                                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                                    StandardOpenOption.WRITE)) {
+                        final MemorySegment file = channel.map(FileChannel.MapMode.READ_WRITE, 0, totalBytes, arena);
+                        final long[] offsets = sectionOffsets(store.count, store.compact);
+                        writeHeader(file, offsets);
+                        final MemorySegment[] sections = store.sections();
+                        final long[] strides = ParticleStore.sectionStrides(store.compact);
+                        for (long from = 0; from < store.count; from += SAVE_CHUNK) {
+                            final long to = Math.min(from + SAVE_CHUNK, store.count);
+                            engine.stateLock.lock();
+                            try {
+                                if (engine.placementCount() != placement) {
+                                    throw new IOException("particles were reset or reordered during the save");
+                                }
+                                for (int k = 0; k < sections.length; k++) {
+                                    MemorySegment.copy(sections[k], from * strides[k], file,
+                                            offsets[k] + from * strides[k], (to - from) * strides[k]);
+                                }
+                            } finally {
+                                engine.stateLock.unlock();
+                            }
+                            savedParticles = to;
+                        }
+                        file.force();
+                    }
+                    try {
+                        Files.move(partial, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(partial, path, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                } catch (Exception e) {
+                    failure = e;
+                    try {
+                        Files.deleteIfExists(partial);
+                    } catch (IOException ignored) {
+                    }
+                } finally {
+                    elapsedNanos = System.nanoTime() - startNanos;
+                }
+            }
+
+            private void writeHeader(MemorySegment file, long[] offsets) {
+                MemorySegment.copy(MemorySegment.ofArray(MAGIC), 0, file, 0, MAGIC.length);
+                file.set(JAVA_INT, VERSION_OFFSET, VERSION);
+                file.set(JAVA_INT, BYTE_ORDER_OFFSET, BYTE_ORDER_MARK);
+                file.set(JAVA_LONG, COUNT_OFFSET, store.count);
+                file.set(JAVA_INT, FLAGS_OFFSET, flags);
+                file.set(JAVA_INT, WIDTH_OFFSET, width);
+                file.set(JAVA_INT, HEIGHT_OFFSET, height);
+                file.set(JAVA_FLOAT, SCALE_X_OFFSET, scaleX);
+                file.set(JAVA_FLOAT, SCALE_Y_OFFSET, scaleY);
+                for (int k = 0; k < offsets.length - 1; k++) {
+                    file.set(JAVA_LONG, SECTIONS_OFFSET + k * Long.BYTES, offsets[k]);
+                }
+                MemorySegment.copy(palette, 0, file, JAVA_INT, PALETTE_OFFSET, palette.length);
+            }
+
+            boolean isDone() {
+                return !thread.isAlive();
+            }
+
+            /**
+             * Fraction of the particles written so far.
+             */
+            double progress() {
+                return store.count == 0 ? 1 : savedParticles / (double) store.count;
+            }
+
+            long elapsedNanos() {
+                return isDone() ? elapsedNanos : System.nanoTime() - startNanos;
+            }
+
+            /**
+             * Waits for the save and rethrows whatever stopped it.
+             */
+            void await() throws IOException, InterruptedException {
+                thread.join();
+                if (failure instanceof IOException e) {
+                    throw e;
+                }
+                if (failure != null) {
+                    throw new IOException("Saving " + path + " failed", failure);
+                }
+            }
+
+            Exception failure() {
+                return isDone() ? failure : null;
+            }
+        }
+
+        /**
+         * File offsets of the five arrays, then the file size.
+         */
+        static long[] sectionOffsets(long count, boolean compact) {
+            final long[] strides = ParticleStore.sectionStrides(compact);
+            final long[] offsets = new long[strides.length + 1];
+            long offset = HEADER_BYTES;
+            for (int k = 0; k < strides.length; k++) {
+                offsets[k] = offset;
+                offset = (offset + count * strides[k] + SECTION_ALIGNMENT - 1) / SECTION_ALIGNMENT * SECTION_ALIGNMENT;
+            }
+            offsets[strides.length] = offset;
+            return offsets;
+        }
+    }
+
+    /**
+     * Where the screen looks at the world the particles and forces live in.
+     * Screen px = (world - origin) * zoom, so origin is the world point in the
+     * top left corner. Panning and zooming only change where particles are
+     * drawn, the particles themselves never move for the view. Forces, gravity
+     * and neighbor grids stay fixed over the world rectangle the viewport
+     * covers at zoom 1. Only touched by the thread running the frames.
+     */
+    static final class Camera {
+        static final float MIN_ZOOM = 1f / 16;
+        static final float MAX_ZOOM = 256f;
+
+        float originX;
+        float originY;
+        float zoom = 1f;
+
+        float worldX(float screenX) {
+            return originX + screenX / zoom;
+        }
+
+        float worldY(float screenY) {
+            return originY + screenY / zoom;
+        }
+
+        /**
+         * Moves the picture by dx, dy screen px.
+         */
+        void pan(float dx, float dy) {
+            originX -= dx / zoom;
+            originY -= dy / zoom;
+        }
+
+        /**
+         * Zooms by factor, keeping the world point under the screen point put.
+         */
+        void zoomAt(float screenX, float screenY, float factor) {
+            final float x = worldX(screenX);
+            final float y = worldY(screenY);
+            zoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom * factor));
+            originX = x - screenX / zoom;
+            originY = y - screenY / zoom;
+        }
+
+        void reset() {
+            originX = 0;
+            originY = 0;
+            zoom = 1f;
+        }
+    }
+
+    /**
+     * How binned particles become pixels. OVERWRITE draws the last particle to
+     * land on a pixel, DENSITY averages the colors of every particle on the pixel
+     * and scales brightness with the log of the hit count.
+     */
+    enum RenderMode {
+        OVERWRITE,
+        DENSITY
+    }
+
+    /**
+     * How the windowed app puts a frame on screen. CANVAS draws an opaque
+     * image into the back buffer of a {@link java.awt.image.BufferStrategy} on
+     * a Canvas and shows it. PANEL draws an ARGB image through the panel's
+     * getGraphics, which blends it and converts its format on the way.
+     */
+    enum PresentMode {
+        CANVAS,
+        PANEL
+    }
+
+    /**
+     * Renders by binning particles into 16x16 pixel tiles with a parallel
+     * counting sort. Workers then claim whole tiles and write them straight into
+     * the framebuffer, so there are no per-thread frame buffers to clear or merge
+     * and memory is one int per particle plus tile counters for each particle chunk.
+     *
+     * A binned entry packs the pixel inside the tile into the top 8 bits and the
+     * particle's rgb into the low 24. Within a pixel the last particle in binning
+     * order wins, which is the highest particle index.
+     *
+     * Particles are placed on screen through the view transform of the
+     * {@link Camera}. Those off screen are counted in a slot of their own that
+     * no tile reads, and binning skips them, so a zoomed in view bins only what
+     * it shows.
+     *
+     * In density mode each worker sums hits and rgb for the tile it is drawing
+     * into its own tile sized accumulator. Tiles belong to exactly one worker, so
+     * nothing has to be reduced across threads before the vectorized tone map.
+     */
+    static class TileRenderer implements AutoCloseable {
+        static final int TILE_SHIFT = 4;
+        static final int TILE_SIZE = 1 << TILE_SHIFT;
+        static final int TILE_MASK = TILE_SIZE - 1;
+        static final int RGB_MASK = 0xFFFFFF;
+        private static final int OPAQUE = 0xFF << 24;
+        private static final int TILES_PER_CLAIM = 8;
+        // tile count entries each worker may have, which caps the chunks at high
+        // resolutions so the counts and their scan grow with threads, not chunks
+        private static final int COUNTS_PER_WORKER = 1 << 16;
+        static final int DEFAULT_DENSITY_SATURATION = 32;
+        private static final VectorSpecies<Float> F_SPECIES = ParticleEngine.F_SPECIES;
+        private static final VectorSpecies<Integer> I_SPECIES = VectorSpecies.of(int.class, F_SPECIES.vectorShape());
+
+        private final int threadCount;
+        private int chunkCount;
+        private final Arena arena;
+        private final long capacity;
+        // the bins the tick writes into, the previous frame's bins stay intact in
+        // the other slot when double buffered so it can be drawn meanwhile
+        MemorySegment binned;
+        private final BinnedFrame[] frames = new BinnedFrame[2];
+        private boolean doubleBuffered = false;
+        private int back = 0;
+        private volatile int front = 0;
+        private long publishedFrames = 0;
+        private final long[] rangeTotals;
+        private final AtomicInteger nextTile = new AtomicInteger();
+        private final DensityAccumulator[] accumulators;
+
+        volatile RenderMode mode = RenderMode.OVERWRITE;
+        private volatile float densityExposure;
+
+        int width;
+        int height;
+        int tilesX;
+        int tilesY;
+        int tileCount;
+        // world to screen px, set from the engine's camera every tick
+        float viewOriginX;
+        float viewOriginY;
+        float viewScale = 1f;
+        // per chunk counts from the tick, and the write cursors derived from
+        // them, with off screen particles counted in a last slot at tileCount.
+        // A chunk holds fewer than 2^31 particles, so its counts fit an int.
+        int[][] tileCounts;
+        long[][] tileCursors;
+        // first binned entry of each tile, with the total at tileCount
+        long[] tileStarts;
+
+        TileRenderer(long numParticles, int threadCount) {
+            this.threadCount = threadCount;
+            this.chunkCount = threadCount;
+            this.arena = Arena.ofShared();
+            this.capacity = Math.max(numParticles, 1) * Integer.BYTES;
+            this.frames[0] = new BinnedFrame(arena.allocate(capacity, ParticleStore.ALIGNMENT));
+            this.binned = frames[0].binned;
+            this.rangeTotals = new long[threadCount];
+            this.accumulators = new DensityAccumulator[threadCount];
+            for (int i = 0; i < threadCount; i++) {
+                accumulators[i] = new DensityAccumulator();
+            }
+            setDensitySaturation(DEFAULT_DENSITY_SATURATION);
+            resize(1, 1);
+        }
+
+        /**
+         * Keeps tile counts for this many particle chunks. Only call between
+         * frames.
+         */
+        void setChunkCount(int chunks) {
+            if (chunks != chunkCount) {
+                this.chunkCount = chunks;
+                allocateCounts();
+            }
+        }
+
+        /**
+         * The most chunks worth keeping tile counts for at this size, at least
+         * one per worker.
+         */
+        int maxChunks() {
+            return threadCount * Math.max(1, COUNTS_PER_WORKER / (tileCount + 1));
+        }
+
+        private void allocateCounts() {
+            this.tileCounts = new int[chunkCount][tileCount + 1];
+            this.tileCursors = new long[chunkCount][tileCount + 1];
+        }
+
+        void setDensitySaturation(int hits) {
+            this.densityExposure = (float) (1.0 / Math.log1p(Math.max(1, hits)));
+        }
+
+        float densityExposure() {
+            return densityExposure;
+        }
+
+        static int pack(int tileX, int tileY, int color) {
+            return (((tileY << TILE_SHIFT) | tileX) << 24) | (color & RGB_MASK);
+        }
+
+        /**
+         * Sets the world to screen transform the next tick counts and bins
+         * with, screen = (world - origin) * scale. Returns whether it changed.
+         * Only call between frames.
+         */
+        boolean setView(float originX, float originY, float scale) {
+            if (originX == viewOriginX && originY == viewOriginY && scale == viewScale) {
+                return false;
+            }
+            this.viewOriginX = originX;
+            this.viewOriginY = originY;
+            this.viewScale = scale;
+            return true;
+        }
+
+        /**
+         * The tile a world position is drawn in, or tileCount, the culled
+         * slot, when it is off screen. Screen positions are worked out in the
+         * same order as the tick kernels, so a particle lands in the same tile
+         * here as in a vector lane.
+         */
+        int tileOf(float x, float y) {
+            final float sx = (x - viewOriginX) * viewScale;
+            final float sy = (y - viewOriginY) * viewScale;
+            if (!(sx >= 0 && sx < width && sy >= 0 && sy < height)) {
+                return tileCount;
+            }
+            return ((int) sy >> TILE_SHIFT) * tilesX + ((int) sx >> TILE_SHIFT);
+        }
+
+        void resize(int w, int h) {
+            this.width = w;
+            this.height = h;
+            this.tilesX = (w + TILE_MASK) >> TILE_SHIFT;
+            this.tilesY = (h + TILE_MASK) >> TILE_SHIFT;
+            this.tileCount = tilesX * tilesY;
+            allocateCounts();
+            // frames binned at the old size are dropped, they draw empty until the next tick
+            for (BinnedFrame frame : frames) {
+                if (frame != null) {
+                    frame.tileStarts = new long[tileCount + 1];
+                }
+            }
+            this.tileStarts = frames[back].tileStarts;
+        }
+
+        /**
+         * Keeps a second set of bins so the tick can bin a frame while the last
+         * one is still being drawn. Costs another 4 bytes per particle, and must
+         * only be switched while nothing is ticking or drawing.
+         */
+        void setDoubleBuffered(boolean doubleBuffered) {
+            if (doubleBuffered && frames[1] == null) {
+                frames[1] = new BinnedFrame(arena.allocate(capacity, ParticleStore.ALIGNMENT));
+                frames[1].tileStarts = new long[tileCount + 1];
+            }
+            this.doubleBuffered = doubleBuffered;
+            back = doubleBuffered ? 1 - front : front;
+            binned = frames[back].binned;
+            tileStarts = frames[back].tileStarts;
+        }
+
+        /**
+         * Makes the bins the tick just filled the ones {@link #frontFrame} hands
+         * out, and moves the tick on to the other set when double buffered.
+         */
+        void publish() {
+            frames[back].serial = ++publishedFrames;
+            front = back;
+            if (doubleBuffered) {
+                back = 1 - back;
+                binned = frames[back].binned;
+                tileStarts = frames[back].tileStarts;
+            }
+        }
+
+        /**
+         * The most recently published bins. Drawing keeps hold of these rather
+         * than reading the fields, which a pipelined tick swaps under it.
+         */
+        BinnedFrame frontFrame() {
+            return frames[front];
+        }
+
+        private int rangeStart(int id) {
+            return (int) ((long) tileCount * id / threadCount);
+        }
+
+        /**
+         * Adds up the chunk counts for this worker's share of the tiles.
+         */
+        void sumTiles(int id) {
+            final int end = rangeStart(id + 1);
+            long total = 0;
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                final int[] counts = tileCounts[chunk];
+                for (int t = rangeStart(id); t < end; t++) {
+                    total += counts[t];
+                }
+            }
+            rangeTotals[id] = total;
+        }
+
+        /**
+         * Turns the per-worker range totals into each range's first binned entry.
+         */
+        void scanRanges() {
+            long running = 0;
+            for (int id = 0; id < threadCount; id++) {
+                long total = rangeTotals[id];
+                rangeTotals[id] = running;
+                running += total;
+            }
+            tileStarts[tileCount] = running;
+        }
+
+        /**
+         * Hands out write offsets for this worker's share of the tiles. Within a
+         * tile, chunk 0 writes first so the binned order follows particle order
+         * whichever worker handled a chunk.
+         */
+        void assignOffsets(int id) {
+            final int end = rangeStart(id + 1);
+            long running = rangeTotals[id];
+            for (int t = rangeStart(id); t < end; t++) {
+                tileStarts[t] = running;
+                for (int chunk = 0; chunk < chunkCount; chunk++) {
+                    tileCursors[chunk][t] = running;
+                    running += tileCounts[chunk][t];
+                }
+            }
+        }
+
+        void beginRasterize() {
+            nextTile.set(0);
+        }
+
+        /**
+         * Claims batches of tiles until none are left, clearing each one and
+         * drawing its binned particles into the framebuffer. Dense tiles take
+         * longer, so claiming dynamically keeps the workers balanced.
+         */
+        void rasterize(int id, int[] framebuffer, BinnedFrame frame) {
+            final boolean density = mode == RenderMode.DENSITY;
+            final DensityAccumulator accumulator = accumulators[id];
+            int first;
+            while ((first = nextTile.getAndAdd(TILES_PER_CLAIM)) < tileCount) {
+                final int last = Math.min(first + TILES_PER_CLAIM, tileCount);
+                for (int t = first; t < last; t++) {
+                    if (density) {
+                        accumulateTile(t, frame, accumulator);
+                        toneMapTile(t, accumulator, framebuffer);
+                    } else {
+                        rasterizeTile(t, frame, framebuffer);
+                    }
+                }
+            }
+        }
+
+        private void rasterizeTile(int tile, BinnedFrame frame, int[] framebuffer) {
+            final int w = width;
+            final int x0 = (tile % tilesX) << TILE_SHIFT;
+            final int y0 = (tile / tilesX) << TILE_SHIFT;
+            final int x1 = Math.min(x0 + TILE_SIZE, w);
+            final int y1 = Math.min(y0 + TILE_SIZE, height);
+
+            for (int y = y0; y < y1; y++) {
+                Arrays.fill(framebuffer, y * w + x0, y * w + x1, OPAQUE);
+            }
+
+            final MemorySegment binned = frame.binned;
+            final long end = frame.tileStarts[tile + 1];
+            for (long e = frame.tileStarts[tile]; e < end; e++) {
+                final int entry = binned.getAtIndex(JAVA_INT, e);
+                final int local = entry >>> 24;
+                final int x = x0 + (local & TILE_MASK);
+                final int y = y0 + (local >>> TILE_SHIFT);
+                framebuffer[y * w + x] = OPAQUE | (entry & RGB_MASK);
+            }
+        }
+
+        private void accumulateTile(int tile, BinnedFrame frame, DensityAccumulator acc) {
+            final int[] hits = acc.hits;
+            final float[] reds = acc.reds;
+            final float[] greens = acc.greens;
+            final float[] blues = acc.blues;
+            Arrays.fill(hits, 0);
+            Arrays.fill(reds, 0);
+            Arrays.fill(greens, 0);
+            Arrays.fill(blues, 0);
+
+            final MemorySegment binned = frame.binned;
+            final long end = frame.tileStarts[tile + 1];
+            for (long e = frame.tileStarts[tile]; e < end; e++) {
+                final int entry = binned.getAtIndex(JAVA_INT, e);
+                final int local = entry >>> 24;
+                hits[local]++;
+                reds[local] += (entry >>> 16) & 0xFF;
+                greens[local] += (entry >>> 8) & 0xFF;
+                blues[local] += entry & 0xFF;
+            }
+        }
+
+        /**
+         * Writes average color * min(1, log1p(hits) * exposure) for every pixel
+         * of the tile, a row of the tile at a time.
+         */
+        private void toneMapTile(int tile, DensityAccumulator acc, int[] framebuffer) {
+            final int w = width;
+            final int x0 = (tile % tilesX) << TILE_SHIFT;
+            final int y0 = (tile / tilesX) << TILE_SHIFT;
+            final int cols = Math.min(TILE_SIZE, w - x0);
+            final int rows = Math.min(TILE_SIZE, height - y0);
+            final float exposure = densityExposure;
+            final int lanes = I_SPECIES.length();
+
+            for (int y = 0; y < rows; y++) {
+                final int accRow = y << TILE_SHIFT;
+                final int fbRow = (y0 + y) * w + x0;
+                for (int x = 0; x < cols; x += lanes) {
+                    VectorMask<Integer> mask = I_SPECIES.indexInRange(x, cols);
+                    VectorMask<Float> fmask = mask.cast(F_SPECIES);
+                    FloatVector hits = (FloatVector) IntVector.fromArray(I_SPECIES, acc.hits, accRow + x, mask)
+                            .convert(I2F, 0);
+                    // brightness over hit count, so the color sums turn straight into the output
+                    FloatVector scale = hits.lanewise(LOG1P).mul(exposure).min(1f).div(hits.max(1f));
+                    IntVector r = channel(acc.reds, accRow + x, fmask, scale);
+                    IntVector g = channel(acc.greens, accRow + x, fmask, scale);
+                    IntVector b = channel(acc.blues, accRow + x, fmask, scale);
+                    r.lanewise(LSHL, 16).or(g.lanewise(LSHL, 8)).or(b).or(OPAQUE)
+                            .intoArray(framebuffer, fbRow + x, mask);
+                }
+            }
+        }
+
+        private static IntVector channel(float[] sums, int offset, VectorMask<Float> mask, FloatVector scale) {
+            return (IntVector) FloatVector.fromArray(F_SPECIES, sums, offset, mask)
+                    .mul(scale).min(255f)
+                    .convert(F2I, 0);
+        }
+
+        @Override
+        public void close() {
+            arena.close();
+        }
+
+        /**
+         * One frame's binned entries and where each tile's run of them starts.
+         */
+        static final class BinnedFrame {
+            final MemorySegment binned;
+            long[] tileStarts;
+            // which publish filled it, 0 before the first
+            long serial;
+
+            BinnedFrame(MemorySegment binned) {
+                this.binned = binned;
+            }
+        }
+
+        /**
+         * One worker's hit and color sums for the tile it is drawing. Color sums
+         * are floats since a single pixel can collect millions of particles.
+         */
+        private static final class DensityAccumulator {
+            final int[] hits = new int[TILE_SIZE * TILE_SIZE];
+            final float[] reds = new float[TILE_SIZE * TILE_SIZE];
+            final float[] greens = new float[TILE_SIZE * TILE_SIZE];
+            final float[] blues = new float[TILE_SIZE * TILE_SIZE];
+        }
+    }
+
+    /**
+     * Keeps the particle arrays in Z order of the pixel each particle is on.
+     * Particles start out in placement order and drift from there, so after a
+     * while neighboring indices sit on unrelated tiles and every tile count and
+     * binning write of the tick goes somewhere new. Sorted by the Morton code of
+     * their pixel, runs of particles share a tile again, and so do the mesh
+     * gravity deposit and the neighbor grid sort, which also go by position.
+     *
+     * The sort is a parallel LSD radix sort of (key, index) pairs packed into
+     * longs, in digits of at most 11 bits so each worker's histogram fits in L1,
+     * which is 2 passes for viewports up to 2048 px. Every pass each worker
+     * counts the digits of its range, the counts become write cursors digit major
+     * and worker minor, which keeps the sort stable, and each worker scatters its
+     * range. Then every particle array is permuted through the other pair buffer,
+     * gathering by the sorted index and copying back.
+     *
+     * Only the active particles are sorted. Keys are pixels of the world the
+     * viewport covers at zoom 1, particles outside it sort by the nearest edge
+     * pixel. Where particles crowd a pixel, sorting changes which of them
+     * overwrite rendering shows. Scratch space is 16 bytes per particle, and at
+     * most 2^32 particles fit the index half of a pair.
+     *
+     * A sort is due on the first frame, every interval frames, and whenever the
+     * locality, the share of sampled neighboring particles that are on the same
+     * tile, drops below half of what it was right after the last sort.
+     */
+    static class MortonOrder implements AutoCloseable {
+        private static final VectorSpecies<Float> F_SPECIES = ParticleEngine.F_SPECIES;
+        private static final VectorSpecies<Long> L_SPECIES = VectorSpecies.of(long.class, F_SPECIES.vectorShape());
+        private static final int LANE_SIZE = F_SPECIES.length();
+        private static final ByteOrder ORDER = ByteOrder.nativeOrder();
+        private static final int MAX_DIGIT_BITS = 11;
+        private static final int LOCALITY_SAMPLES = 1024;
+        static final float LOCALITY_DROP = 0.5f;
+
+        // frames between sorts, 0 sorts on locality alone
+        final int interval;
+        private final int threadCount;
+        private final Arena arena;
+        private final MemorySegment pairs;
+        private final MemorySegment spare;
+        // each worker's count per digit, turned into its write cursors in place
+        private final long[][] digitCounts;
+        // lanes are spilled here so digits that collide between lanes count right
+        private final int[][] digitLanes;
+        private long particles;
+
+        private boolean sortedOnce;
+        private int framesSinceSort;
+        private float locality;
+        private float sortedLocality;
+        private long sorts;
+        private long sortNanos;
+
+        MortonOrder(long capacity, int threadCount, int interval) {
+            if (capacity > 0xFFFFFFFFL) {
+                throw new IllegalArgumentException("Reordering supports at most " + 0xFFFFFFFFL + " particles");
+            }
+            this.interval = interval;
+            this.threadCount = threadCount;
+            this.arena = Arena.ofShared();
+            final long bytes = Math.max(capacity, 1) * Long.BYTES;
+            this.pairs = arena.allocate(bytes, ParticleStore.ALIGNMENT);
+            this.spare = arena.allocate(bytes, ParticleStore.ALIGNMENT);
+            this.digitCounts = new long[threadCount][1 << MAX_DIGIT_BITS];
+            this.digitLanes = new int[threadCount][LANE_SIZE];
+        }
+
+        /**
+         * Bytes of scratch space per particle.
+         */
+        static long bytesPerParticle() {
+            return 2L * Long.BYTES;
+        }
+
+        /**
+         * Samples the locality of the first active particles and tells whether
+         * they should be sorted before this frame's tick. Call once per frame.
+         */
+        boolean due(ParticleEngine engine, long active) {
+            framesSinceSort++;
+            locality = sampleLocality(engine, active);
+            return !sortedOnce
+                    || (interval > 0 && framesSinceSort >= interval)
+                    || locality < sortedLocality * LOCALITY_DROP;
+        }
+
+        /**
+         * Share of evenly spaced particles i whose neighbor i + 1 is on the same
+         * tile, near 1 when sorted and about one over the tile count when the
+         * order is random.
+         */
+        float sampleLocality(ParticleEngine engine, long active) {
+            if (active < 2) {
+                return 1f;
+            }
+            final ParticleStore store = engine.store;
+            final int maxX = Math.max(1, engine.getWidth()) - 1;
+            final int maxY = Math.max(1, engine.getHeight()) - 1;
+            int same = 0;
+            for (int s = 0; s < LOCALITY_SAMPLES; s++) {
+                final long i = (active - 1) * s / LOCALITY_SAMPLES;
+                if (worldTileOf(store, i, maxX, maxY) == worldTileOf(store, i + 1, maxX, maxY)) {
+                    same++;
+                }
+            }
+            return same / (float) LOCALITY_SAMPLES;
+        }
+
+        /**
+         * The tile of the world at zoom 1 a particle is on, clamped to the
+         * viewport like the sort keys.
+         */
+        private static int worldTileOf(ParticleStore store, long i, int maxX, int maxY) {
+            final int px = (int) Math.min(Math.max(store.positionX(i), 0), maxX);
+            final int py = (int) Math.min(Math.max(store.positionY(i), 0), maxY);
+            return ((py >> TileRenderer.TILE_SHIFT) << 16) | (px >> TileRenderer.TILE_SHIFT);
+        }
+
+        /**
+         * Sorts the first active particles by the Morton code of their pixel.
+         * Rewrites every particle, so only call while the engine's state lock is
+         * held.
+         */
+        void sort(ParticleEngine engine, long active) {
+            final long start = System.nanoTime();
+            this.particles = active;
+            final int side = Math.max(1, Math.max(engine.getWidth(), engine.getHeight()));
+            final int keyBits = 2 * (32 - Integer.numberOfLeadingZeros(side - 1));
+            final int passes = Math.max(1, (keyBits + MAX_DIGIT_BITS - 1) / MAX_DIGIT_BITS);
+            final int digitBits = Math.max(1, (keyBits + passes - 1) / passes);
+            final int digits = 1 << digitBits;
+            final WorkerGroup workers = engine.workers;
+
+            workers.run(id -> writeKeys(id, engine, digits - 1));
+            MemorySegment from = pairs;
+            MemorySegment to = spare;
+            for (int pass = 0; pass < passes; pass++) {
+                final MemorySegment source = from;
+                final MemorySegment target = to;
+                final int shift = 32 + pass * digitBits;
+                if (pass > 0) {
+                    workers.run(id -> countDigits(id, source, shift, digits - 1));
+                }
+                assignCursors(digits);
+                workers.run(id -> scatter(id, source, target, shift, digits - 1));
+                from = target;
+                to = source;
+            }
+
+            final MemorySegment sorted = from;
+            final MemorySegment scratch = to;
+            final MemorySegment[] sections = engine.store.sections();
+            final long[] strides = ParticleStore.sectionStrides(engine.store.compact);
+            for (int k = 0; k < sections.length; k++) {
+                final MemorySegment section = sections[k];
+                final long stride = strides[k];
+                workers.run(id -> gather(id, sorted, section, stride, scratch));
+                workers.run(id -> {
+                    final long first = rangeStart(id);
+                    MemorySegment.copy(scratch, first * stride, section, first * stride,
+                            (rangeStart(id + 1) - first) * stride);
+                });
+            }
+
+            sortedLocality = sampleLocality(engine, active);
+            locality = sortedLocality;
+            framesSinceSort = 0;
+            sortedOnce = true;
+            sorts++;
+            sortNanos += System.nanoTime() - start;
+        }
+
+        private long rangeStart(int id) {
+            return particles * id / threadCount;
+        }
+
+        /**
+         * Packs each particle's key above its index and counts the lowest digit.
+         */
+        private void writeKeys(int id, ParticleEngine engine, int digitMask) {
+            final ParticleStore store = engine.store;
+            final MemorySegment positionsX = store.positionsX;
+            final MemorySegment positionsY = store.positionsY;
+            final MemorySegment pairs = this.pairs;
+            final boolean compact = store.compact;
+            final float toPixelsX = 1f / store.scaleX;
+            final float toPixelsY = 1f / store.scaleY;
+            final long[] counts = digitCounts[id];
+            final int maxX = Math.max(1, engine.getWidth()) - 1;
+            final int maxY = Math.max(1, engine.getHeight()) - 1;
+            Arrays.fill(counts, 0);
+            final long end = rangeStart(id + 1);
+            long i = rangeStart(id);
+            if (!compact) {
+                final int[] digitLanes = this.digitLanes[id];
+                final LongVector laneIndex = LongVector.zero(L_SPECIES).addIndex(1);
+                for (; i + LANE_SIZE <= end; i += LANE_SIZE) {
+                    final long offset = i * Float.BYTES;
+                    IntVector ix = ((IntVector) FloatVector.fromMemorySegment(F_SPECIES, positionsX, offset, ORDER)
+                            .convert(F2I, 0)).max(0).min(maxX);
+                    IntVector iy = ((IntVector) FloatVector.fromMemorySegment(F_SPECIES, positionsY, offset, ORDER)
+                            .convert(F2I, 0)).max(0).min(maxY);
+                    IntVector key = spreadBits(ix).or(spreadBits(iy).lanewise(LSHL, 1));
+                    // the keys widen to longs half a vector at a time
+                    for (int part = 0; part < 2; part++) {
+                        final long first = i + part * L_SPECIES.length();
+                        ((LongVector) key.convertShape(I2L, L_SPECIES, part)).lanewise(LSHL, 32)
+                                .or(laneIndex.add(first))
+                                .intoMemorySegment(pairs, first * Long.BYTES, ORDER);
+                    }
+                    key.and(digitMask).intoArray(digitLanes, 0);
+                    for (int k = 0; k < LANE_SIZE; k++) {
+                        counts[digitLanes[k]]++;
+                    }
+                }
+            }
+            for (; i < end; i++) {
+                final float x = compact
+                        ? positionsX.getAtIndex(JAVA_SHORT, i) * toPixelsX
+                        : positionsX.getAtIndex(JAVA_FLOAT, i);
+                final float y = compact
+                        ? positionsY.getAtIndex(JAVA_SHORT, i) * toPixelsY
+                        : positionsY.getAtIndex(JAVA_FLOAT, i);
+                final int px = (int) Math.min(Math.max(x, 0), maxX);
+                final int py = (int) Math.min(Math.max(y, 0), maxY);
+                final long key = mortonCode(px, py);
+                pairs.setAtIndex(JAVA_LONG, i, (key << 32) | i);
+                counts[(int) key & digitMask]++;
+            }
+        }
+
+        /**
+         * Interleaves the low 16 bits of x and y, x in the even bits.
+         */
+        static long mortonCode(int x, int y) {
+            return Integer.toUnsignedLong(spreadBits(x) | (spreadBits(y) << 1));
+        }
+
+        /**
+         * Moves bit k of the low 16 bits to bit 2k.
+         */
+        private static int spreadBits(int v) {
+            v &= 0xFFFF;
+            v = (v | (v << 8)) & 0x00FF00FF;
+            v = (v | (v << 4)) & 0x0F0F0F0F;
+            v = (v | (v << 2)) & 0x33333333;
+            return (v | (v << 1)) & 0x55555555;
+        }
+
+        private static IntVector spreadBits(IntVector v) {
+            v = v.and(0xFFFF);
+            v = v.or(v.lanewise(LSHL, 8)).and(0x00FF00FF);
+            v = v.or(v.lanewise(LSHL, 4)).and(0x0F0F0F0F);
+            v = v.or(v.lanewise(LSHL, 2)).and(0x33333333);
+            return v.or(v.lanewise(LSHL, 1)).and(0x55555555);
+        }
+
+        private void countDigits(int id, MemorySegment source, int shift, int digitMask) {
+            final long[] counts = digitCounts[id];
+            Arrays.fill(counts, 0);
+            final long end = rangeStart(id + 1);
+            for (long i = rangeStart(id); i < end; i++) {
+                counts[(int) (source.getAtIndex(JAVA_LONG, i) >>> shift) & digitMask]++;
+            }
+        }
+
+        private void assignCursors(int digits) {
+            long running = 0;
+            for (int d = 0; d < digits; d++) {
+                for (int worker = 0; worker < threadCount; worker++) {
+                    final long count = digitCounts[worker][d];
+                    digitCounts[worker][d] = running;
+                    running += count;
+                }
+            }
+        }
+
+        private void scatter(int id, MemorySegment source, MemorySegment target, int shift, int digitMask) {
+            final long[] cursors = digitCounts[id];
+            final long end = rangeStart(id + 1);
+            for (long i = rangeStart(id); i < end; i++) {
+                final long pair = source.getAtIndex(JAVA_LONG, i);
+                target.setAtIndex(JAVA_LONG, cursors[(int) (pair >>> shift) & digitMask]++, pair);
+            }
+        }
+
+        /**
+         * Copies this worker's range of the sorted order of one particle array
+         * into scratch.
+         */
+        private void gather(int id, MemorySegment sorted, MemorySegment section, long stride, MemorySegment scratch) {
+            final long end = rangeStart(id + 1);
+            final long first = rangeStart(id);
+            if (stride == Integer.BYTES) {
+                for (long j = first; j < end; j++) {
+                    scratch.setAtIndex(JAVA_INT, j,
+                            section.getAtIndex(JAVA_INT, sorted.getAtIndex(JAVA_LONG, j) & 0xFFFFFFFFL));
+                }
+            } else if (stride == Short.BYTES) {
+                for (long j = first; j < end; j++) {
+                    scratch.setAtIndex(JAVA_SHORT, j,
+                            section.getAtIndex(JAVA_SHORT, sorted.getAtIndex(JAVA_LONG, j) & 0xFFFFFFFFL));
+                }
+            } else {
+                for (long j = first; j < end; j++) {
+                    scratch.setAtIndex(JAVA_BYTE, j,
+                            section.getAtIndex(JAVA_BYTE, sorted.getAtIndex(JAVA_LONG, j) & 0xFFFFFFFFL));
+                }
+            }
+        }
+
+        float locality() {
+            return locality;
+        }
+
+        float sortedLocality() {
+            return sortedLocality;
+        }
+
+        long sortCount() {
+            return sorts;
+        }
+
+        long sortNanos() {
+            return sortNanos;
+        }
+
+        /**
+         * Starts the sort count and time over, for measuring after warmup.
+         */
+        void resetStats() {
+            sorts = 0;
+            sortNanos = 0;
+        }
+
+        @Override
+        public void close() {
+            arena.close();
+        }
+    }
+
+    /**
+     * Short range particle-particle forces on a uniform grid with cells one
+     * interaction radius wide. Every tick the active particles are counting
+     * sorted into cells in parallel, with sorted copies of their positions, so
+     * the neighbors of a particle are the particles of its own and the eight
+     * surrounding cells. A row of three neighbor cells is one contiguous run of
+     * the sorted arrays, which the force loop walks a vector of neighbors at a
+     * time.
+     *
+     * The force between two particles closer than the radius h pushes them apart
+     * by strength * (r / h) * (1 - r^2 / h^2)^2, zero at contact and at h and
+     * needing no square root. A negative strength pulls neighbors together
+     * instead. Forces go straight into the velocities, the tick moves the
+     * particles afterwards.
+     *
+     * Particles outside the viewport go into one extra cell that is never
+     * searched, so they neither feel nor exert any force, and a crowd of them off
+     * screen can't pile up in the edge cells. Only the float layout is supported,
+     * and at most 2^31 - 1 particles since the sorted index is an int.
+     */
+    static class NeighborGrid implements AutoCloseable {
+        private static final VectorSpecies<Float> F_SPECIES = ParticleEngine.F_SPECIES;
+        private static final int LANE_SIZE = F_SPECIES.length();
+        private static final ByteOrder ORDER = ByteOrder.nativeOrder();
+        static final float DEFAULT_RADIUS = 2f;
+        static final float DEFAULT_STRENGTH = 4000f;
+
+        final float radius;
+        final float strength;
+        private final int threadCount;
+        private final Arena arena;
+        private final MemorySegment sortedX;
+        private final MemorySegment sortedY;
+        private final MemorySegment sortedIndex;
+        private final long[] rangeTotals;
+        private final AtomicInteger nextRow = new AtomicInteger();
+
+        private int gridW;
+        private int gridH;
+        // gridW * gridH cells plus the outside cell
+        private int cellCount;
+        // each worker's count per cell, turned into its write cursors in place
+        private int[][] cellCounts;
+        // first sorted slot of each cell, with the total at cellCount
+        private int[] cellStarts;
+        private long particles;
+
+        NeighborGrid(long capacity, int threadCount, float radius, float strength) {
+            if (capacity > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Particle interaction supports at most " + Integer.MAX_VALUE
+                        + " particles");
+            }
+            if (!(radius > 0)) {
+                throw new IllegalArgumentException("Interaction radius must be positive: " + radius);
+            }
+            this.radius = radius;
+            this.strength = strength;
+            this.threadCount = threadCount;
+            this.arena = Arena.ofShared();
+            // a vector of slack so the force loop can always load whole vectors
+            final long count = capacity + LANE_SIZE;
+            this.sortedX = arena.allocate(count * Float.BYTES, ParticleStore.ALIGNMENT);
+            this.sortedY = arena.allocate(count * Float.BYTES, ParticleStore.ALIGNMENT);
+            this.sortedIndex = arena.allocate(count * Integer.BYTES, ParticleStore.ALIGNMENT);
+            this.rangeTotals = new long[threadCount];
+        }
+
+        /**
+         * Bytes of scratch space per particle.
+         */
+        static long bytesPerParticle() {
+            return 2L * Float.BYTES + Integer.BYTES;
+        }
+
+        /**
+         * Sorts the first particles active particles into cells and adds the
+         * neighbor forces for one tick to their velocities.
+         */
+        void apply(ParticleEngine engine, long active, float deltaTime) {
+            final int w = Math.max(1, engine.getWidth());
+            final int h = Math.max(1, engine.getHeight());
+            final int cellsX = (int) Math.ceil(w / radius);
+            final int cellsY = (int) Math.ceil(h / radius);
+            if (cellsX != gridW || cellsY != gridH || cellCounts == null) {
+                if ((long) cellsX * cellsY >= Integer.MAX_VALUE - 1) {
+                    throw new IllegalStateException(
+                            "Interaction radius " + radius + " is too small for " + w + "x" + h);
+                }
+                this.gridW = cellsX;
+                this.gridH = cellsY;
+                this.cellCount = cellsX * cellsY + 1;
+                this.cellCounts = new int[threadCount][cellCount];
+                this.cellStarts = new int[cellCount + 1];
+            }
+            this.particles = active;
+            final WorkerGroup workers = engine.workers;
+            workers.run(id -> countCells(id, engine));
+            workers.run(this::sumCells);
+            scanRanges();
+            workers.run(this::assignOffsets);
+            workers.run(id -> scatter(id, engine));
+            nextRow.set(0);
+            workers.run(id -> addForces(engine, deltaTime));
+        }
+
+        private long rangeStart(int id) {
+            return particles * id / threadCount;
+        }
+
+        private int cellRangeStart(int id) {
+            return (int) ((long) cellCount * id / threadCount);
+        }
+
+        private int cellOf(float x, float y, float inverseRadius) {
+            if (!(x >= 0 && y >= 0)) {
+                return cellCount - 1;
+            }
+            final int cx = (int) (x * inverseRadius);
+            final int cy = (int) (y * inverseRadius);
+            return cx < gridW && cy < gridH ? cy * gridW + cx : cellCount - 1;
+        }
+
+        private void countCells(int id, ParticleEngine engine) {
+            final MemorySegment positionsX = engine.positionsX;
+            final MemorySegment positionsY = engine.positionsY;
+            final int[] counts = cellCounts[id];
+            final float inverseRadius = 1f / radius;
+            Arrays.fill(counts, 0);
+            final long end = rangeStart(id + 1);
+            for (long i = rangeStart(id); i < end; i++) {
+                counts[cellOf(positionsX.getAtIndex(JAVA_FLOAT, i), positionsY.getAtIndex(JAVA_FLOAT, i),
+                        inverseRadius)]++;
+            }
+        }
+
+        private void sumCells(int id) {
+            final int end = cellRangeStart(id + 1);
+            long total = 0;
+            for (int worker = 0; worker < threadCount; worker++) {
+                final int[] counts = cellCounts[worker];
+                for (int c = cellRangeStart(id); c < end; c++) {
+                    total += counts[c];
+                }
+            }
+            rangeTotals[id] = total;
+        }
+
+        private void scanRanges() {
+            long running = 0;
+            for (int id = 0; id < threadCount; id++) {
+                final long total = rangeTotals[id];
+                rangeTotals[id] = running;
+                running += total;
+            }
+            cellStarts[cellCount] = (int) running;
+        }
+
+        private void assignOffsets(int id) {
+            final int end = cellRangeStart(id + 1);
+            int running = (int) rangeTotals[id];
+            for (int c = cellRangeStart(id); c < end; c++) {
+                cellStarts[c] = running;
+                for (int worker = 0; worker < threadCount; worker++) {
+                    final int count = cellCounts[worker][c];
+                    cellCounts[worker][c] = running;
+                    running += count;
+                }
+            }
+        }
+
+        private void scatter(int id, ParticleEngine engine) {
+            final MemorySegment positionsX = engine.positionsX;
+            final MemorySegment positionsY = engine.positionsY;
+            final int[] cursors = cellCounts[id];
+            final float inverseRadius = 1f / radius;
+            final long end = rangeStart(id + 1);
+            for (long i = rangeStart(id); i < end; i++) {
+                final float x = positionsX.getAtIndex(JAVA_FLOAT, i);
+                final float y = positionsY.getAtIndex(JAVA_FLOAT, i);
+                final int slot = cursors[cellOf(x, y, inverseRadius)]++;
+                sortedX.setAtIndex(JAVA_FLOAT, slot, x);
+                sortedY.setAtIndex(JAVA_FLOAT, slot, y);
+                sortedIndex.setAtIndex(JAVA_INT, slot, (int) i);
+            }
+        }
+
+        /**
+         * Claims rows of cells and, for every particle in them, sums the force of
+         * each neighbor row a vector of neighbors at a time.
+         */
+        private void addForces(ParticleEngine engine, float deltaTime) {
+            final MemorySegment velocitiesX = engine.velocitiesX;
+            final MemorySegment velocitiesY = engine.velocitiesY;
+            final MemorySegment sortedX = this.sortedX;
+            final MemorySegment sortedY = this.sortedY;
+            final int[] cellStarts = this.cellStarts;
+            final int gridW = this.gridW;
+            final int gridH = this.gridH;
+            final float radiusSq = radius * radius;
+            final float inverseRadiusSq = 1f / radiusSq;
+            // strength * r / h, with the 1 / h folded in here
+            final float impulse = strength / radius * deltaTime;
+            final FloatVector zero = FloatVector.zero(F_SPECIES);
+
+            int cy;
+            while ((cy = nextRow.getAndIncrement()) < gridH) {
+                final int rowFirst = Math.max(cy - 1, 0);
+                final int rowLast = Math.min(cy + 1, gridH - 1);
+                for (int cx = 0; cx < gridW; cx++) {
+                    final int left = Math.max(cx - 1, 0);
+                    final int right = Math.min(cx + 1, gridW - 1);
+                    final int cell = cy * gridW + cx;
+                    for (int k = cellStarts[cell]; k < cellStarts[cell + 1]; k++) {
+                        final FloatVector xi = FloatVector.broadcast(F_SPECIES, sortedX.getAtIndex(JAVA_FLOAT, k));
+                        final FloatVector yi = FloatVector.broadcast(F_SPECIES, sortedY.getAtIndex(JAVA_FLOAT, k));
+                        FloatVector forceX = zero;
+                        FloatVector forceY = zero;
+                        for (int ny = rowFirst; ny <= rowLast; ny++) {
+                            final int from = cellStarts[ny * gridW + left];
+                            final int to = cellStarts[ny * gridW + right + 1];
+                            for (int j = from; j < to; j += LANE_SIZE) {
+                                // lanes past the run hold whatever comes next, the mask drops them
+                                final VectorMask<Float> inRange = F_SPECIES.indexInRange(j, to);
+                                final FloatVector dx = xi.sub(FloatVector.fromMemorySegment(F_SPECIES,
+                                        sortedX, (long) j * Float.BYTES, ORDER));
+                                final FloatVector dy = yi.sub(FloatVector.fromMemorySegment(F_SPECIES,
+                                        sortedY, (long) j * Float.BYTES, ORDER));
+                                final FloatVector distSq = dx.fma(dx, dy.mul(dy));
+                                // the particle itself is at distance 0, where dx and dy add nothing
+                                final VectorMask<Float> near = distSq.compare(LT, radiusSq).and(inRange);
+                                final FloatVector falloff = distSq.mul(-inverseRadiusSq).add(1f);
+                                final FloatVector weight = falloff.mul(falloff);
+                                forceX = forceX.add(dx.mul(weight), near);
+                                forceY = forceY.add(dy.mul(weight), near);
+                            }
+                        }
+                        final long i = sortedIndex.getAtIndex(JAVA_INT, k);
+                        velocitiesX.setAtIndex(JAVA_FLOAT, i, velocitiesX.getAtIndex(JAVA_FLOAT, i)
+                                + forceX.reduceLanes(ADD) * impulse);
+                        velocitiesY.setAtIndex(JAVA_FLOAT, i, velocitiesY.getAtIndex(JAVA_FLOAT, i)
+                                + forceY.reduceLanes(ADD) * impulse);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            arena.close();
+        }
+    }
+
+    /**
+     * Long range gravity between all particles, particle-mesh style. Each tick
+     * the particles' mass is spread onto a square grid over the viewport with
+     * cloud-in-cell weights, the grid is convolved with the force of a softened
+     * point mass using FFTs, and the tick kernels interpolate the force at each
+     * particle back from the grid with the same weights. The cost is one pass
+     * over the particles plus O(M^2 log M) for the M x M transform, whatever the
+     * particle count, instead of the N^2 of summing every pair.
+     *
+     * The grid is zero padded to twice its size so the convolution doesn't wrap
+     * around, mass at one edge doesn't pull on the other. The kernel holds the x
+     * force in its real part and the y force in its imaginary part, so a single
+     * inverse transform gives both. Forces are softened by one cell, which is
+     * also about the resolution of the mesh, so close encounters are smoothed
+     * out. Mass outside the grid is dropped and particles there feel nothing.
+     *
+     * Every phase runs on the worker group: each worker deposits its share of
+     * the particles into its own grid, the grids are summed by rows, rows are
+     * transformed by rows, and the columns go a vector of columns at a time,
+     * each block transformed, multiplied by the kernel and transformed back while
+     * it is in cache.
+     */
+    static class MeshGravity {
+        private static final VectorSpecies<Float> F_SPECIES = ParticleEngine.F_SPECIES;
+        private static final int LANE_SIZE = F_SPECIES.length();
+        static final int DEFAULT_MESH = 256;
+        // strength is the pull of all the mass at this many px
+        static final float REFERENCE_DIST = 100f;
+
+        final int mesh;
+        final float strength;
+        private final int padded;
+        private final int threadCount;
+        private final float[][] deposits;
+        private final float[] workRe;
+        private final float[] workIm;
+        private final float[] kernelRe;
+        private final float[] kernelIm;
+        private final float[] cos;
+        private final float[] sin;
+        private final int[] bitReverse;
+        // velocity change per tick at each cell center, read by the tick kernels
+        final float[] forceX;
+        final float[] forceY;
+        // px to cell coordinates, for the tick kernels
+        float toCells;
+
+        private float cellSize;
+        private long particles;
+        private float forceScale;
+
+        MeshGravity(int mesh, int threadCount, float strength) {
+            if (mesh < 16 || Integer.bitCount(mesh) != 1) {
+                throw new IllegalArgumentException("Gravity mesh must be a power of two of at least 16: " + mesh);
+            }
+            this.mesh = mesh;
+            this.strength = strength;
+            this.padded = mesh * 2;
+            this.threadCount = threadCount;
+            this.deposits = new float[threadCount][mesh * mesh];
+            this.workRe = new float[padded * padded];
+            this.workIm = new float[padded * padded];
+            this.kernelRe = new float[padded * padded];
+            this.kernelIm = new float[padded * padded];
+            this.forceX = new float[mesh * mesh];
+            this.forceY = new float[mesh * mesh];
+            this.cos = new float[padded / 2];
+            this.sin = new float[padded / 2];
+            for (int k = 0; k < padded / 2; k++) {
+                cos[k] = (float) Math.cos(2 * Math.PI * k / padded);
+                sin[k] = (float) Math.sin(2 * Math.PI * k / padded);
+            }
+            this.bitReverse = new int[padded];
+            final int bits = Integer.numberOfTrailingZeros(padded);
+            for (int i = 0; i < padded; i++) {
+                bitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+            }
+        }
+
+        /**
+         * Deposits the first active particles and solves for the forces of one
+         * tick of deltaTime, which {@link #forceX} and {@link #forceY} then hold.
+         */
+        void solve(ParticleEngine engine, long active, float deltaTime) {
+            deposit(engine, active);
+            transform(engine.workers, deltaTime);
+        }
+
+        /**
+         * Spreads the mass of the first active particles onto the grid, the
+         * first phase of {@link #solve}.
+         */
+        void deposit(ParticleEngine engine, long active) {
+            final float size = Math.max(1, Math.max(engine.getWidth(), engine.getHeight())) / (float) mesh;
+            if (size != cellSize) {
+                this.cellSize = size;
+                this.toCells = 1f / size;
+                buildKernel(engine.workers);
+            }
+            this.particles = active;
+            engine.workers.run(id -> depositRange(id, engine));
+        }
+
+        /**
+         * Convolves the deposited mass with the kernel, the rest of
+         * {@link #solve}.
+         */
+        void transform(WorkerGroup workers, float deltaTime) {
+            // unit masses summing to one, the 1 / M^2 of the inverse transform is folded in
+            this.forceScale = strength * REFERENCE_DIST * REFERENCE_DIST / Math.max(1, particles) * deltaTime
+                    / ((float) padded * padded);
+            workers.run(this::sumDeposits);
+            workers.run(id -> transformRows(id, mesh, false, false));
+            workers.run(id -> transformColumns(id, workRe, workIm, true));
+            workers.run(id -> transformRows(id, mesh, true, true));
+        }
+
+        private int rangeStart(int id, int count) {
+            return (int) ((long) count * id / threadCount);
+        }
+
+        private void depositRange(int id, ParticleEngine engine) {
+            final MemorySegment positionsX = engine.positionsX;
+            final MemorySegment positionsY = engine.positionsY;
+            final float[] grid = deposits[id];
+            final int n = mesh;
+            final float toCells = this.toCells;
+            final float last = n - 1;
+            Arrays.fill(grid, 0);
+            final long end = particles * (id + 1) / threadCount;
+            for (long i = particles * id / threadCount; i < end; i++) {
+                final float u = positionsX.getAtIndex(JAVA_FLOAT, i) * toCells - 0.5f;
+                final float v = positionsY.getAtIndex(JAVA_FLOAT, i) * toCells - 0.5f;
+                if (u >= 0 && u < last && v >= 0 && v < last) {
+                    final int cu = (int) u;
+                    final int cv = (int) v;
+                    final float fu = u - cu;
+                    final float fv = v - cv;
+                    final int cell = cv * n + cu;
+                    grid[cell] += (1 - fu) * (1 - fv);
+                    grid[cell + 1] += fu * (1 - fv);
+                    grid[cell + n] += (1 - fu) * fv;
+                    grid[cell + n + 1] += fu * fv;
+                }
+            }
+        }
+
+        /**
+         * Sums the workers' grids into the top left of the padded grid and zeroes
+         * the padding.
+         */
+        private void sumDeposits(int id) {
+            final int n = mesh;
+            final int m = padded;
+            final int end = rangeStart(id + 1, m);
+            for (int row = rangeStart(id, m); row < end; row++) {
+                final int base = row * m;
+                Arrays.fill(workRe, base, base + m, 0);
+                Arrays.fill(workIm, base, base + m, 0);
+                if (row < n) {
+                    for (float[] grid : deposits) {
+                        for (int col = 0; col < n; col++) {
+                            workRe[base + col] += grid[row * n + col];
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Transforms this worker's share of the first rows rows. The inverse also
+         * copies the scaled forces out of the rows it transformed.
+         */
+        private void transformRows(int id, int rows, boolean inverse, boolean extract) {
+            final int end = rangeStart(id + 1, rows);
+            for (int row = rangeStart(id, rows); row < end; row++) {
+                transformRow(workRe, workIm, row * padded, inverse);
+                if (extract) {
+                    final int base = row * padded;
+                    final float scale = forceScale;
+                    for (int col = 0; col < mesh; col++) {
+                        forceX[row * mesh + col] = workRe[base + col] * scale;
+                        forceY[row * mesh + col] = workIm[base + col] * scale;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Radix 2 FFT of one row in place, forward unless inverse, unscaled.
+         */
+        void transformRow(float[] re, float[] im, int offset, boolean inverse) {
+            final int m = padded;
+            for (int i = 0; i < m; i++) {
+                final int j = bitReverse[i];
+                if (i < j) {
+                    float t = re[offset + i];
+                    re[offset + i] = re[offset + j];
+                    re[offset + j] = t;
+                    t = im[offset + i];
+                    im[offset + i] = im[offset + j];
+                    im[offset + j] = t;
+                }
+            }
+            final float sign = inverse ? 1 : -1;
+            for (int len = 2; len <= m; len <<= 1) {
+                final int half = len >> 1;
+                final int step = m / len;
+                for (int i = 0; i < m; i += len) {
+                    for (int k = 0; k < half; k++) {
+                        final float wr = cos[k * step];
+                        final float wi = sign * sin[k * step];
+                        final int a = offset + i + k;
+                        final int b = a + half;
+                        final float tr = re[b] * wr - im[b] * wi;
+                        final float ti = re[b] * wi + im[b] * wr;
+                        re[b] = re[a] - tr;
+                        im[b] = im[a] - ti;
+                        re[a] += tr;
+                        im[a] += ti;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Transforms this worker's share of the columns, a vector of neighboring
+         * columns at a time so every butterfly is a row of plain vector loads.
+         * With convolve each block is also multiplied by the kernel and
+         * transformed back, otherwise it is just the forward transform.
+         */
+        private void transformColumns(int id, float[] re, float[] im, boolean convolve) {
+            final int blocks = padded / LANE_SIZE;
+            final int end = rangeStart(id + 1, blocks);
+            for (int block = rangeStart(id, blocks); block < end; block++) {
+                final int col = block * LANE_SIZE;
+                transformColumnBlock(re, im, col, false);
+                if (convolve) {
+                    for (int row = 0; row < padded; row++) {
+                        final int at = row * padded + col;
+                        final FloatVector ar = FloatVector.fromArray(F_SPECIES, re, at);
+                        final FloatVector ai = FloatVector.fromArray(F_SPECIES, im, at);
+                        final FloatVector br = FloatVector.fromArray(F_SPECIES, kernelRe, at);
+                        final FloatVector bi = FloatVector.fromArray(F_SPECIES, kernelIm, at);
+                        ar.mul(br).sub(ai.mul(bi)).intoArray(re, at);
+                        ar.mul(bi).add(ai.mul(br)).intoArray(im, at);
+                    }
+                    transformColumnBlock(re, im, col, true);
+                }
+            }
+        }
+
+        private void transformColumnBlock(float[] re, float[] im, int col, boolean inverse) {
+            final int m = padded;
+            for (int i = 0; i < m; i++) {
+                final int j = bitReverse[i];
+                if (i < j) {
+                    final int a = i * m + col;
+                    final int b = j * m + col;
+                    final FloatVector ar = FloatVector.fromArray(F_SPECIES, re, a);
+                    final FloatVector ai = FloatVector.fromArray(F_SPECIES, im, a);
+                    FloatVector.fromArray(F_SPECIES, re, b).intoArray(re, a);
+                    FloatVector.fromArray(F_SPECIES, im, b).intoArray(im, a);
+                    ar.intoArray(re, b);
+                    ai.intoArray(im, b);
+                }
+            }
+            final float sign = inverse ? 1 : -1;
+            for (int len = 2; len <= m; len <<= 1) {
+                final int half = len >> 1;
+                final int step = m / len;
+                for (int i = 0; i < m; i += len) {
+                    for (int k = 0; k < half; k++) {
+                        final float wr = cos[k * step];
+                        final float wi = sign * sin[k * step];
+                        final int a = (i + k) * m + col;
+                        final int b = a + half * m;
+                        final FloatVector ar = FloatVector.fromArray(F_SPECIES, re, a);
+                        final FloatVector ai = FloatVector.fromArray(F_SPECIES, im, a);
+                        final FloatVector br = FloatVector.fromArray(F_SPECIES, re, b);
+                        final FloatVector bi = FloatVector.fromArray(F_SPECIES, im, b);
+                        final FloatVector tr = br.mul(wr).sub(bi.mul(wi));
+                        final FloatVector ti = br.mul(wi).add(bi.mul(wr));
+                        ar.sub(tr).intoArray(re, b);
+                        ai.sub(ti).intoArray(im, b);
+                        ar.add(tr).intoArray(re, a);
+                        ai.add(ti).intoArray(im, a);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Fills the kernel with the softened force of a unit mass at every offset
+         * the unpadded grid can have, x in the real part and y in the imaginary
+         * part, and transforms it. Only runs when the cell size changes.
+         */
+        private void buildKernel(WorkerGroup workers) {
+            final int m = padded;
+            final float size = cellSize;
+            final float softeningSq = size * size;
+            for (int row = 0; row < m; row++) {
+                for (int col = 0; col < m; col++) {
+                    // offset from the mass to the particle, wrapped to negative past the middle
+                    final int dy = row < m / 2 ? row : row - m;
+                    final int dx = col < m / 2 ? col : col - m;
+                    final float x = dx * size;
+                    final float y = dy * size;
+                    final float distSq = x * x + y * y + softeningSq;
+                    final float inverseCube = (float) (1 / (distSq * Math.sqrt(distSq)));
+                    // toward the mass, so against the offset
+                    kernelRe[row * m + col] = row == m / 2 || col == m / 2 ? 0 : -x * inverseCube;
+                    kernelIm[row * m + col] = row == m / 2 || col == m / 2 ? 0 : -y * inverseCube;
+                }
+            }
+            workers.run(id -> {
+                final int end = rangeStart(id + 1, m);
+                for (int row = rangeStart(id, m); row < end; row++) {
+                    transformRow(kernelRe, kernelIm, row * m, false);
+                }
+            });
+            workers.run(id -> transformColumns(id, kernelRe, kernelIm, false));
+        }
+
+        /**
+         * Adds the velocity change at (px, py) to accel[0] and accel[1], the
+         * scalar version of the interpolation in the tick kernels.
+         */
+        void addAccelerationAt(float px, float py, float[] accel) {
+            final float u = px * toCells - 0.5f;
+            final float v = py * toCells - 0.5f;
+            if (u >= 0 && u < mesh - 1 && v >= 0 && v < mesh - 1) {
+                final int cu = (int) u;
+                final int cv = (int) v;
+                final float fu = u - cu;
+                final float fv = v - cv;
+                final float w00 = (1 - fu) * (1 - fv);
+                final float w10 = fu * (1 - fv);
+                final float w01 = (1 - fu) * fv;
+                final float w11 = fu * fv;
+                final int cell = cv * mesh + cu;
+                accel[0] += forceX[cell] * w00 + forceX[cell + 1] * w10 + forceX[cell + mesh] * w01
+                        + forceX[cell + mesh + 1] * w11;
+                accel[1] += forceY[cell] * w00 + forceY[cell + 1] * w10 + forceY[cell + mesh] * w01
+                        + forceY[cell + mesh + 1] * w11;
+            }
+        }
+    }
+
+    /**
+     * Point forces and uniform fields that act on every particle on top of the
+     * mouse attractor. A point force pulls toward its source (or pushes away with
+     * a negative strength), can swirl around it like a vortex, fades with
+     * distance as one of the {@link Falloff} shapes and only reaches particles
+     * within its range.
+     *
+     * Every kind of point force is the same formula with different coefficients,
+     * so the tick evaluates all of them in one loop over flat arrays, one set of
+     * broadcasts per force and vector of particles, with no per-particle
+     * dispatch. The cost is linear in the number of forces. Uniform fields don't
+     * depend on position and are summed into one acceleration.
+     *
+     * Change forces between frames only, each tick packs them together with the
+     * mouse attractor into the arrays the kernels read.
+     */
+    static final class ForceField {
+
+        /**
+         * How a point force fades with distance r. Strengths of the inverse
+         * falloffs are the acceleration 1 px from the source.
+         */
+        enum Falloff {
+            CONSTANT(1, 0, 0),
+            INVERSE(0, 1, 0),
+            INVERSE_SQUARE(0, 0, 1);
+
+            // scale is c0 + c1 / r + c2 / r^2
+            final float c0;
+            final float c1;
+            final float c2;
+
+            Falloff(float c0, float c1, float c2) {
+                this.c0 = c0;
+                this.c1 = c1;
+                this.c2 = c2;
+            }
+        }
+
+        private int count;
+        private float[] x = new float[4];
+        private float[] y = new float[4];
+        private float[] pull = new float[4];
+        private float[] spin = new float[4];
+        private float[] range = new float[4];
+        private Falloff[] falloff = new Falloff[4];
+        private float uniformX;
+        private float uniformY;
+
+        // packed for one tick, with strengths turned into velocity changes
+        int packedCount;
+        float[] sourceX = new float[0];
+        float[] sourceY = new float[0];
+        float[] pullStep = new float[0];
+        float[] spinStep = new float[0];
+        float[] falloff0 = new float[0];
+        float[] falloff1 = new float[0];
+        float[] falloff2 = new float[0];
+        float[] minDistSq = new float[0];
+        float[] maxDistSq = new float[0];
+        float driftX;
+        float driftY;
+
+        /**
+         * Adds a force pulling toward (x, y) with strength in px/s^2, negative
+         * pushes away. Returns its index for {@link #move}.
+         */
+        int addAttractor(float x, float y, float strength, Falloff falloff, float range) {
+            return add(x, y, strength, 0, falloff, range);
+        }
+
+        /**
+         * Adds a force that swirls particles around (x, y), clockwise on screen
+         * for a positive strength.
+         */
+        int addVortex(float x, float y, float strength, Falloff falloff, float range) {
+            return add(x, y, 0, strength, falloff, range);
+        }
+
+        /**
+         * Adds a point force that pulls and swirls at once, range is how far from
+         * the source it reaches, infinite for everywhere.
+         */
+        int add(float x, float y, float pull, float spin, Falloff falloff, float range) {
+            if (count == this.x.length) {
+                final int capacity = count * 2;
+                this.x = Arrays.copyOf(this.x, capacity);
+                this.y = Arrays.copyOf(this.y, capacity);
+                this.pull = Arrays.copyOf(this.pull, capacity);
+                this.spin = Arrays.copyOf(this.spin, capacity);
+                this.range = Arrays.copyOf(this.range, capacity);
+                this.falloff = Arrays.copyOf(this.falloff, capacity);
+            }
+            this.x[count] = x;
+            this.y[count] = y;
+            this.pull[count] = pull;
+            this.spin[count] = spin;
+            this.range[count] = range;
+            this.falloff[count] = falloff;
+            return count++;
+        }
+
+        /**
+         * Adds a constant acceleration in px/s^2 everywhere, like gravity or wind.
+         */
+        void addUniform(float ax, float ay) {
+            this.uniformX += ax;
+            this.uniformY += ay;
+        }
+
+        /**
+         * Adds count forces evenly around a circle, each pulling with an inverse
+         * falloff that matches pullForce at 100 px and swirling at half that,
+         * alternating direction.
+         */
+        void addRing(int count, float centerX, float centerY, float radius, float pullForce) {
+            for (int i = 0; i < count; i++) {
+                final double angle = 2 * Math.PI * i / count;
+                final float strength = pullForce * 100;
+                add(centerX + radius * (float) Math.cos(angle), centerY + radius * (float) Math.sin(angle), strength,
+                        i % 2 == 0 ? strength / 2 : -strength / 2, Falloff.INVERSE, Float.POSITIVE_INFINITY);
+            }
+        }
+
+        void move(int force, float x, float y) {
+            this.x[force] = x;
+            this.y[force] = y;
+        }
+
+        int size() {
+            return count;
+        }
+
+        void clear() {
+            this.count = 0;
+            this.uniformX = 0;
+            this.uniformY = 0;
+        }
+
+        /**
+         * Lays out the forces for a tick of deltaTime, led by the mouse
+         * attractor when it is active: a constant pull that skips particles
+         * within minPullDist, so they don't fling off when passing through it.
+         */
+        void pack(float deltaTime, float attractorX, float attractorY, boolean attractorActive, float pullForce,
+                float minPullDist) {
+            final int packed = count + (attractorActive ? 1 : 0);
+            if (sourceX.length < packed) {
+                this.sourceX = new float[packed];
+                this.sourceY = new float[packed];
+                this.pullStep = new float[packed];
+                this.spinStep = new float[packed];
+                this.falloff0 = new float[packed];
+                this.falloff1 = new float[packed];
+                this.falloff2 = new float[packed];
+                this.minDistSq = new float[packed];
+                this.maxDistSq = new float[packed];
+            }
+            final float minSq = minPullDist * minPullDist;
+            int k = 0;
+            if (attractorActive) {
+                put(k++, attractorX, attractorY, pullForce * deltaTime, 0, Falloff.CONSTANT, minSq,
+                        Float.POSITIVE_INFINITY);
+            }
+            for (int f = 0; f < count; f++) {
+                put(k++, x[f], y[f], pull[f] * deltaTime, spin[f] * deltaTime, falloff[f], minSq, range[f] * range[f]);
+            }
+            this.packedCount = packed;
+            this.driftX = uniformX * deltaTime;
+            this.driftY = uniformY * deltaTime;
+        }
+
+        /**
+         * Scalar version of the force loop in the kernels, for the particles
+         * that don't fill a vector. Writes the velocity change for a particle at
+         * (px, py) to accel[0] and accel[1].
+         */
+        void accelerationAt(float px, float py, float[] accel) {
+            float accelX = driftX;
+            float accelY = driftY;
+            for (int f = 0; f < packedCount; f++) {
+                float dx = sourceX[f] - px;
+                float dy = sourceY[f] - py;
+                float distSq = dx * dx + dy * dy;
+
+                if (distSq > minDistSq[f] && distSq < maxDistSq[f]) {
+                    float dist = (float) Math.sqrt(distSq);
+                    float unitX;
+                    float unitY;
+                    float pull = pullStep[f];
+                    float spin = spinStep[f];
+                    if (falloff1[f] != 0 || falloff2[f] != 0) {
+                        float inverseDist = 1f / dist;
+                        unitX = dx * inverseDist;
+                        unitY = dy * inverseDist;
+                        float scale = (inverseDist * falloff2[f] + falloff1[f]) * inverseDist + falloff0[f];
+                        pull *= scale;
+                        spin *= scale;
+                    } else {
+                        unitX = dx / dist;
+                        unitY = dy / dist;
+                    }
+                    float forceX = unitX * pull;
+                    float forceY = unitY * pull;
+                    if (spinStep[f] != 0) {
+                        forceX -= unitY * spin;
+                        forceY += unitX * spin;
+                    }
+                    accelX += forceX;
+                    accelY += forceY;
+                }
+            }
+            accel[0] = accelX;
+            accel[1] = accelY;
+        }
+
+        private void put(int k, float x, float y, float pullStep, float spinStep, Falloff falloff, float minSq,
+                float maxSq) {
+            sourceX[k] = x;
+            sourceY[k] = y;
+            this.pullStep[k] = pullStep;
+            this.spinStep[k] = spinStep;
+            falloff0[k] = falloff.c0;
+            falloff1[k] = falloff.c1;
+            falloff2[k] = falloff.c2;
+            minDistSq[k] = minSq;
+            maxDistSq[k] = maxSq;
+        }
+    }
+
+    /**
+     * Log linear latency histogram with 32 buckets per power of two, so
+     * percentiles are within about 3%. Recording is a couple of shifts and an
+     * increment with no allocation. Not thread safe, every histogram has one
+     * writer at a time and is read between frames.
+     */
+    static final class LatencyHistogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final long[] counts = new long[(64 - SUB_BITS) * SUB_BUCKETS];
+        private long count;
+        private long max;
+
+        void record(long nanos) {
+            final long value = Math.max(0, nanos);
+            counts[bucketOf(value)]++;
+            count++;
+            if (value > max) {
+                max = value;
+            }
+        }
+
+        private static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            final int exponent = 63 - Long.numberOfLeadingZeros(value);
+            final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * Middle of the bucket.
+         */
+        private static long valueOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            final int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            final long width = 1L << (exponent - SUB_BITS);
+            return (1L << exponent) + (bucket % SUB_BUCKETS) * width + width / 2;
+        }
+
+        long count() {
+            return count;
+        }
+
+        long max() {
+            return max;
+        }
+
+        /**
+         * Value at quantile q (0..1), never above the max recorded.
+         */
+        long percentile(double q) {
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(q * count));
+            long seen = 0;
+            for (int bucket = 0; bucket < counts.length; bucket++) {
+                seen += counts[bucket];
+                if (seen >= rank) {
+                    return Math.min(valueOf(bucket), max);
+                }
+            }
+            return max;
+        }
+
+        void reset() {
+            Arrays.fill(counts, 0);
+            count = 0;
+            max = 0;
+        }
+    }
+
+    /**
+     * Latency of each frame phase and of each worker's integrate task, plus the
+     * last sample of every phase for the frame event.
+     */
+    static class FrameStats {
+        enum Phase {
+            // Z order sort of the particle arrays, see MortonOrder
+            REORDER,
+            // mass deposit and FFT, see MeshGravity
+            GRAVITY,
+            // neighbor forces, see NeighborGrid
+            INTERACT,
+            // worker tasks moving the particles
+            INTEGRATE,
+            // counting sort of particles into screen tiles
+            BIN,
+            // tiles drawn into the framebuffer
+            RASTERIZE,
+            // framebuffer copied for the recorder
+            RECORD,
+            // framebuffer put on the screen or handed to the frame server
+            PRESENT,
+            // input and resets applied between frames
+            INPUT,
+            FRAME
+        }
+
+        private static final Phase[] PHASES = Phase.values();
+        private final LatencyHistogram[] phases = new LatencyHistogram[PHASES.length];
+        private final LatencyHistogram[] workers;
+        private final long[] last = new long[PHASES.length];
+        // chunks ticked and skipped at rest, and ticks where every chunk rested
+        private long chunkTicks;
+        private long restingChunkTicks;
+        private long ticks;
+        private long idleTicks;
+        private int lastResting;
+
+        FrameStats(int workerCount) {
+            for (int k = 0; k < phases.length; k++) {
+                phases[k] = new LatencyHistogram();
+            }
+            this.workers = new LatencyHistogram[workerCount];
+            for (int id = 0; id < workerCount; id++) {
+                workers[id] = new LatencyHistogram();
+            }
+        }
+
+        void record(Phase phase, long nanos) {
+            phases[phase.ordinal()].record(nanos);
+            last[phase.ordinal()] = nanos;
+        }
+
+        /**
+         * Marks a phase that only runs on some frames as not run this frame, so
+         * the frame event doesn't repeat its last time.
+         */
+        void skip(Phase phase) {
+            last[phase.ordinal()] = 0;
+        }
+
+        void recordWorker(int id, long nanos) {
+            workers[id].record(nanos);
+        }
+
+        void recordResting(int resting, int chunks) {
+            chunkTicks += chunks;
+            restingChunkTicks += resting;
+            ticks++;
+            if (resting == chunks) {
+                idleTicks++;
+            }
+            lastResting = resting;
+        }
+
+        int lastResting() {
+            return lastResting;
+        }
+
+        long last(Phase phase) {
+            return last[phase.ordinal()];
+        }
+
+        LatencyHistogram histogram(Phase phase) {
+            return phases[phase.ordinal()];
+        }
+
+        LatencyHistogram worker(int id) {
+            return workers[id];
+        }
+
+        void reset() {
+            for (LatencyHistogram histogram : phases) {
+                histogram.reset();
+            }
+            for (LatencyHistogram histogram : workers) {
+                histogram.reset();
+            }
+            chunkTicks = 0;
+            restingChunkTicks = 0;
+            ticks = 0;
+            idleTicks = 0;
+        }
+
+        /**
+         * One line per phase with samples, then the integrate time of every
+         * worker, all as p50 / p99 / max in ms, then how much rested if
+         * anything did.
+         */
+        void print(PrintStream out) {
+            for (Phase phase : PHASES) {
+                final LatencyHistogram histogram = phases[phase.ordinal()];
+                if (histogram.count() > 0) {
+                    out.printf("(%s p50/p99/max): %s ms\n", phase.name().toLowerCase(), summary(histogram));
+                }
+            }
+            final StringBuilder perWorker = new StringBuilder();
+            for (int id = 0; id < workers.length; id++) {
+                perWorker.append(id == 0 ? "" : ", ").append(summary(workers[id]));
+            }
+            out.printf("(Worker integrate p50/p99/max ms): %s\n", perWorker);
+            if (restingChunkTicks > 0) {
+                out.printf("(Resting): %.1f%% of chunks, %d of %d ticks idle\n",
+                        100.0 * restingChunkTicks / chunkTicks, idleTicks, ticks);
+            }
+        }
+
+        static String summary(LatencyHistogram histogram) {
+            return String.format("%.3f / %.3f / %.3f", histogram.percentile(0.5) / 1_000_000.0,
+                    histogram.percentile(0.99) / 1_000_000.0, histogram.max() / 1_000_000.0);
+        }
+    }
+
+    /**
+     * Flight recorder event for a frame, with the time of each phase. Committed by
+     * the thread running the frame loop, one instance is reused for every frame.
+     */
+    @Name("particlesim.Frame")
+    @Label("Frame")
+    @Category("Particle Sim")
+    @Description("One tick, render and present of the particle simulation")
+    @StackTrace(false)
+    static final class FrameEvent extends Event {
+        @Label("Frame")
+        long frame;
+
+        @Label("Particles")
+        long particles;
+
+        @Label("Pipelined")
+        boolean pipelined;
+
+        @Label("Resting Chunks")
+        int resting;
+
+        @Label("Reorder")
+        @Timespan(Timespan.NANOSECONDS)
+        long reorder;
+
+        @Label("Gravity")
+        @Timespan(Timespan.NANOSECONDS)
+        long gravity;
+
+        @Label("Interact")
+        @Timespan(Timespan.NANOSECONDS)
+        long interact;
+
+        @Label("Integrate")
+        @Timespan(Timespan.NANOSECONDS)
+        long integrate;
+
+        @Label("Bin")
+        @Timespan(Timespan.NANOSECONDS)
+        long bin;
+
+        @Label("Rasterize")
+        @Timespan(Timespan.NANOSECONDS)
+        long rasterize;
+
+        @Label("Record")
+        @Timespan(Timespan.NANOSECONDS)
+        long record;
+
+        @Label("Present")
+        @Timespan(Timespan.NANOSECONDS)
+        long present;
+    }
+
+    /**
+     * Flight recorder event for one worker's integrate task, covering every chunk
+     * it took. Every task reuses its own instance.
+     */
+    @Name("particlesim.Task")
+    @Label("Integrate Task")
+    @Category("Particle Sim")
+    @Description("One worker moving its share of the particles")
+    @StackTrace(false)
+    static final class TaskEvent extends Event {
+        @Label("Worker")
+        int worker;
+
+        @Label("Chunks")
+        int chunks;
+
+        @Label("Particles")
+        long particles;
+    }
+
+    /**
+     * Drives one frame at a time, either sequentially (tick, render, present) or
+     * pipelined, where frame N is rendered and presented on a separate thread
+     * while the pool ticks frame N+1. Pipelining hides the serial parts of a
+     * frame, the blit and sync and the gaps between worker phases, behind the
+     * other stage, so frame time heads from tick + render toward
+     * max(tick, render). Both stages still share the one worker pool, so two
+     * stages that each saturate every core gain little.
+     *
+     * The cost is one frame of latency: what is on screen is always the state
+     * from before the latest tick, so input applied in a tick shows up a frame
+     * later than in sequential mode. Each call to {@link #frame} returns with
+     * both stages done, so resizes and resets between frames need no extra
+     * locking.
+     */
+    static class FramePipeline implements AutoCloseable {
+        private final ParticleEngine engine;
+        private final ExecutorService presenter;
+        private boolean pipelined;
+        private FrameRecorder recorder;
+        private final FrameEvent event = new FrameEvent();
+        private long frameCount;
+
+        // idle frames in a row that weren't presented, see present
+        private int unpresentedFrames;
+        static final int IDLE_PRESENT_INTERVAL = 30;
+
+        // durations of the last frame
+        long tickNanos;
+        long renderNanos;
+        long frameNanos;
+
+        FramePipeline(ParticleEngine engine, boolean pipelined) {
+            this.engine = engine;
+            this.presenter = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "present");
+                thread.setDaemon(true);
+                return thread;
+            });
+            setPipelined(pipelined);
+        }
+
+        /**
+         * Only call between frames, from the thread calling {@link #frame}.
+         */
+        void setPipelined(boolean pipelined) {
+            this.pipelined = pipelined;
+            engine.setDoubleBuffered(pipelined);
+        }
+
+        boolean isPipelined() {
+            return pipelined;
+        }
+
+        /**
+         * Copies every rendered frame into the recorder before it is presented,
+         * null stops recording. Only call between frames.
+         */
+        void setRecorder(FrameRecorder recorder) {
+            this.recorder = recorder;
+        }
+
+        FrameRecorder getRecorder() {
+            return recorder;
+        }
+
+        /**
+         * Runs tick, renders into framebuffer and then runs present, which is
+         * expected to put the framebuffer on screen. When pipelined, the frame
+         * rendered is the one ticked by the previous call. A frame the
+         * framebuffer already shows, after an idle tick, isn't drawn again.
+         */
+        void frame(Runnable tick, int[] framebuffer, Runnable present) {
+            event.begin();
+            final long frameStart = System.nanoTime();
+            if (!pipelined) {
+                tick.run();
+                final long tickEnd = System.nanoTime();
+                final boolean drawn = engine.renderIfChanged(framebuffer, engine.latestFrame());
+                present(framebuffer, present, recorder, drawn);
+                final long frameEnd = System.nanoTime();
+                tickNanos = tickEnd - frameStart;
+                renderNanos = frameEnd - tickEnd;
+                frameNanos = frameEnd - frameStart;
+                endFrame();
+                return;
+            }
+
+            // taken here rather than on the presenter so the tick below can
+            // never publish its frame before this one is picked up
+            final TileRenderer.BinnedFrame previous = engine.latestFrame();
+            final FrameRecorder frameRecorder = recorder;
+            final Future<?> presenting = presenter.submit(() -> {
+                final long renderStart = System.nanoTime();
+                final boolean drawn = engine.renderIfChanged(framebuffer, previous);
+                present(framebuffer, present, frameRecorder, drawn);
+                renderNanos = System.nanoTime() - renderStart;
+            });
+            tick.run();
+            tickNanos = System.nanoTime() - frameStart;
+            try {
+                presenting.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // a failed render phase fails the frame, as it does unpipelined
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                if (e.getCause() instanceof Error cause) {
+                    throw cause;
+                }
+                throw new IllegalStateException("Render failed", e.getCause());
+            }
+            frameNanos = System.nanoTime() - frameStart;
+            endFrame();
+        }
+
+        /**
+         * Records every frame, but only presents one that wasn't on screen
+         * already, plus an unchanged one every {@link #IDLE_PRESENT_INTERVAL}
+         * frames, so a window that was covered gets its picture back.
+         */
+        private void present(int[] framebuffer, Runnable present, FrameRecorder recorder, boolean drawn) {
+            final FrameStats stats = engine.stats;
+            if (recorder != null) {
+                final long start = System.nanoTime();
+                recorder.record(framebuffer);
+                stats.record(FrameStats.Phase.RECORD, System.nanoTime() - start);
+            } else {
+                stats.skip(FrameStats.Phase.RECORD);
+            }
+            if (drawn || ++unpresentedFrames >= IDLE_PRESENT_INTERVAL) {
+                unpresentedFrames = 0;
+                final long start = System.nanoTime();
+                present.run();
+                stats.record(FrameStats.Phase.PRESENT, System.nanoTime() - start);
+            } else {
+                stats.skip(FrameStats.Phase.PRESENT);
+            }
+        }
+
+        private void endFrame() {
+            final FrameStats stats = engine.stats;
+            stats.record(FrameStats.Phase.FRAME, frameNanos);
+            frameCount++;
+            event.end();
+            if (event.shouldCommit()) {
+                event.frame = frameCount;
+                event.particles = engine.getActiveParticles();
+                event.pipelined = pipelined;
+                event.resting = stats.lastResting();
+                event.reorder = stats.last(FrameStats.Phase.REORDER);
+                event.gravity = stats.last(FrameStats.Phase.GRAVITY);
+                event.interact = stats.last(FrameStats.Phase.INTERACT);
+                event.integrate = stats.last(FrameStats.Phase.INTEGRATE);
+                event.bin = stats.last(FrameStats.Phase.BIN);
+                event.rasterize = stats.last(FrameStats.Phase.RASTERIZE);
+                event.record = stats.last(FrameStats.Phase.RECORD);
+                event.present = stats.last(FrameStats.Phase.PRESENT);
+                event.commit();
+            }
+        }
+
+        @Override
+        public void close() {
+            presenter.shutdown();
+        }
+    }
+
+    /**
+     * Streams rendered frames to disk off the frame loop. {@link #record} copies
+     * the framebuffer into one of a few pooled buffers and queues it, a writer
+     * thread encodes and writes queued frames in order. When every buffer is
+     * queued the disk is behind, and the policy either drops the new frame or
+     * makes the frame loop wait for a free buffer.
+     *
+     * The format follows the file name: {@code .y4m} is YUV4MPEG2 4:4:4 video,
+     * {@code .png} writes one numbered png per frame next to the name, anything
+     * else is headerless RGBA frames back to back.
+     */
+    static class FrameRecorder implements AutoCloseable {
+        static final int POOL_SIZE = 6;
+
+        enum Format {
+            RAW, Y4M, PNG
+        }
+
+        enum Policy {
+            DROP, BLOCK
+        }
+
+        final Path path;
+        final Format format;
+        final Policy policy;
+        final int width;
+        final int height;
+        private final double fps;
+        private final ArrayBlockingQueue<int[]> free = new ArrayBlockingQueue<>(POOL_SIZE);
+        private final ArrayBlockingQueue<int[]> queued = new ArrayBlockingQueue<>(POOL_SIZE + 1);
+        // queued after the last frame to stop the writer
+        private final int[] end = new int[0];
+        private final Thread writer;
+        private final FileChannel channel;
+        private volatile boolean closed = false;
+        private volatile Exception failure;
+
+        // counters, only the frame loop and the writer write them
+        private volatile long recordedFrames;
+        private volatile long droppedFrames;
+        private volatile long writtenFrames;
+        private volatile long writtenBytes;
+        private volatile long stalledNanos;
+        private volatile int peakQueued;
+
+        FrameRecorder(Path path, int width, int height, double fps, Policy policy) throws IOException {
+            this.path = path;
+            this.width = width;
+            this.height = height;
+            this.fps = fps;
+            this.policy = policy;
+            final String name = path.getFileName().toString().toLowerCase();
+            this.format = name.endsWith(".y4m") ? Format.Y4M : name.endsWith(".png") ? Format.PNG : Format.RAW;
+            for (int k = 0; k < POOL_SIZE; k++) {
+                free.add(new int[width * height]);
+            }
+            this.channel = format == Format.PNG ? null
+                    : FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                            StandardOpenOption.WRITE);
+            this.writer = new Thread(this::writeFrames, "recorder");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        /**
+         * Parses a policy name from the command line.
+         */
+        static Policy policyOf(String name) {
+            return Policy.valueOf(name.toUpperCase());
+        }
+
+        /**
+         * Queues a copy of the frame. Frames of a different size than the
+         * recording, or after the writer failed, count as dropped.
+         */
+        void record(int[] framebuffer) {
+            if (closed || failure != null || framebuffer.length != width * height) {
+                droppedFrames++;
+                return;
+            }
+            int[] buffer = free.poll();
+            if (buffer == null) {
+                if (policy == Policy.DROP) {
+                    droppedFrames++;
+                    return;
+                }
+                final long stallStart = System.nanoTime();
+                try {
+                    buffer = free.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    droppedFrames++;
+                    return;
+                } finally {
+                    stalledNanos += System.nanoTime() - stallStart;
+                }
+            }
+            System.arraycopy(framebuffer, 0, buffer, 0, buffer.length);
+            queued.add(buffer);
+            recordedFrames++;
+            peakQueued = Math.max(peakQueued, queued.size());
+        }
+
+        private void writeFrames() {
+            final int pixels = width * height;
+            final ByteBuffer bytes = format == Format.PNG ? null
+                    : ByteBuffer.allocateDirect(format == Format.Y4M ? 6 + 3 * pixels : 4 * pixels);
+            final BufferedImage image = format == Format.PNG
+                    ? new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB)
+                    : null;
+            try {
+                if (format == Format.Y4M) {
+                    final int rate = (int) Math.round(fps * 1000);
+                    write(ByteBuffer.wrap(
+                            String.format("YUV4MPEG2 W%d H%d F%d:1000 Ip A1:1 C444\n", width, height, rate)
+                                    .getBytes(StandardCharsets.US_ASCII)));
+                }
+                while (true) {
+                    final int[] frame = queued.take();
+                    if (frame == end) {
+                        break;
+                    }
+                    try {
+                        switch (format) {
+                            case RAW -> {
+                                // argb rotated left a byte is rgba in big endian order
+                                final IntBuffer rgba = bytes.clear().asIntBuffer();
+                                for (int i = 0; i < pixels; i++) {
+                                    rgba.put(i, Integer.rotateLeft(frame[i], 8));
+                                }
+                                write(bytes);
+                            }
+                            case Y4M -> {
+                                bytes.clear();
+                                bytes.put("FRAME\n".getBytes(StandardCharsets.US_ASCII));
+                                putYuv444(frame, bytes);
+                                write(bytes.flip());
+                            }
+                            case PNG -> {
+                                final int[] target = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+                                System.arraycopy(frame, 0, target, 0, pixels);
+                                final Path file = pngPath(writtenFrames);
+                                try (FileChannel png = FileChannel.open(file, StandardOpenOption.CREATE,
+                                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                                    ImageIO.write(image, "png", Channels.newOutputStream(png));
+                                    writtenBytes += png.size();
+                                }
+                            }
+                        }
+                        writtenFrames++;
+                    } finally {
+                        free.add(frame);
+                    }
+                }
+            } catch (Exception e) {
+                failure = e;
+                System.err.println("Recording " + path + " failed: " + e.getMessage());
+            } finally {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        System.err.println("Closing " + path + " failed: " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                writtenBytes += channel.write(buffer);
+            }
+        }
+
+        /**
+         * BT.601 limited range planes, which is what y4m readers assume.
+         */
+        private void putYuv444(int[] frame, ByteBuffer bytes) {
+            final int pixels = frame.length;
+            final int yStart = bytes.position();
+            final int uStart = yStart + pixels;
+            final int vStart = uStart + pixels;
+            for (int i = 0; i < pixels; i++) {
+                final int argb = frame[i];
+                final int r = (argb >> 16) & 0xFF;
+                final int g = (argb >> 8) & 0xFF;
+                final int b = argb & 0xFF;
+                bytes.put(yStart + i, (byte) (((66 * r + 129 * g + 25 * b + 128) >> 8) + 16));
+                bytes.put(uStart + i, (byte) (((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128));
+                bytes.put(vStart + i, (byte) (((112 * r - 94 * g - 18 * b + 128) >> 8) + 128));
+            }
+            bytes.position(vStart + pixels);
+        }
+
+        private Path pngPath(long frame) {
+            final String name = path.getFileName().toString();
+            final String stem = name.substring(0, name.length() - ".png".length());
+            return path.resolveSibling(String.format("%s_%06d.png", stem, frame));
+        }
+
+        long recordedFrames() {
+            return recordedFrames;
+        }
+
+        long droppedFrames() {
+            return droppedFrames;
+        }
+
+        long writtenFrames() {
+            return writtenFrames;
+        }
+
+        long writtenBytes() {
+            return writtenBytes;
+        }
+
+        /**
+         * Frames copied but not written yet.
+         */
+        int queuedFrames() {
+            return queued.size();
+        }
+
+        int peakQueuedFrames() {
+            return peakQueued;
+        }
+
+        /**
+         * Time the frame loop spent waiting on the writer under the block policy.
+         */
+        long stalledNanos() {
+            return stalledNanos;
+        }
+
+        /**
+         * Stops taking frames, the writer closes the file once the queued ones
+         * are written.
+         */
+        void finish() {
+            if (!closed) {
+                closed = true;
+                queued.add(end);
+            }
+        }
+
+        boolean isFinished() {
+            return closed && !writer.isAlive();
+        }
+
+        /**
+         * Writes out every queued frame and waits for the file to be closed.
+         */
+        @Override
+        public void close() {
+            finish();
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Streams rendered frames over HTTP, so a headless run can be watched in a
+     * browser. {@code GET /} is a page that draws the stream on a canvas,
+     * {@code GET /frames} the stream itself, a response that runs until the
+     * connection closes, of messages, little endian:
+     * <pre>
+     *   int    bytes after this field
+     *   byte   KEY or DELTA
+     *   int    width, int height
+     *   int    frame number
+     *   runs:  varint pixels unchanged, varint pixels now black,
+     *          varint pixels drawn, r g b of each drawn
+     * </pre>
+     * Varints are unsigned LEB128. A delta holds the pixels that differ from
+     * the frame before, a key frame the pixels that aren't black. When most
+     * particles move a delta is no smaller than a key frame, and the smaller
+     * of the two goes out. A byte palette doesn't fit, particles come in 1024
+     * hues at 33 chromas.
+     *
+     * Publishing only copies the framebuffer. Each client is served by a
+     * virtual thread that takes the latest frame once it is done writing the
+     * last, so a slow client skips frames instead of holding up the frame
+     * loop, and gets a key frame after a skip. Each frame is encoded at most
+     * once as a delta and once as a key, by the first client that needs it,
+     * whatever the number of clients. Nothing is copied while no one is
+     * watching.
+     *
+     * The server is a plain ServerSocket with a virtual thread per connection
+     * rather than jdk.httpserver, whose response stream writes in a
+     * synchronized method. Up to JDK 23 a virtual thread blocked in there,
+     * writing to a slow client, keeps its carrier thread, and as many slow
+     * clients as cores stall every other one.
+     */
+    static final class FrameServer implements AutoCloseable {
+        static final int KEY = 0;
+        static final int DELTA = 1;
+        // the length field and the rest of the header
+        static final int HEADER_BYTES = 4 + 13;
+
+        private final ServerSocket server;
+        private final Thread acceptor;
+        private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+        // handlers wait on published for a frame newer than their last, not
+        // on a monitor, which would pin their carrier threads
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition published = lock.newCondition();
+        private Frame latest;
+        private boolean closed;
+        private final AtomicInteger clients = new AtomicInteger();
+
+        // only the frame loop touches these
+        private volatile long frameCount;
+        private int[] previous;
+        private int previousWidth;
+        private int previousHeight;
+
+        // totals since the last describe
+        private final AtomicLong sentBytes = new AtomicLong();
+        private final AtomicLong keyFrames = new AtomicLong();
+        private final AtomicLong deltaFrames = new AtomicLong();
+        private final AtomicLong keyBytes = new AtomicLong();
+        private final AtomicLong deltaBytes = new AtomicLong();
+        private final AtomicLong droppedFrames = new AtomicLong();
+
+        private FrameServer(int port) throws IOException {
+            this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+            this.acceptor = Thread.ofVirtual().name("serve").start(this::accept);
+        }
+
+        /**
+         * Serves on localhost, port 0 picks a free one.
+         */
+        static FrameServer start(int port) throws IOException {
+            return new FrameServer(port);
+        }
+
+        int port() {
+            return server.getLocalPort();
+        }
+
+        int clientCount() {
+            return clients.get();
+        }
+
+        /**
+         * Number of the last frame published.
+         */
+        long frameCount() {
+            return frameCount;
+        }
+
+        /**
+         * Hands a copy of the frame to the clients, call from one thread once
+         * the framebuffer is drawn.
+         */
+        void publish(int[] framebuffer, int width, int height) {
+            if (clients.get() == 0) {
+                // the next frame is a key frame for whoever connects
+                previous = null;
+                return;
+            }
+            final int[] pixels = Arrays.copyOf(framebuffer, width * height);
+            final boolean sameSize = previous != null && previousWidth == width && previousHeight == height;
+            final Frame frame = new Frame(++frameCount, width, height, pixels, sameSize ? previous : null);
+            this.previous = pixels;
+            this.previousWidth = width;
+            this.previousHeight = height;
+            lock.lock();
+            try {
+                latest = frame;
+                published.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * What went out since the last call, per second of seconds.
+         */
+        String describe(double seconds) {
+            final long keys = keyFrames.getAndSet(0);
+            final long deltas = deltaFrames.getAndSet(0);
+            final long keySize = keyBytes.getAndSet(0);
+            final long deltaSize = deltaBytes.getAndSet(0);
+            return String.format(
+                    "%d clients, %.2f MB/s, %d key frames of %,d KB and %d deltas of %,d KB sent, %d skipped",
+                    clients.get(), sentBytes.getAndSet(0) / seconds / (1 << 20), keys,
+                    keySize / Math.max(1, keys) >> 10, deltas, deltaSize / Math.max(1, deltas) >> 10,
+                    droppedFrames.getAndSet(0));
+        }
+
+        /**
+         * Waits for a frame newer than after, null once the server closes.
+         */
+        private Frame next(long after) {
+            lock.lock();
+            try {
+                while (!closed && (latest == null || latest.number <= after)) {
+                    published.await();
+                }
+                return closed ? null : latest;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void accept() {
+            while (!server.isClosed()) {
+                try {
+                    final Socket socket = server.accept();
+                    connections.add(socket);
+                    Thread.ofVirtual().start(() -> serve(socket));
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+
+        /**
+         * Answers one request and closes the connection.
+         */
+        private void serve(Socket socket) {
+            try (socket; OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+                final String request = readRequest(socket.getInputStream());
+                if (request.startsWith("GET /frames ")) {
+                    writeHeader(out, "200 OK", "application/octet-stream", -1);
+                    serveFrames(out);
+                } else if (request.startsWith("GET / ")) {
+                    final byte[] page = PAGE.getBytes(StandardCharsets.UTF_8);
+                    writeHeader(out, "200 OK", "text/html; charset=utf-8", page.length);
+                    out.write(page);
+                } else {
+                    writeHeader(out, "404 Not Found", "text/plain", 0);
+                }
+            } catch (IOException e) {
+                // the client went away
+            } finally {
+                connections.remove(socket);
+            }
+        }
+
+        /**
+         * Reads the request head and returns its first line.
+         */
+        private static String readRequest(InputStream in) throws IOException {
+            final StringBuilder head = new StringBuilder();
+            int c;
+            while ((c = in.read()) >= 0 && head.length() < 8192) {
+                head.append((char) c);
+                if (head.length() >= 4 && head.lastIndexOf("\r\n\r\n") == head.length() - 4) {
+                    break;
+                }
+            }
+            final int end = head.indexOf("\r\n");
+            return end < 0 ? head.toString() : head.substring(0, end);
+        }
+
+        /**
+         * Without a length the body runs until the connection closes.
+         */
+        private static void writeHeader(OutputStream out, String status, String type, int length) throws IOException {
+            final String header = "HTTP/1.1 " + status + "\r\nContent-Type: " + type
+                    + "\r\nCache-Control: no-store\r\nConnection: close\r\n"
+                    + (length >= 0 ? "Content-Length: " + length + "\r\n" : "") + "\r\n";
+            out.write(header.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+
+        private void serveFrames(OutputStream out) throws IOException {
+            clients.incrementAndGet();
+            try {
+                long last = 0;
+                Frame frame;
+                while ((frame = next(last)) != null) {
+                    final byte[] message = last != 0 && frame.number == last + 1 && frame.hasDelta() ? frame.delta()
+                            : frame.key();
+                    final boolean delta = message[4] == DELTA;
+                    if (last != 0) {
+                        droppedFrames.addAndGet(frame.number - last - 1);
+                    }
+                    // blocks while the client is behind, newer frames replace the latest meanwhile
+                    out.write(message);
+                    out.flush();
+                    sentBytes.addAndGet(message.length);
+                    (delta ? deltaFrames : keyFrames).incrementAndGet();
+                    (delta ? deltaBytes : keyBytes).addAndGet(message.length);
+                    last = frame.number;
+                }
+            } finally {
+                clients.decrementAndGet();
+            }
+        }
+
+        /**
+         * Encodes pixels as a message, the runs of pixels that differ from
+         * previous, or from black when previous is null.
+         */
+        static byte[] encode(int kind, long number, int width, int height, int[] pixels, int[] previous) {
+            byte[] out = new byte[HEADER_BYTES + pixels.length / 4];
+            int at = HEADER_BYTES;
+            final int n = pixels.length;
+            int i = 0;
+            while (i < n) {
+                final int unchangedStart = i;
+                while (i < n && ((pixels[i] ^ (previous == null ? 0 : previous[i])) & 0xFFFFFF) == 0) {
+                    i++;
+                }
+                if (i == n) {
+                    break;
+                }
+                // changed to black, only in deltas
+                final int clearedStart = i;
+                while (i < n && (pixels[i] & 0xFFFFFF) == 0 && (previous[i] & 0xFFFFFF) != 0) {
+                    i++;
+                }
+                final int drawnStart = i;
+                while (i < n && (pixels[i] & 0xFFFFFF) != 0
+                        && ((pixels[i] ^ (previous == null ? 0 : previous[i])) & 0xFFFFFF) != 0) {
+                    i++;
+                }
+                final int drawn = i - drawnStart;
+                if (at + 15 + 3 * drawn > out.length) {
+                    out = Arrays.copyOf(out, Math.max(out.length * 2, at + 15 + 3 * drawn));
+                }
+                at = putVarint(out, at, clearedStart - unchangedStart);
+                at = putVarint(out, at, drawnStart - clearedStart);
+                at = putVarint(out, at, drawn);
+                for (int p = drawnStart; p < i; p++) {
+                    final int rgb = pixels[p];
+                    out[at++] = (byte) (rgb >> 16);
+                    out[at++] = (byte) (rgb >> 8);
+                    out[at++] = (byte) rgb;
+                }
+            }
+            final ByteBuffer header = ByteBuffer.wrap(out).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(at - 4).put((byte) kind).putInt(width).putInt(height).putInt((int) number);
+            return Arrays.copyOf(out, at);
+        }
+
+        private static int putVarint(byte[] out, int at, int value) {
+            while ((value & ~0x7F) != 0) {
+                out[at++] = (byte) (value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+            out[at++] = (byte) value;
+            return at;
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                closed = true;
+                published.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                server.close();
+                for (Socket socket : connections) {
+                    socket.close();
+                }
+                acceptor.join();
+            } catch (IOException e) {
+                // closing anyway
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * A published frame with its encodings, made when first asked for.
+         */
+        private static final class Frame {
+            final long number;
+            final int width;
+            final int height;
+            final int[] pixels;
+            private final ReentrantLock lock = new ReentrantLock();
+            // the frame before, dropped once the delta is encoded
+            private int[] previous;
+            private final boolean hasDelta;
+            private byte[] key;
+            private byte[] delta;
+
+            Frame(long number, int width, int height, int[] pixels, int[] previous) {
+                this.number = number;
+                this.width = width;
+                this.height = height;
+                this.pixels = pixels;
+                this.previous = previous;
+                this.hasDelta = previous != null;
+            }
+
+            boolean hasDelta() {
+                return hasDelta;
+            }
+
+            byte[] key() {
+                lock.lock();
+                try {
+                    if (key == null) {
+                        key = encode(KEY, number, width, height, pixels, null);
+                    }
+                    return key;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            byte[] delta() {
+                lock.lock();
+                try {
+                    if (delta == null) {
+                        final byte[] changes = encode(DELTA, number, width, height, pixels, previous);
+                        delta = changes.length < key().length ? changes : key;
+                        previous = null;
+                    }
+                    return delta;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        private static final String PAGE = """
+                <!doctype html>
+                <title>Sips Java</title>
+                <style>body { margin: 0; background: #000 } canvas { display: block }</style>
+                <canvas></canvas>
+                <script>
+                const canvas = document.querySelector('canvas');
+                const context = canvas.getContext('2d');
+                let image = null;
+
+                // applies one message, see FrameServer
+                function apply(message) {
+                    const view = new DataView(message.buffer, message.byteOffset, message.byteLength);
+                    const width = view.getInt32(1, true);
+                    const height = view.getInt32(5, true);
+                    if (!image || image.width !== width || image.height !== height) {
+                        canvas.width = width;
+                        canvas.height = height;
+                        image = context.createImageData(width, height);
+                    }
+                    const pixels = image.data;
+                    if (message[0] === 0) {
+                        for (let i = 0; i < pixels.length; i += 4) {
+                            pixels[i] = pixels[i + 1] = pixels[i + 2] = 0;
+                            pixels[i + 3] = 255;
+                        }
+                    }
+                    let at = 13;
+                    let pixel = 0;
+                    const varint = () => {
+                        let value = 0;
+                        for (let shift = 0; ; shift += 7) {
+                            const b = message[at++];
+                            value += (b & 0x7f) * 2 ** shift;
+                            if (b < 0x80) return value;
+                        }
+                    };
+                    while (at < message.length) {
+                        pixel += varint();
+                        const cleared = varint();
+                        for (let i = 0; i < cleared; i++, pixel++) {
+                            const p = pixel * 4;
+                            pixels[p] = pixels[p + 1] = pixels[p + 2] = 0;
+                        }
+                        const drawn = varint();
+                        for (let i = 0; i < drawn; i++, pixel++) {
+                            const p = pixel * 4;
+                            pixels[p] = message[at++];
+                            pixels[p + 1] = message[at++];
+                            pixels[p + 2] = message[at++];
+                            pixels[p + 3] = 255;
+                        }
+                    }
+                }
+
+                async function stream() {
+                    const reader = (await fetch('/frames')).body.getReader();
+                    let pending = new Uint8Array(0);
+                    for (;;) {
+                        const { value, done } = await reader.read();
+                        if (done) return;
+                        const joined = new Uint8Array(pending.length + value.length);
+                        joined.set(pending);
+                        joined.set(value, pending.length);
+                        let at = 0;
+                        let applied = false;
+                        while (joined.length - at >= 4) {
+                            const length = new DataView(joined.buffer, at, 4).getUint32(0, true);
+                            if (joined.length - at - 4 < length) break;
+                            apply(joined.subarray(at + 4, at + 4 + length));
+                            at += 4 + length;
+                            applied = true;
+                        }
+                        pending = joined.slice(at);
+                        if (applied) context.putImageData(image, 0, 0);
+                    }
+                }
+
+                (async () => {
+                    for (;;) {
+                        try {
+                            await stream();
+                        } catch (e) {
+                            console.log(e);
+                        }
+                        await new Promise(resolve => setTimeout(resolve, 1000));
+                    }
+                })();
+                </script>
+                """;
+    }
+
+    /**
+     * Scales the number of active particles so frames fit a time budget. After
+     * every frame it smooths the measured frame time and, when that is more than
+     * a few percent off the budget, scales the active count by the ratio between
+     * the two. Steps are capped, shrinking faster than growing so an overloaded
+     * machine recovers quickly, and the count holds for a few frames after each
+     * change while the smoothed time catches up. Frame time is not quite
+     * proportional to the particle count, so it homes in over a few steps.
+     */
+    static class FrameGovernor {
+        static final double SMOOTHING = 0.25;
+        static final double DEADBAND = 0.05;
+        static final double MAX_GROWTH = 1.10;
+        static final double MAX_SHRINK = 0.80;
+        static final int SETTLE_FRAMES = 3;
+        static final long MIN_ACTIVE = 1 << 16;
+
+        final long budgetNanos;
+        private final ParticleEngine engine;
+        private double smoothedNanos = -1;
+        private int settleFrames = 0;
+
+        FrameGovernor(ParticleEngine engine, long budgetNanos) {
+            this.engine = engine;
+            this.budgetNanos = Math.max(1, budgetNanos);
+        }
+
+        static long budgetOf(double millis) {
+            return (long) (millis * 1_000_000);
+        }
+
+        /**
+         * Call between frames with the time of the frame that just ended.
+         */
+        void afterFrame(long frameNanos) {
+            smoothedNanos = smoothedNanos < 0 ? frameNanos : smoothedNanos + SMOOTHING * (frameNanos - smoothedNanos);
+            if (settleFrames > 0) {
+                settleFrames--;
+                return;
+            }
+            final double ratio = budgetNanos / smoothedNanos;
+            if (Math.abs(ratio - 1) <= DEADBAND) {
+                return;
+            }
+            final long active = engine.getActiveParticles();
+            final long floor = Math.min(MIN_ACTIVE, engine.numParticles);
+            final long next = Math.max(floor, Math.min(engine.numParticles,
+                    (long) (Math.max(active, 1) * Math.max(MAX_SHRINK, Math.min(MAX_GROWTH, ratio)))));
+            if (next != active) {
+                engine.setActiveParticles(next);
+                settleFrames = SETTLE_FRAMES;
+            }
+        }
+
+        /**
+         * Budget left over by the smoothed frame time, negative when over.
+         */
+        long headroomNanos() {
+            return smoothedNanos < 0 ? budgetNanos : budgetNanos - (long) smoothedNanos;
+        }
+
+        /**
+         * Hands every particle back to the engine.
+         */
+        void release() {
+            engine.setActiveParticles(engine.numParticles);
+        }
+
+        String describe() {
+            return String.format("%,d of %,d particles active, %.3f ms headroom of %.3f ms",
+                    engine.getActiveParticles(), engine.numParticles, headroomNanos() / 1_000_000.0,
+                    budgetNanos / 1_000_000.0);
+        }
+    }
+
+    /**
+     * Everything a tick reads from the user, sampled once before the tick so it
+     * never sees fields the Swing thread is halfway through changing, and what
+     * an {@link InputLog} records and replays. The mouse is in screen px. The
+     * mouse, its button and the active count carry over from tick to tick, the
+     * rest are events that {@link #clearEvents} drops once the tick has run.
+     */
+    static final class TickInput {
+        static final int PLACE_SQUARE = 1;
+        static final int PLACE_SQUARE_MULTI = 2;
+        static final int PLACE_CIRCLE = 3;
+        // placed by the app from an image file, which a replay can't do
+        static final int PLACE_IMAGE = 4;
+        static final float ZOOM_STEP = 1.25f;
+        // velocity kept by a slow down
+        static final float SLOW_DOWN_SCALE = 0.2f;
+
+        float mouseX;
+        float mouseY;
+        boolean mousePressed;
+        long activeParticles;
+        // screen px the view moved
+        int panX;
+        int panY;
+        // wheel clicks, negative zooms in
+        int zoomClicks;
+        boolean slowDown;
+        boolean cameraReset;
+        // one of the PLACE_ constants, 0 for none
+        int placement;
+        // the new viewport, 0 unless it changed
+        int width;
+        int height;
+
+        /**
+         * Applies what has to happen between frames, the placement and the
+         * active count. Resizes and images are left to the caller, which owns
+         * the framebuffer and the image.
+         */
+        void beforeFrame(ParticleEngine engine) {
+            switch (placement) {
+                case PLACE_SQUARE -> engine.placeParticlesSquare();
+                case PLACE_SQUARE_MULTI -> engine.placeParticlesSquareMulti();
+                case PLACE_CIRCLE -> engine.placeParticlesCircle();
+                default -> {
+                }
+            }
+            if (activeParticles != engine.getActiveParticles()) {
+                engine.setActiveParticles(activeParticles);
+            }
+        }
+
+        /**
+         * Moves the camera and ticks, the mouse pulls at the world point under it.
+         */
+        void tick(ParticleEngine engine, float deltaTime) {
+            final Camera camera = engine.camera;
+            if (cameraReset) {
+                camera.reset();
+            }
+            camera.pan(panX, panY);
+            if (zoomClicks != 0) {
+                camera.zoomAt(mouseX, mouseY, (float) Math.pow(ZOOM_STEP, -zoomClicks));
+            }
+            engine.tick(deltaTime, camera.worldX(mouseX), camera.worldY(mouseY), mousePressed,
+                    slowDown ? SLOW_DOWN_SCALE : 0f);
+        }
+
+        void clearEvents() {
+            panX = 0;
+            panY = 0;
+            zoomClicks = 0;
+            slowDown = false;
+            cameraReset = false;
+            placement = 0;
+            width = 0;
+            height = 0;
+        }
+    }
+
+    /**
+     * A binary log of the {@link TickInput} of every tick, for running the same
+     * simulation again exactly. With a fixed tick length, the same kernel and
+     * the same thread count a replay ends with every particle bit for bit where
+     * the recording left it, which makes runs comparable for timing and frames
+     * usable as golden images.
+     *
+     * Only changes are written, a tick where nothing changed costs nothing.
+     * Big endian, as {@link DataOutputStream} writes it:
+     * <pre>
+     *   "PSIMINPT", int version
+     *   long particle count, int width, int height, int threads, int kernel,
+     *   float tick seconds, int vector lanes
+     *   int argument count, each argument as modified UTF-8
+     *   records: varint ticks since the last record, byte tag, payload
+     * </pre>
+     * The arguments are the recorded command line without the options that
+     * only say where output goes, so a replay builds the same simulation. Mouse
+     * positions are floats, everything else zigzag varints. The last record,
+     * END, is stamped with the tick count and holds the checksum of the
+     * particles after the last tick.
+     */
+    static final class InputLog implements AutoCloseable {
+        static final int VERSION = 1;
+        private static final byte[] MAGIC = "PSIMINPT".getBytes(StandardCharsets.US_ASCII);
+        // options taking a value that a replay must not repeat
+        private static final Set<String> OUTPUT_OPTIONS = Set.of("--input-log", "--replay", "--record", "--save");
+
+        private static final int END = 0;
+        private static final int MOUSE = 1;
+        private static final int PRESS = 2;
+        private static final int RELEASE = 3;
+        private static final int PAN = 4;
+        private static final int ZOOM = 5;
+        private static final int SLOW_DOWN = 6;
+        private static final int CAMERA_RESET = 7;
+        private static final int PLACE = 8;
+        private static final int RESIZE = 9;
+        private static final int ACTIVE = 10;
+
+        final Path path;
+        private final ParticleEngine engine;
+        private final DataOutputStream out;
+        // the input as far as the log has said, only what differs is written
+        private final TickInput logged = new TickInput();
+        private long ticks;
+        private long recordTick;
+        private long checksum;
+
+        /**
+         * Starts a log of the engine as it is now, call before its first tick.
+         */
+        InputLog(Path path, ParticleEngine engine, SimOptions options, float tickSeconds) throws IOException {
+            this.path = path;
+            this.engine = engine;
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(engine.numParticles);
+            out.writeInt(engine.getWidth());
+            out.writeInt(engine.getHeight());
+            out.writeInt(engine.threadCount);
+            out.writeInt(engine.getKernel().ordinal());
+            out.writeFloat(tickSeconds);
+            out.writeInt(ParticleEngine.LANE_SIZE);
+            final List<String> args = new ArrayList<>();
+            for (int i = 0; i < options.args.length; i++) {
+                if (OUTPUT_OPTIONS.contains(options.args[i])) {
+                    i++;
+                } else {
+                    args.add(options.args[i]);
+                }
+            }
+            out.writeInt(args.size());
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            logged.activeParticles = engine.numParticles;
+        }
+
+        /**
+         * Logs the input of the next tick.
+         */
+        void record(TickInput input) throws IOException {
+            if (input.width != 0) {
+                tag(RESIZE);
+                writeVarLong(input.width);
+                writeVarLong(input.height);
+            }
+            if (input.placement != 0) {
+                tag(PLACE);
+                writeVarLong(input.placement);
+            }
+            if (input.activeParticles != logged.activeParticles) {
+                tag(ACTIVE);
+                writeVarLong(input.activeParticles);
+                logged.activeParticles = input.activeParticles;
+            }
+            if (input.mouseX != logged.mouseX || input.mouseY != logged.mouseY) {
+                tag(MOUSE);
+                out.writeFloat(input.mouseX);
+                out.writeFloat(input.mouseY);
+                logged.mouseX = input.mouseX;
+                logged.mouseY = input.mouseY;
+            }
+            if (input.mousePressed != logged.mousePressed) {
+                tag(input.mousePressed ? PRESS : RELEASE);
+                logged.mousePressed = input.mousePressed;
+            }
+            if (input.cameraReset) {
+                tag(CAMERA_RESET);
+            }
+            if (input.panX != 0 || input.panY != 0) {
+                tag(PAN);
+                writeVarLong(input.panX);
+                writeVarLong(input.panY);
+            }
+            if (input.zoomClicks != 0) {
+                tag(ZOOM);
+                writeVarLong(input.zoomClicks);
+            }
+            if (input.slowDown) {
+                tag(SLOW_DOWN);
+            }
+            ticks++;
+        }
+
+        long ticks() {
+            return ticks;
+        }
+
+        /**
+         * Checksum of the particles the log ended with, once it is closed.
+         */
+        long checksum() {
+            return checksum;
+        }
+
+        /**
+         * Ends the log with the checksum of the particles, call between ticks
+         * and before the engine is closed.
+         */
+        @Override
+        public void close() throws IOException {
+            checksum = engine.store.checksum();
+            tag(END);
+            out.writeLong(checksum);
+            out.close();
+        }
+
+        private void tag(int tag) throws IOException {
+            writeVarLong(ticks - recordTick);
+            recordTick = ticks;
+            out.writeByte(tag);
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            long bits = (value << 1) ^ (value >> 63);
+            while ((bits & ~0x7FL) != 0) {
+                out.writeByte((int) (bits & 0x7F) | 0x80);
+                bits >>>= 7;
+            }
+            out.writeByte((int) bits);
+        }
+
+        private static long readVarLong(ByteBuffer in) {
+            long bits = 0;
+            for (int shift = 0;; shift += 7) {
+                final int b = in.get();
+                bits |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return (bits >>> 1) ^ -(bits & 1);
+                }
+            }
+        }
+
+        /**
+         * Reads one record's payload into input.
+         */
+        private static void readRecord(ByteBuffer in, int tag, TickInput input) throws IOException {
+            switch (tag) {
+                case MOUSE -> {
+                    input.mouseX = in.getFloat();
+                    input.mouseY = in.getFloat();
+                }
+                case PRESS -> input.mousePressed = true;
+                case RELEASE -> input.mousePressed = false;
+                case PAN -> {
+                    input.panX = (int) readVarLong(in);
+                    input.panY = (int) readVarLong(in);
+                }
+                case ZOOM -> input.zoomClicks = (int) readVarLong(in);
+                case SLOW_DOWN -> input.slowDown = true;
+                case CAMERA_RESET -> input.cameraReset = true;
+                case PLACE -> input.placement = (int) readVarLong(in);
+                case RESIZE -> {
+                    input.width = (int) readVarLong(in);
+                    input.height = (int) readVarLong(in);
+                }
+                case ACTIVE -> input.activeParticles = readVarLong(in);
+                default -> throw new IOException("unknown record " + tag);
+            }
+        }
+
+        /**
+         * A log read back into memory, which hands out one tick's input at a
+         * time.
+         */
+        static final class Replay {
+            final Path path;
+            final long particles;
+            final int width;
+            final int height;
+            final int threads;
+            final TickKernel kernel;
+            final float tickSeconds;
+            final int lanes;
+            // the recorded command line, see InputLog
+            final String[] args;
+            final long ticks;
+            // of the particles after the last tick
+            final long checksum;
+            // largest viewport the log resizes to, for sizing a framebuffer
+            final int maxWidth;
+            final int maxHeight;
+            private final ByteBuffer records;
+            private long tick;
+            private long nextRecordTick;
+
+            private Replay(Path path, byte[] bytes) throws IOException {
+                this.path = path;
+                final ByteArrayInputStream buffer = new ByteArrayInputStream(bytes);
+                final DataInputStream header = new DataInputStream(buffer);
+                if (!Arrays.equals(header.readNBytes(MAGIC.length), MAGIC)) {
+                    throw new IOException(path + " is not an input log");
+                }
+                final int version = header.readInt();
+                if (version != VERSION) {
+                    throw new IOException(path + " is input log version " + version + ", expected " + VERSION);
+                }
+                this.particles = header.readLong();
+                this.width = header.readInt();
+                this.height = header.readInt();
+                this.threads = header.readInt();
+                this.kernel = TickKernel.values()[header.readInt()];
+                this.tickSeconds = header.readFloat();
+                this.lanes = header.readInt();
+                this.args = new String[header.readInt()];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = header.readUTF();
+                }
+
+                // once through to find the end and everything a replay has to prepare for
+                final ByteBuffer in = ByteBuffer.wrap(bytes, bytes.length - buffer.available(), buffer.available());
+                this.records = in.slice();
+                final TickInput scratch = new TickInput();
+                long at = 0;
+                int widest = width;
+                int tallest = height;
+                while (true) {
+                    at += readVarLong(in);
+                    final int tag = in.get();
+                    if (tag == END) {
+                        break;
+                    }
+                    readRecord(in, tag, scratch);
+                    if (scratch.placement == TickInput.PLACE_IMAGE) {
+                        throw new IOException(path + " places particles from an image, which can't be replayed");
+                    }
+                    widest = Math.max(widest, scratch.width);
+                    tallest = Math.max(tallest, scratch.height);
+                }
+                this.ticks = at;
+                this.checksum = in.getLong();
+                this.maxWidth = widest;
+                this.maxHeight = tallest;
+                this.nextRecordTick = readVarLong(records);
+            }
+
+            static Replay open(Path path) throws IOException {
+                try {
+                    return new Replay(path, Files.readAllBytes(path));
+                } catch (EOFException | BufferUnderflowException e) {
+                    throw new IOException(path + " is truncated, the recording may not have been closed");
+                }
+            }
+
+            /**
+             * The options of the recorded run with args on top, which can
+             * change anything that doesn't move particles, like --record, and
+             * --threads or --kernel to compare against the recording. Without
+             * them the replay runs on the recorded thread count and kernel.
+             */
+            SimOptions options(String[] args) {
+                final String[] merged = Arrays.copyOf(this.args, this.args.length + args.length);
+                System.arraycopy(args, 0, merged, this.args.length, args.length);
+                final SimOptions options = SimOptions.parse(merged);
+                if (!Arrays.asList(args).contains("--threads")) {
+                    options.threads = threads;
+                }
+                if (options.kernel == null) {
+                    options.kernel = kernel;
+                }
+                options.width = width;
+                options.height = height;
+                options.headless = true;
+                return options;
+            }
+
+            /**
+             * Sets input to the next tick's, false once every tick was handed
+             * out. Starts from the input the log diffs against, the mouse
+             * released at (0, 0) and every particle active, whatever input held.
+             */
+            boolean next(TickInput input) {
+                if (tick == 0) {
+                    input.mouseX = 0;
+                    input.mouseY = 0;
+                    input.mousePressed = false;
+                    input.activeParticles = particles;
+                }
+                if (tick >= ticks) {
+                    return false;
+                }
+                input.clearEvents();
+                try {
+                    while (nextRecordTick == tick) {
+                        readRecord(records, records.get(), input);
+                        nextRecordTick += readVarLong(records);
+                    }
+                } catch (IOException e) {
+                    // the constructor read every record already
+                    throw new UncheckedIOException(e);
+                }
+                tick++;
+                return true;
+            }
+        }
+    }
+
+    // a window, never serialized
+    @SuppressWarnings("serial")
+    static class ParticlePanel extends JPanel
+            implements MouseListener, MouseMotionListener, MouseWheelListener, ComponentListener, KeyListener {
+
+        private final ParticleEngine engine;
+        private final FramePipeline pipeline;
+        private volatile boolean isPipelineToggleRequested = false;
+        private volatile boolean isSaveRequested = false;
+        private final Path savePath;
+        private ParticleSnapshot.Save save;
+        private volatile boolean isRecordToggleRequested = false;
+        private final SimOptions options;
+        private FrameRecorder finishingRecorder;
+        private volatile boolean isGovernorToggleRequested = false;
+        private FrameGovernor governor;
+        private volatile BufferedImage pendingImage;
+        // held keys, guarded by inputLock like the rest of the input
+        private final Set<Character> keysPressed = new HashSet<>();
+        private Map<Character, Point> velInputMap = Map.of(
+                'a', new Point(1, 0),
+                'd', new Point(-1, 0),
+                's', new Point(0, -1),
+                'w', new Point(0, 1));
+
+        public BufferedImage image;
+        // private byte[] pixelArray;
+        private int width;
+        private int height;
+        // fills the panel and takes its input in PresentMode.CANVAS, null otherwise
+        private final Canvas canvas;
+        private BufferStrategy strategy;
+
+        // guards the input the listeners collect until sampleInput hands it to a tick
+        private final Object inputLock = new Object();
+        public Point mousePosition = new Point(0, 0);
+        public boolean isMousePressed = false;
+        private final TickInput input = new TickInput();
+        private InputLog inputLog;
+
+        private volatile boolean running = false;
+        private Thread gameLoopThread;
+        private static final long NS_PER_SECOND = 1_000_000_000L;
+        private static final double TARGET_FPS = 30.0;
+        private static final double NS_PER_TICK = NS_PER_SECOND / TARGET_FPS;
+        static final float FIXED_TICK_SECONDS = (float) (1.0 / TARGET_FPS);
+        // ticks a fixed step frame runs at most to catch up, more lag is dropped
+        static final int MAX_CATCH_UP_TICKS = 4;
+        // the size the panel was resized to on the event thread, 0 for none
+        private int resizeWidth = 0;
+        private int resizeHeight = 0;
+        private boolean isSlowDownRequested = false;
+        // one of the TickInput.PLACE_ constants, 0 for none
+        private int resetType = 0;
+        static final String DEFAULT_SAVE_PATH = "particles.snap";
+        static final String DEFAULT_RECORD_PATH = "particles.y4m";
+        private boolean isPanning = false;
+        public final Point panDeltaInput = new Point(0, 0);
+        // wheel clicks since the last tick, negative zooms in
+        private int zoomInput = 0;
+        private boolean isCameraResetRequested = false;
+        private boolean shouldReturnToStart = false;
+
+        private long lastTickTime;
+        private int frames = 0;
+
+        public ParticlePanel(SimOptions options) {
+            this.options = options;
+            this.engine = ParticleEngine.create(options);
+            this.pipeline = new FramePipeline(engine, options.pipelined);
+            this.savePath = Path.of(options.savePath != null ? options.savePath : DEFAULT_SAVE_PATH);
+            this.canvas = options.presentMode == PresentMode.CANVAS ? new Canvas() : null;
+            final int width = options.width;
+            final int height = options.height;
+            setSize(width, height);
+            setPreferredSize(new Dimension(width, height));
+            this.handleResize(width, height);
+
+            if (options.restorePath == null) {
+                engine.placeParticlesSquare();
+            }
+            this.input.activeParticles = engine.numParticles;
+            if (options.inputLogPath != null) {
+                try {
+                    this.inputLog = new InputLog(Path.of(options.inputLogPath), engine, options, FIXED_TICK_SECONDS);
+                    System.out.println("Logging input to " + options.inputLogPath);
+                } catch (IOException e) {
+                    System.err.println("Could not log input to " + options.inputLogPath + ": " + e.getMessage());
+                }
+            }
+            this.isRecordToggleRequested = options.recordPath != null;
+            this.isGovernorToggleRequested = options.budgetMillis > 0;
+            // the canvas covers the panel, so it gets the mouse and keys
+            final Component input = canvas != null ? canvas : this;
+            if (canvas != null) {
+                setLayout(new BorderLayout());
+                canvas.setBackground(Color.BLACK);
+                canvas.setIgnoreRepaint(true);
+                add(canvas, BorderLayout.CENTER);
+            }
+            input.addMouseListener(this);
+            input.addMouseMotionListener(this);
+            input.addMouseWheelListener(this);
+            addComponentListener(this);
+            input.addKeyListener(this);
+            setBackground(Color.BLACK);
+            input.setFocusable(true);
+            input.requestFocusInWindow();
+            setIgnoreRepaint(true);
+
+            lastTickTime = System.nanoTime();
+            frames = 0;
+        }
+
+        public void startSimulation() {
+            if (!running) {
+                running = true;
+                gameLoopThread = new Thread(this::gameLoop);
+                gameLoopThread.start();
+            }
+        }
+
+        /**
+         * Stops the game loop after its current frame and closes the input log,
+         * so it ends with the state it got to.
+         */
+        public void stopSimulation() {
+            running = false;
+            if (gameLoopThread != null) {
+                try {
+                    gameLoopThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (inputLog != null) {
+                try {
+                    inputLog.close();
+                    System.out.printf("Logged %d ticks of input to %s, checksum %016x\n", inputLog.ticks(),
+                            inputLog.path, inputLog.checksum());
+                } catch (IOException e) {
+                    System.err.println("Input log failed: " + e.getMessage());
+                }
+                inputLog = null;
+            }
+        }
+
+        private void gameLoop() {
+            lastTickTime = System.nanoTime();
+
+            while (running) {
+                long now = System.nanoTime();
+                long timeElapsed = now - lastTickTime;
+                this.processInputRequests();
+
+                if (timeElapsed >= NS_PER_TICK) {
+                    final int ticks;
+                    final float deltaTime;
+                    if (options.fixedStep) {
+                        // as many whole ticks as time passed, a loop too far behind drops the rest
+                        final long due = (long) (timeElapsed / NS_PER_TICK);
+                        ticks = (int) Math.min(due, MAX_CATCH_UP_TICKS);
+                        deltaTime = FIXED_TICK_SECONDS;
+                        lastTickTime = due > MAX_CATCH_UP_TICKS ? now : lastTickTime + (long) (ticks * NS_PER_TICK);
+                    } else {
+                        ticks = 1;
+                        deltaTime = timeElapsed / (float) NS_PER_SECOND;
+                        lastTickTime = now;
+                    }
+                    this.prepareFrame();
+                    // includes resets and resizes applied since the last frame
+                    engine.stats.record(FrameStats.Phase.INPUT, System.nanoTime() - now);
+
+                    final BufferedImage frameImage = image;
+                    pipeline.frame(() -> {
+                        for (int i = 0; i < ticks; i++) {
+                            tick(deltaTime);
+                        }
+                    },
+                            ((DataBufferInt) frameImage.getRaster().getDataBuffer()).getData(),
+                            () -> present(frameImage));
+                    frames++;
+                    if (governor != null) {
+                        governor.afterFrame(pipeline.frameNanos);
+                    }
+
+                    if (frames % TARGET_FPS == 0) {
+                        // frame is wall time, less than the phases added up when pipelined
+                        System.out.printf("(Last %d frames%s)\n", (int) TARGET_FPS,
+                                pipeline.isPipelined() ? ", pipelined" : "");
+                        engine.stats.print(System.out);
+                        engine.stats.reset();
+                        if (governor != null) {
+                            System.out.printf("(Governor): %s\n", governor.describe());
+                        }
+                        final FrameRecorder recorder = pipeline.getRecorder();
+                        if (recorder != null) {
+                            System.out.printf("(Record): %d written, %d queued, %d dropped\n", recorder.writtenFrames(),
+                                    recorder.queuedFrames(), recorder.droppedFrames());
+                        }
+                    }
+                } else {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        System.err.println("Game loop interrupted.");
+                        running = false;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Puts the frame on screen, timed as the present phase.
+         */
+        private void present(BufferedImage frameImage) {
+            if (canvas == null) {
+                Graphics2D g = (Graphics2D) getGraphics();
+                g.drawImage(frameImage, 0, 0, this);
+                g.dispose();
+                Toolkit.getDefaultToolkit().sync();
+                return;
+            }
+            if (strategy == null) {
+                // needs the canvas on screen, which it is once frames run
+                canvas.createBufferStrategy(2);
+                strategy = canvas.getBufferStrategy();
+                final int screenType = canvas.getGraphicsConfiguration()
+                        .createCompatibleImage(1, 1, Transparency.OPAQUE).getType();
+                System.out.printf("Presenting through a %s buffer strategy, the screen's opaque image type is %s\n",
+                        strategy.getCapabilities().isPageFlipping() ? "page flipped" : "blitted",
+                        screenType == BufferedImage.TYPE_INT_RGB ? "INT_RGB like the frame's"
+                                : screenType + ", frames are converted on the way");
+            }
+            // a lost back buffer is drawn again, a restored one before it is shown
+            do {
+                do {
+                    final Graphics g = strategy.getDrawGraphics();
+                    g.drawImage(frameImage, 0, 0, null);
+                    g.dispose();
+                } while (strategy.contentsRestored());
+                strategy.show();
+            } while (strategy.contentsLost());
+            Toolkit.getDefaultToolkit().sync();
+        }
+
+        private void tick(float deltaTime) {
+            sampleInput(deltaTime);
+            if (inputLog != null) {
+                try {
+                    inputLog.record(input);
+                } catch (IOException e) {
+                    System.err.println("Input log failed, no longer logging: " + e.getMessage());
+                    inputLog = null;
+                }
+            }
+            // pan and zoom only move the view, the mouse pulls at the world point under it
+            input.tick(engine, deltaTime);
+            input.clearEvents();
+        }
+
+        /**
+         * Hands what the listeners collected since the last tick to input in
+         * one go, held keys pan as far as they move in deltaTime.
+         */
+        private void sampleInput(float deltaTime) {
+            synchronized (inputLock) {
+                for (var key : this.keysPressed) {
+                    float speed = 500;
+                    if (this.velInputMap.containsKey(key)) {
+                        this.panDeltaInput.x = (int) (panDeltaInput.x + velInputMap.get(key).x * speed * deltaTime);
+                        this.panDeltaInput.y = (int) (panDeltaInput.y + velInputMap.get(key).y * speed * deltaTime);
+                    }
+                }
+                input.mouseX = mousePosition.x;
+                input.mouseY = mousePosition.y;
+                input.mousePressed = isMousePressed;
+                input.panX = panDeltaInput.x;
+                input.panY = panDeltaInput.y;
+                input.zoomClicks = zoomInput;
+                input.slowDown = isSlowDownRequested;
+                input.cameraReset = isCameraResetRequested;
+
+                // only reset if there was a change.
+                this.panDeltaInput.x = 0;
+                this.panDeltaInput.y = 0;
+                this.zoomInput = 0;
+                this.isSlowDownRequested = false;
+                this.isCameraResetRequested = false;
+            }
+        }
+
+        /**
+         * Applies the resizes and resets asked for since the last frame and
+         * notes them in input, which the frame's first tick logs.
+         */
+        private void prepareFrame() {
+            final int resizedWidth;
+            final int resizedHeight;
+            final int reset;
+            synchronized (inputLock) {
+                resizedWidth = resizeWidth;
+                resizedHeight = resizeHeight;
+                reset = resetType;
+                this.resizeWidth = 0;
+                this.resizeHeight = 0;
+                this.resetType = 0;
+            }
+            if (resizedWidth > 0 && resizedHeight > 0) {
+                this.handleResize(resizedWidth, resizedHeight);
+                input.width = width;
+                input.height = height;
+            }
+            if (reset == TickInput.PLACE_IMAGE) {
+                placeParticlesAsImage();
+            } else if (reset != 0) {
+                input.placement = reset;
+            }
+            // the governor may have changed it after the last frame
+            input.activeParticles = engine.getActiveParticles();
+            input.beforeFrame(engine);
+            final BufferedImage placedImage = this.pendingImage;
+            if (placedImage != null) {
+                this.pendingImage = null;
+                engine.placeParticlesFromImage(placedImage);
+                input.placement = TickInput.PLACE_IMAGE;
+            }
+        }
+
+        private void processInputRequests() {
+            if (this.isPipelineToggleRequested) {
+                this.isPipelineToggleRequested = false;
+                pipeline.setPipelined(!pipeline.isPipelined());
+            }
+            if (this.save != null && this.save.isDone()) {
+                final Exception failure = save.failure();
+                if (failure == null) {
+                    System.out.printf("Saved %,d MB to %s in %.3f ms\n", save.totalBytes >> 20, save.path,
+                            save.elapsedNanos() / 1_000_000.0);
+                } else {
+                    System.err.println("Snapshot failed: " + failure.getMessage());
+                }
+                this.save = null;
+            }
+            if (this.isGovernorToggleRequested) {
+                this.isGovernorToggleRequested = false;
+                if (governor == null) {
+                    // by default leave a tenth of the frame for the rest of the loop
+                    final double budget = options.budgetMillis > 0 ? options.budgetMillis : 900.0 / TARGET_FPS;
+                    this.governor = new FrameGovernor(engine, FrameGovernor.budgetOf(budget));
+                } else {
+                    governor.release();
+                    this.governor = null;
+                }
+                System.out.println(governor == null ? "Governor off, every particle active"
+                        : String.format("Governor on, %.3f ms per frame", governor.budgetNanos / 1_000_000.0));
+            }
+            if (this.isRecordToggleRequested) {
+                this.isRecordToggleRequested = false;
+                toggleRecording();
+            }
+            if (this.finishingRecorder != null && this.finishingRecorder.isFinished()) {
+                final FrameRecorder recorder = this.finishingRecorder;
+                System.out.printf("Recorded %d frames to %s, %d dropped\n", recorder.writtenFrames(), recorder.path,
+                        recorder.droppedFrames());
+                this.finishingRecorder = null;
+            }
+            if (this.isSaveRequested) {
+                this.isSaveRequested = false;
+                if (this.save == null) {
+                    this.save = ParticleSnapshot.save(engine, savePath);
+                } else {
+                    System.out.printf("Still saving, %.0f%% done\n", save.progress() * 100);
+                }
+            }
+        }
+
+        /**
+         * Starts recording at the current size or lets the writer finish the
+         * current recording in the background.
+         */
+        private void toggleRecording() {
+            final FrameRecorder recorder = pipeline.getRecorder();
+            if (recorder != null) {
+                pipeline.setRecorder(null);
+                recorder.finish();
+                this.finishingRecorder = recorder;
+                return;
+            }
+            if (this.finishingRecorder != null) {
+                System.out.println("Still writing the last recording");
+                return;
+            }
+            final String path = options.recordPath != null ? options.recordPath : DEFAULT_RECORD_PATH;
+            try {
+                pipeline.setRecorder(new FrameRecorder(Path.of(path), width, height, TARGET_FPS, options.recordPolicy));
+                System.out.printf("Recording %dx%d to %s\n", width, height, path);
+            } catch (IOException e) {
+                System.err.println("Could not record to " + path + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void mousePressed(MouseEvent e) {
+            synchronized (inputLock) {
+                if (e.getButton() == MouseEvent.BUTTON1) {
+                    isMousePressed = true;
+                }
+                if (e.getButton() == MouseEvent.BUTTON3) {
+                    isPanning = true;
+                }
+                mousePosition = e.getPoint();
+            }
+        }
+
+        @Override
+        public void mouseReleased(MouseEvent e) {
+            synchronized (inputLock) {
+                isMousePressed = false;
+                isPanning = false;
+            }
+        }
+
+        @Override
+        public void mouseDragged(MouseEvent e) {
+            Point current = e.getPoint();
+            synchronized (inputLock) {
+                if (isPanning) {
+                    int dx = current.x - mousePosition.x;
+                    int dy = current.y - mousePosition.y;
+                    panDeltaInput.x += dx;
+                    panDeltaInput.y += dy;
+                }
+
+                mousePosition = current;
+            }
+        }
+
+        @Override
+        public void mouseWheelMoved(MouseWheelEvent e) {
+            synchronized (inputLock) {
+                zoomInput += e.getWheelRotation();
+                mousePosition = e.getPoint();
+            }
+        }
+
+        @Override
+        public void mouseClicked(MouseEvent e) {
+        }
+
+        @Override
+        public void mouseEntered(MouseEvent e) {
+        }
+
+        @Override
+        public void mouseExited(MouseEvent e) {
+        }
+
+        @Override
+        public void mouseMoved(MouseEvent e) {
+        }
+
+        @Override
+        public void componentResized(ComponentEvent e) {
+            final int w = getWidth();
+            final int h = getHeight();
+            synchronized (inputLock) {
+                this.resizeWidth = w;
+                this.resizeHeight = h;
+            }
+        }
+
+        private void handleResize(int w, int h) {
+            this.width = w;
+            this.height = h;
+            this.setSize(w, h);
+            // opaque for the canvas, so drawing it is a plain copy to an INT_RGB screen
+            this.image = new BufferedImage(width, height,
+                    canvas != null ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+            engine.resize(w, h);
+        }
+
+        @Override
+        public void componentMoved(ComponentEvent e) {
+        }
+
+        @Override
+        public void componentShown(ComponentEvent e) {
+        }
+
+        @Override
+        public void componentHidden(ComponentEvent e) {
+        }
+
+        @Override
+        public void keyTyped(KeyEvent e) {
+            if (e.getKeyChar() == ' ') {
+                synchronized (inputLock) {
+                    this.isSlowDownRequested = true;
+                }
+            }
+            final int placement = switch (e.getKeyChar()) {
+                case '1' -> TickInput.PLACE_SQUARE;
+                case '2' -> TickInput.PLACE_SQUARE_MULTI;
+                case '3' -> TickInput.PLACE_CIRCLE;
+                case '4' -> TickInput.PLACE_IMAGE;
+                default -> 0;
+            };
+            if (placement != 0) {
+                synchronized (inputLock) {
+                    this.resetType = placement;
+                }
+            }
+            if (e.getKeyChar() == 'r') {
+                this.shouldReturnToStart = !this.shouldReturnToStart;
+            }
+            if (e.getKeyChar() == 'p') {
+                this.isPipelineToggleRequested = true;
+            }
+            if (e.getKeyChar() == 'c') {
+                synchronized (inputLock) {
+                    this.isCameraResetRequested = true;
+                }
+            }
+            if (e.getKeyChar() == 'k') {
+                this.isSaveRequested = true;
+            }
+            if (e.getKeyChar() == 'v') {
+                this.isRecordToggleRequested = true;
+            }
+            if (e.getKeyChar() == 'g') {
+                this.isGovernorToggleRequested = true;
+            }
+            if (e.getKeyChar() == 'm') {
+                engine.setRenderMode(engine.getRenderMode() == RenderMode.DENSITY
+                        ? RenderMode.OVERWRITE
+                        : RenderMode.DENSITY);
+            }
+        }
+
+        @Override
+        public void keyPressed(KeyEvent e) {
+            synchronized (inputLock) {
+                keysPressed.add(e.getKeyChar());
+            }
+        }
+
+        @Override
+        public void keyReleased(KeyEvent e) {
+            synchronized (inputLock) {
+                keysPressed.remove(e.getKeyChar());
+            }
+        }
+
+        private void placeParticlesAsImage() {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    JFileChooser fileChooser = new JFileChooser();
+                    fileChooser.setDialogTitle("Select Image Input File");
+                    FileNameExtensionFilter filter = new FileNameExtensionFilter(
+                            "Image Files (JPG, PNG, GIF)", "jpg", "jpeg", "png", "gif");
+                    fileChooser.setFileFilter(filter);
+                    int userSelection = fileChooser.showOpenDialog(null);
+
+                    if (userSelection != JFileChooser.APPROVE_OPTION) {
+                        return;
+                    }
+                    File selectedFile = fileChooser.getSelectedFile();
+                    if (selectedFile == null || !selectedFile.exists()) {
+                        return;
+                    }
+
+                    try {
+                        BufferedImage sourceImage = ImageIO.read(selectedFile);
+                        if (sourceImage == null) {
+                            JOptionPane.showMessageDialog(
+                                    null,
+                                    "Error: File is not a valid image format.",
+                                    "Loading Error",
+                                    JOptionPane.ERROR_MESSAGE);
+                            return;
+                        }
+
+                        // placed by the game loop so it never lands in the middle of a tick
+                        pendingImage = sourceImage;
+
+                    } catch (Exception e) {
+                        JOptionPane.showMessageDialog(
+                                null,
+                                "Error reading file: " + e.getMessage(),
+                                "Loading Error",
+                                JOptionPane.ERROR_MESSAGE);
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * The integrate loops a tick can run, picked at startup by
+     * {@link KernelTuner} unless --kernel names one. They all move particles
+     * the same way and differ in how they get there:
+     *
+     * SCALAR runs one particle at a time, the reference the others are checked
+     * against. VECTOR runs whole vectors and finishes each chunk's odd tail
+     * with the scalar loop. MASKED runs the tail as one short masked vector
+     * instead. FAST is MASKED with a bit trick 1 / sqrt in the force loop.
+     *
+     * The vector width is not one of the choices. It is the species picked
+     * when the JVM starts, see --vector-bits, since C2 only compiles the
+     * vector API to machine vectors for a constant species.
+     */
+    enum TickKernel {
+        SCALAR(false, false),
+        VECTOR(false, false),
+        MASKED(true, false),
+        FAST(true, true);
+
+        // no scalar tail, the last short vector is masked
+        final boolean masked;
+        // approximate inverse square root in the force loop
+        final boolean fastMath;
+
+        TickKernel(boolean masked, boolean fastMath) {
+            this.masked = masked;
+            this.fastMath = fastMath;
+        }
+    }
+
+    /**
+     * Picks the fastest {@link TickKernel} for this CPU at startup by timing
+     * each one on a sample engine of its own, with the run's storage, viewport
+     * and point forces and the attractor held so every particle goes through
+     * the force loop. Each round places the sample again so every kernel moves
+     * the same particles, the first few rounds give C2 time to compile them
+     * and the best of the rest counts. Takes a few hundred ms on one thread.
+     */
+    static final class KernelTuner {
+        // not lane aligned, so the tails are timed too
+        static final long SAMPLE_PARTICLES = (1 << 18) + 5;
+        static final int WARMUP_ROUNDS = 10;
+        static final int ROUNDS = 5;
+
+        private KernelTuner() {
+        }
+
+        static TickKernel tune(SimOptions options, PrintStream out) {
+            final TickKernel[] kernels = TickKernel.values();
+            final long[] best = new long[kernels.length];
+            Arrays.fill(best, Long.MAX_VALUE);
+            final float deltaTime = (float) (1.0 / options.targetFps);
+            final float centerX = options.width / 2f;
+            final float centerY = options.height / 2f;
+            try (ParticleEngine engine = new ParticleEngine(SAMPLE_PARTICLES, 1, false, options.compact)) {
+                engine.resize(options.width, options.height);
+                engine.forces.addRing(options.attractors, centerX, centerY,
+                        Math.min(options.width, options.height) / 3f, engine.PULL_FORCE);
+                final ParticleUpdateTask task = new ParticleUpdateTask();
+                for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+                    for (TickKernel kernel : kernels) {
+                        engine.placeParticlesSquare();
+                        engine.setKernel(kernel);
+                        task.updateParams(0, 0, SAMPLE_PARTICLES, engine, deltaTime, 0f, centerX, centerY, true);
+                        final long start = System.nanoTime();
+                        task.integrate();
+                        final long elapsed = System.nanoTime() - start;
+                        if (round >= WARMUP_ROUNDS) {
+                            best[kernel.ordinal()] = Math.min(best[kernel.ordinal()], elapsed);
+                        }
+                    }
+                }
+            }
+
+            TickKernel fastest = kernels[0];
+            final StringBuilder times = new StringBuilder();
+            for (TickKernel kernel : kernels) {
+                if (best[kernel.ordinal()] < best[fastest.ordinal()]) {
+                    fastest = kernel;
+                }
+                times.append(times.isEmpty() ? "" : ", ").append(kernel.name().toLowerCase())
+                        .append(String.format(" %.3f", best[kernel.ordinal()] / 1_000_000.0));
+            }
+            out.printf("Kernels: %s ms per %,d particles, picked %s\n", times, SAMPLE_PARTICLES,
+                    fastest.name().toLowerCase());
+            return fastest;
+        }
+    }
+
+    static class ParticleUpdateTask implements Runnable {
+        private static final VectorSpecies<Float> F_SPECIES = ParticleEngine.F_SPECIES;
+        private static final VectorSpecies<Integer> I_SPECIES = VectorSpecies.of(int.class, F_SPECIES.vectorShape());
+        // half width so a short vector widens into exactly one float vector
+        private static final VectorSpecies<Short> S_SPECIES = VectorSpecies.of(short.class,
+                VectorShape.forBitSize(F_SPECIES.vectorBitSize() / 2));
+
+        private static final int LANE_SIZE = F_SPECIES.length();
+        private static final long TAIL_STRIDE = (long) LANE_SIZE * Float.BYTES;
+
+        private static final ByteOrder ORDER = ByteOrder.nativeOrder();
+
+        private long startIndex;
+        private long endIndex;
+        private ParticleEngine engine;
+        private float deltaTime;
+        private int id;
+        // chunk whose tile counts and cursors the range uses
+        private int chunk;
+        private float vScale;
+        private TickKernel kernel = TickKernel.VECTOR;
+        // lanes are spilled here so the tile histogram and bin writes, which can
+        // collide between lanes, run as plain scalar increments
+        private final int[] tileLanes = new int[LANE_SIZE];
+        private final int[] entryLanes = new int[LANE_SIZE];
+        // velocity change of one particle from ForceField.accelerationAt
+        private final float[] accel = new float[2];
+        // mesh cell of each lane and the forces at its four corners, x then y
+        private final int[] meshLanes = new int[LANE_SIZE];
+        private final float[] cornerLanes = new float[8 * LANE_SIZE];
+        // positions and velocities of one vector, x then y, for the masked kernels' tails
+        private final MemorySegment tail = Arena.ofAuto().allocate(4 * TAIL_STRIDE, 64);
+        // fastest particle the kernels have moved since integrate started, squared
+        float maxSpeedSq;
+        private final TaskEvent event = new TaskEvent();
+
+        public ParticleUpdateTask() {
+        }
+
+        /**
+         * Parameters for running one range in chunk 0, the kernels the
+         * benchmarks call directly. Also packs the engine's forces for the tick.
+         */
+        public void updateParams(int id, long start, long end, ParticleEngine engine, float deltaTime, float vScale,
+                float attractorX, float attractorY, boolean attractorActive) {
+            engine.packForces(deltaTime, attractorX, attractorY, attractorActive);
+            updateParams(id, engine, deltaTime, vScale);
+            this.startIndex = start;
+            this.endIndex = end;
+            this.chunk = 0;
+        }
+
+        /**
+         * Parameters for {@link #run} and {@link #binTiles}, which take their
+         * chunks from the engine and the forces from {@link ParticleEngine#forces}.
+         */
+        public void updateParams(int id, ParticleEngine engine, float deltaTime, float vScale) {
+            this.engine = engine;
+            this.deltaTime = deltaTime;
+            this.id = id;
+            this.vScale = vScale;
+            this.kernel = engine.getKernel();
+        }
+
+        @Override
+        public void run() {
+            final TaskEvent event = this.event;
+            event.begin();
+            final long start = System.nanoTime();
+            long particles = 0;
+            int taken = 0;
+            int next;
+            while ((next = engine.claimChunk(id, taken)) >= 0) {
+                // a resting chunk keeps its particles and last tick's tile counts
+                if (!engine.chunkResting[next]) {
+                    useChunk(next);
+                    integrate();
+                    particles += endIndex - startIndex;
+                }
+                taken++;
+            }
+            engine.stats.recordWorker(id, System.nanoTime() - start);
+            event.end();
+            if (event.shouldCommit()) {
+                event.worker = id;
+                event.chunks = taken;
+                event.particles = particles;
+                event.commit();
+            }
+        }
+
+        private void useChunk(int chunk) {
+            this.chunk = chunk;
+            this.startIndex = engine.chunkStart(chunk);
+            this.endIndex = engine.chunkStart(chunk + 1);
+        }
+
+        /**
+         * Moves the particles of the current range with the engine's kernel.
+         */
+        void integrate() {
+            // the scalar kernel runs everything as tail
+            final long vectorEndIndex = kernel == TickKernel.SCALAR ? startIndex
+                    : startIndex + ((endIndex - startIndex) / LANE_SIZE) * LANE_SIZE;
+            Arrays.fill(engine.tiles.tileCounts[chunk], 0);
+            maxSpeedSq = 0;
+            if (engine.store.compact) {
+                integrateCompact(startIndex, vectorEndIndex);
+                if (kernel.masked) {
+                    integrateCompactMasked(vectorEndIndex, endIndex);
+                } else {
+                    integrateCompactScalar(vectorEndIndex, endIndex);
+                }
+                // before any slow down, which only lowers it
+                engine.chunkSpeedsSq[chunk] = maxSpeedSq;
+                if (this.vScale != 0) {
+                    final MemorySegment velocitiesX = engine.velocitiesX;
+                    final MemorySegment velocitiesY = engine.velocitiesY;
+                    final float vs = vScale;
+                    for (long i = startIndex; i < endIndex; i++) {
+                        velocitiesX.setAtIndex(JAVA_SHORT, i,
+                                ParticleStore.quantizeVelocity(velocitiesX.getAtIndex(JAVA_SHORT, i) * vs));
+                        velocitiesY.setAtIndex(JAVA_SHORT, i,
+                                ParticleStore.quantizeVelocity(velocitiesY.getAtIndex(JAVA_SHORT, i) * vs));
+                    }
+                }
+                return;
+            }
+
+            integrateVector(startIndex, vectorEndIndex);
+            if (kernel.masked) {
+                integrateMasked(vectorEndIndex, endIndex);
+            } else {
+                integrateScalar(vectorEndIndex, endIndex);
+            }
+            engine.chunkSpeedsSq[chunk] = maxSpeedSq;
+
+            if (this.vScale != 0) {
+                final MemorySegment velocitiesX = engine.velocitiesX;
+                final MemorySegment velocitiesY = engine.velocitiesY;
+                final float vs = vScale;
+                for (long i = startIndex; i < endIndex; i++) {
+                    velocitiesX.setAtIndex(JAVA_FLOAT, i, velocitiesX.getAtIndex(JAVA_FLOAT, i) * vs);
+                    velocitiesY.setAtIndex(JAVA_FLOAT, i, velocitiesY.getAtIndex(JAVA_FLOAT, i) * vs);
+                }
+            }
+        }
+
+        /**
+         * Integrates [from, to) a full vector at a time, the range must be a
+         * multiple of the lane count. Each particle's tile is worked out from the
+         * new position while it is still in registers and added to this task's
+         * tile counts, which saves the tile sort a pass over the positions.
+         * The fastest speed after friction goes into {@link #maxSpeedSq} the
+         * same way.
+         */
+        void integrateVector(long from, long to) {
+            integrateVector(engine.positionsX, engine.positionsY, engine.velocitiesX, engine.velocitiesY, from, to);
+        }
+
+        /**
+         * Integrates the last to - from particles, fewer than a vector, as one
+         * whole vector in {@link #tail}. Masked loads bring them in and masked
+         * stores take them back. The spare lanes repeat the last particle, so
+         * they move like it and add nothing to the fastest speed, and the tiles
+         * they counted are taken back off. The masked accesses stay out of the
+         * main loop, where C2 would box every vector to merge them.
+         */
+        void integrateMasked(long from, long to) {
+            if (from >= to) {
+                return;
+            }
+            final int live = (int) (to - from);
+            final long offset = from * Float.BYTES;
+            final VectorMask<Float> lanes = F_SPECIES.indexInRange(from, to);
+            final MemorySegment[] segments = { engine.positionsX, engine.positionsY, engine.velocitiesX,
+                    engine.velocitiesY };
+            for (int s = 0; s < segments.length; s++) {
+                final FloatVector v = FloatVector.fromMemorySegment(F_SPECIES, segments[s], offset, ORDER, lanes);
+                v.blend(v.lane(live - 1), lanes.not()).intoMemorySegment(tail, (long) s * TAIL_STRIDE, ORDER);
+            }
+            integrateVector(tail.asSlice(0, TAIL_STRIDE), tail.asSlice(TAIL_STRIDE, TAIL_STRIDE),
+                    tail.asSlice(2 * TAIL_STRIDE, TAIL_STRIDE), tail.asSlice(3 * TAIL_STRIDE, TAIL_STRIDE), 0,
+                    LANE_SIZE);
+            for (int s = 0; s < segments.length; s++) {
+                FloatVector.fromMemorySegment(F_SPECIES, tail, (long) s * TAIL_STRIDE, ORDER)
+                        .intoMemorySegment(segments[s], offset, ORDER, lanes);
+            }
+            engine.tiles.tileCounts[chunk][tileLanes[LANE_SIZE - 1]] -= LANE_SIZE - live;
+        }
+
+        private void integrateVector(MemorySegment positionsX, MemorySegment positionsY, MemorySegment velocitiesX,
+                MemorySegment velocitiesY, long from, long to) {
+            final TileRenderer tiles = engine.tiles;
+            final int[] counts = tiles.tileCounts[chunk];
+            final int[] tileLanes = this.tileLanes;
+            final float viewX = tiles.viewOriginX;
+            final float viewY = tiles.viewOriginY;
+            final float viewScale = tiles.viewScale;
+            final float screenW = tiles.width;
+            final float screenH = tiles.height;
+            final int tilesX = tiles.tilesX;
+            final int culled = tiles.tileCount;
+
+            // Constants derived from engine state
+            final ForceField forces = engine.forces;
+            final int forceCount = forces.packedCount;
+            final float[] sourceX = forces.sourceX;
+            final float[] sourceY = forces.sourceY;
+            final float[] pullStep = forces.pullStep;
+            final float[] spinStep = forces.spinStep;
+            final float[] falloff0 = forces.falloff0;
+            final float[] falloff1 = forces.falloff1;
+            final float[] falloff2 = forces.falloff2;
+            final float[] minDistSq = forces.minDistSq;
+            final float[] maxDistSq = forces.maxDistSq;
+            final FloatVector DRIFT_X_VEC = FloatVector.broadcast(F_SPECIES, forces.driftX);
+            final FloatVector DRIFT_Y_VEC = FloatVector.broadcast(F_SPECIES, forces.driftY);
+            final boolean accelerated = forceCount > 0 || forces.driftX != 0 || forces.driftY != 0;
+            final FloatVector ONE = FloatVector.broadcast(F_SPECIES, 1f);
+            final boolean fastMath = kernel.fastMath;
+            final MeshGravity gravity = engine.getGravity();
+            final boolean meshGravity = gravity != null;
+            final float[] meshForceX = meshGravity ? gravity.forceX : null;
+            final float[] meshForceY = meshGravity ? gravity.forceY : null;
+            final int mesh = meshGravity ? gravity.mesh : 0;
+            final float toCells = meshGravity ? gravity.toCells : 0;
+            final float meshLast = mesh - 1;
+            final int[] meshLanes = this.meshLanes;
+            final float[] cornerLanes = this.cornerLanes;
+            final float frictionScalar = (float) Math.pow(engine.FRICTION, deltaTime);
+            final FloatVector FRICTION_DT_VEC = FloatVector.broadcast(F_SPECIES, frictionScalar);
+            FloatVector fastest = FloatVector.zero(F_SPECIES);
+
+            for (long i = from; i < to; i += LANE_SIZE) {
+                final long offset = i * Float.BYTES;
+                FloatVector px = FloatVector.fromMemorySegment(F_SPECIES, positionsX, offset, ORDER);
+                FloatVector py = FloatVector.fromMemorySegment(F_SPECIES, positionsY, offset, ORDER);
+                FloatVector vx = FloatVector.fromMemorySegment(F_SPECIES, velocitiesX, offset, ORDER);
+                FloatVector vy = FloatVector.fromMemorySegment(F_SPECIES, velocitiesY, offset, ORDER);
+
+                if (accelerated) {
+                    // every point force is one pass of the same code, see ForceField
+                    FloatVector accelX = DRIFT_X_VEC;
+                    FloatVector accelY = DRIFT_Y_VEC;
+                    for (int f = 0; f < forceCount; f++) {
+                        FloatVector dx = FloatVector.broadcast(F_SPECIES, sourceX[f]).sub(px);
+                        FloatVector dy = FloatVector.broadcast(F_SPECIES, sourceY[f]).sub(py);
+                        FloatVector distSq = dx.mul(dx).add(dy.mul(dy));
+                        var reachMask = distSq.compare(GT, minDistSq[f]).and(distSq.compare(LT, maxDistSq[f]));
+
+                        if (reachMask.anyTrue()) {
+                            FloatVector unitX;
+                            FloatVector unitY;
+                            FloatVector pull = FloatVector.broadcast(F_SPECIES, pullStep[f]);
+                            FloatVector spin = FloatVector.broadcast(F_SPECIES, spinStep[f]);
+                            final boolean falloff = falloff1[f] != 0 || falloff2[f] != 0;
+                            if (fastMath || falloff) {
+                                // one divide instead of three, the falloff needs 1 / r anyway
+                                FloatVector inverseDist = fastMath ? inverseSqrt(distSq) : ONE.div(distSq.sqrt());
+                                unitX = dx.mul(inverseDist);
+                                unitY = dy.mul(inverseDist);
+                                if (falloff) {
+                                    FloatVector scale = inverseDist.mul(falloff2[f]).add(falloff1[f]).mul(inverseDist)
+                                            .add(falloff0[f]);
+                                    pull = pull.mul(scale);
+                                    spin = spin.mul(scale);
+                                }
+                            } else {
+                                FloatVector dist = distSq.sqrt();
+                                unitX = dx.div(dist);
+                                unitY = dy.div(dist);
+                            }
+                            FloatVector forceX = unitX.mul(pull);
+                            FloatVector forceY = unitY.mul(pull);
+                            if (spinStep[f] != 0) {
+                                forceX = forceX.sub(unitY.mul(spin));
+                                forceY = forceY.add(unitX.mul(spin));
+                            }
+                            accelX = accelX.add(forceX, reachMask);
+                            accelY = accelY.add(forceY, reachMask);
+                        }
+                    }
+                    vx = vx.add(accelX);
+                    vy = vy.add(accelY);
+                }
+
+                if (meshGravity) {
+                    // cloud in cell, the same weights MeshGravity deposited with
+                    FloatVector u = px.mul(toCells).sub(0.5f);
+                    FloatVector v = py.mul(toCells).sub(0.5f);
+                    var meshMask = u.compare(GE, 0f).and(u.compare(LT, meshLast))
+                            .and(v.compare(GE, 0f)).and(v.compare(LT, meshLast));
+
+                    if (meshMask.anyTrue()) {
+                        // lanes off the mesh are masked, clamping keeps their gathers in bounds
+                        IntVector cu = ((IntVector) u.convert(F2I, 0)).max(0).min(mesh - 2);
+                        IntVector cv = ((IntVector) v.convert(F2I, 0)).max(0).min(mesh - 2);
+                        FloatVector fu = u.sub((FloatVector) cu.convert(I2F, 0));
+                        FloatVector fv = v.sub((FloatVector) cv.convert(I2F, 0));
+                        FloatVector gu = ONE.sub(fu);
+                        FloatVector gv = ONE.sub(fv);
+                        FloatVector w00 = gu.mul(gv);
+                        FloatVector w10 = fu.mul(gv);
+                        FloatVector w01 = gu.mul(fv);
+                        FloatVector w11 = fu.mul(fv);
+                        // the corners are fetched one lane at a time, 512 bit gathers crash some JDK 21 builds
+                        cv.mul(mesh).add(cu).intoArray(meshLanes, 0);
+                        for (int k = 0; k < LANE_SIZE; k++) {
+                            final int cell = meshLanes[k];
+                            cornerLanes[k] = meshForceX[cell];
+                            cornerLanes[LANE_SIZE + k] = meshForceX[cell + 1];
+                            cornerLanes[2 * LANE_SIZE + k] = meshForceX[cell + mesh];
+                            cornerLanes[3 * LANE_SIZE + k] = meshForceX[cell + mesh + 1];
+                            cornerLanes[4 * LANE_SIZE + k] = meshForceY[cell];
+                            cornerLanes[5 * LANE_SIZE + k] = meshForceY[cell + 1];
+                            cornerLanes[6 * LANE_SIZE + k] = meshForceY[cell + mesh];
+                            cornerLanes[7 * LANE_SIZE + k] = meshForceY[cell + mesh + 1];
+                        }
+                        FloatVector gx = FloatVector.fromArray(F_SPECIES, cornerLanes, 0).mul(w00)
+                                .add(FloatVector.fromArray(F_SPECIES, cornerLanes, LANE_SIZE).mul(w10))
+                                .add(FloatVector.fromArray(F_SPECIES, cornerLanes, 2 * LANE_SIZE).mul(w01))
+                                .add(FloatVector.fromArray(F_SPECIES, cornerLanes, 3 * LANE_SIZE).mul(w11));
+                        FloatVector gy = FloatVector.fromArray(F_SPECIES, cornerLanes, 4 * LANE_SIZE).mul(w00)
+                                .add(FloatVector.fromArray(F_SPECIES, cornerLanes, 5 * LANE_SIZE).mul(w10))
+                                .add(FloatVector.fromArray(F_SPECIES, cornerLanes, 6 * LANE_SIZE).mul(w01))
+                                .add(FloatVector.fromArray(F_SPECIES, cornerLanes, 7 * LANE_SIZE).mul(w11));
+                        vx = vx.add(gx, meshMask);
+                        vy = vy.add(gy, meshMask);
+                    }
+                }
+
+                px = px.add(vx.mul(deltaTime));
+                py = py.add(vy.mul(deltaTime));
+                vx = vx.mul(FRICTION_DT_VEC);
+                vy = vy.mul(FRICTION_DT_VEC);
+                fastest = fastest.max(vx.mul(vx).add(vy.mul(vy)));
+
+                px.intoMemorySegment(positionsX, offset, ORDER);
+                py.intoMemorySegment(positionsY, offset, ORDER);
+                vx.intoMemorySegment(velocitiesX, offset, ORDER);
+                vy.intoMemorySegment(velocitiesY, offset, ORDER);
+
+                // off screen lanes count into the culled slot, which saves a branch per lane
+                FloatVector sx = px.sub(viewX).mul(viewScale);
+                FloatVector sy = py.sub(viewY).mul(viewScale);
+                IntVector.broadcast(I_SPECIES, culled)
+                        .blend(tileOf((IntVector) sx.convert(F2I, 0), (IntVector) sy.convert(F2I, 0), tilesX),
+                                onScreen(sx, sy, screenW, screenH).cast(I_SPECIES))
+                        .intoArray(tileLanes, 0);
+                for (int k = 0; k < LANE_SIZE; k++) {
+                    counts[tileLanes[k]]++;
+                }
+            }
+            maxSpeedSq = Math.max(maxSpeedSq, fastest.reduceLanes(MAX));
+        }
+
+        private static IntVector tileOf(IntVector ix, IntVector iy, int tilesX) {
+            return iy.lanewise(ASHR, TileRenderer.TILE_SHIFT).mul(tilesX)
+                    .add(ix.lanewise(ASHR, TileRenderer.TILE_SHIFT));
+        }
+
+        /**
+         * Lanes whose screen position is inside the w x h screen, with the same
+         * comparisons as {@link TileRenderer#tileOf}. NaN positions are off
+         * screen.
+         */
+        private static VectorMask<Float> onScreen(FloatVector sx, FloatVector sy, float w, float h) {
+            return sx.compare(GE, 0f).and(sx.compare(LT, w)).and(sy.compare(GE, 0f)).and(sy.compare(LT, h));
+        }
+
+        /**
+         * 1 / sqrt(x) from the exponent halving bit trick and two Newton steps,
+         * good to a few parts per million, without the square root and divide
+         * of the exact kernels. Used by {@link TickKernel#FAST}.
+         */
+        private static FloatVector inverseSqrt(FloatVector x) {
+            final FloatVector halfX = x.mul(-0.5f);
+            FloatVector y = IntVector.broadcast(I_SPECIES, 0x5f3759df)
+                    .sub(x.reinterpretAsInts().lanewise(LSHR, 1)).reinterpretAsFloats();
+            y = y.mul(halfX.mul(y).mul(y).add(1.5f));
+            return y.mul(halfX.mul(y).mul(y).add(1.5f));
+        }
+
+        /**
+         * Integrates [from, to) one particle at a time, used for the tail that
+         * does not fill a whole vector. Counts tiles like {@link #integrateVector}.
+         */
+        void integrateScalar(long from, long to) {
+            final MemorySegment positionsX = engine.positionsX;
+            final MemorySegment positionsY = engine.positionsY;
+            final MemorySegment velocitiesX = engine.velocitiesX;
+            final MemorySegment velocitiesY = engine.velocitiesY;
+            final TileRenderer tiles = engine.tiles;
+            final int[] counts = tiles.tileCounts[chunk];
+
+            final ForceField forces = engine.forces;
+            final float[] accel = this.accel;
+            final MeshGravity gravity = engine.getGravity();
+            final float frictionScalar = (float) Math.pow(engine.FRICTION, deltaTime);
+
+            for (long i = from; i < to; i++) {
+                float px = positionsX.getAtIndex(JAVA_FLOAT, i);
+                float py = positionsY.getAtIndex(JAVA_FLOAT, i);
+                float vx = velocitiesX.getAtIndex(JAVA_FLOAT, i);
+                float vy = velocitiesY.getAtIndex(JAVA_FLOAT, i);
+
+                forces.accelerationAt(px, py, accel);
+                if (gravity != null) {
+                    gravity.addAccelerationAt(px, py, accel);
+                }
+                vx += accel[0];
+                vy += accel[1];
+
+                px += vx * deltaTime;
+                py += vy * deltaTime;
+                vx *= frictionScalar;
+                vy *= frictionScalar;
+                maxSpeedSq = Math.max(maxSpeedSq, vx * vx + vy * vy);
+
+                positionsX.setAtIndex(JAVA_FLOAT, i, px);
+                positionsY.setAtIndex(JAVA_FLOAT, i, py);
+                velocitiesX.setAtIndex(JAVA_FLOAT, i, vx);
+                velocitiesY.setAtIndex(JAVA_FLOAT, i, vy);
+                counts[tiles.tileOf(px, py)]++;
+            }
+        }
+
+        /**
+         * Compact version of {@link #integrateVector}, widens the fixed point
+         * shorts to pixel floats, runs the same physics and rounds back with
+         * saturation so particles pinned at the edge of the range stay there
+         * rather than wrapping around. Tiles are counted from the rounded
+         * position, which is what the binning pass will read back.
+         */
+        void integrateCompact(long from, long to) {
+            integrateCompact(engine.positionsX, engine.positionsY, engine.velocitiesX, engine.velocitiesY, from, to);
+        }
+
+        /**
+         * Compact version of {@link #integrateMasked}.
+         */
+        void integrateCompactMasked(long from, long to) {
+            if (from >= to) {
+                return;
+            }
+            final int live = (int) (to - from);
+            final long offset = from * Short.BYTES;
+            final VectorMask<Short> lanes = S_SPECIES.indexInRange(from, to);
+            final MemorySegment[] segments = { engine.positionsX, engine.positionsY, engine.velocitiesX,
+                    engine.velocitiesY };
+            for (int s = 0; s < segments.length; s++) {
+                final ShortVector v = ShortVector.fromMemorySegment(S_SPECIES, segments[s], offset, ORDER, lanes);
+                v.blend(v.lane(live - 1), lanes.not()).intoMemorySegment(tail, (long) s * TAIL_STRIDE, ORDER);
+            }
+            integrateCompact(tail.asSlice(0, TAIL_STRIDE), tail.asSlice(TAIL_STRIDE, TAIL_STRIDE),
+                    tail.asSlice(2 * TAIL_STRIDE, TAIL_STRIDE), tail.asSlice(3 * TAIL_STRIDE, TAIL_STRIDE), 0,
+                    LANE_SIZE);
+            for (int s = 0; s < segments.length; s++) {
+                ShortVector.fromMemorySegment(S_SPECIES, tail, (long) s * TAIL_STRIDE, ORDER)
+                        .intoMemorySegment(segments[s], offset, ORDER, lanes);
+            }
+            engine.tiles.tileCounts[chunk][tileLanes[LANE_SIZE - 1]] -= LANE_SIZE - live;
+        }
+
+        private void integrateCompact(MemorySegment positionsX, MemorySegment positionsY, MemorySegment velocitiesX,
+                MemorySegment velocitiesY, long from, long to) {
+            final ParticleStore store = engine.store;
+            final TileRenderer tiles = engine.tiles;
+            final int[] counts = tiles.tileCounts[chunk];
+            final int[] tileLanes = this.tileLanes;
+            final float viewX = tiles.viewOriginX;
+            final float viewY = tiles.viewOriginY;
+            final float viewScale = tiles.viewScale;
+            final float screenW = tiles.width;
+            final float screenH = tiles.height;
+            final int tilesX = tiles.tilesX;
+            final int culled = tiles.tileCount;
+
+            final float scaleX = store.scaleX;
+            final float scaleY = store.scaleY;
+            final float toPixelsX = 1f / scaleX;
+            final float toPixelsY = 1f / scaleY;
+            final float toPixelsPerSecond = 1f / ParticleStore.VELOCITY_UNITS;
+            final float toVelocityUnits = ParticleStore.VELOCITY_UNITS;
+
+            final ForceField forces = engine.forces;
+            final int forceCount = forces.packedCount;
+            final float[] sourceX = forces.sourceX;
+            final float[] sourceY = forces.sourceY;
+            final float[] pullStep = forces.pullStep;
+            final float[] spinStep = forces.spinStep;
+            final float[] falloff0 = forces.falloff0;
+            final float[] falloff1 = forces.falloff1;
+            final float[] falloff2 = forces.falloff2;
+            final float[] minDistSq = forces.minDistSq;
+            final float[] maxDistSq = forces.maxDistSq;
+            final FloatVector DRIFT_X_VEC = FloatVector.broadcast(F_SPECIES, forces.driftX);
+            final FloatVector DRIFT_Y_VEC = FloatVector.broadcast(F_SPECIES, forces.driftY);
+            final boolean accelerated = forceCount > 0 || forces.driftX != 0 || forces.driftY != 0;
+            final FloatVector ONE = FloatVector.broadcast(F_SPECIES, 1f);
+            final boolean fastMath = kernel.fastMath;
+            final float frictionScalar = (float) Math.pow(engine.FRICTION, deltaTime);
+            final FloatVector FRICTION_DT_VEC = FloatVector.broadcast(F_SPECIES, frictionScalar);
+            final FloatVector HALF = FloatVector.broadcast(F_SPECIES, 0.5f);
+            final FloatVector NEG_HALF = FloatVector.broadcast(F_SPECIES, -0.5f);
+            FloatVector fastest = FloatVector.zero(F_SPECIES);
+
+            for (long i = from; i < to; i += LANE_SIZE) {
+                final long offset = i * Short.BYTES;
+                FloatVector px = ((FloatVector) ShortVector.fromMemorySegment(S_SPECIES, positionsX, offset, ORDER)
+                        .convertShape(S2F, F_SPECIES, 0)).mul(toPixelsX);
+                FloatVector py = ((FloatVector) ShortVector.fromMemorySegment(S_SPECIES, positionsY, offset, ORDER)
+                        .convertShape(S2F, F_SPECIES, 0)).mul(toPixelsY);
+                FloatVector vx = ((FloatVector) ShortVector.fromMemorySegment(S_SPECIES, velocitiesX, offset, ORDER)
+                        .convertShape(S2F, F_SPECIES, 0)).mul(toPixelsPerSecond);
+                FloatVector vy = ((FloatVector) ShortVector.fromMemorySegment(S_SPECIES, velocitiesY, offset, ORDER)
+                        .convertShape(S2F, F_SPECIES, 0)).mul(toPixelsPerSecond);
+
+                if (accelerated) {
+                    // every point force is one pass of the same code, see ForceField
+                    FloatVector accelX = DRIFT_X_VEC;
+                    FloatVector accelY = DRIFT_Y_VEC;
+                    for (int f = 0; f < forceCount; f++) {
+                        FloatVector dx = FloatVector.broadcast(F_SPECIES, sourceX[f]).sub(px);
+                        FloatVector dy = FloatVector.broadcast(F_SPECIES, sourceY[f]).sub(py);
+                        FloatVector distSq = dx.mul(dx).add(dy.mul(dy));
+                        var reachMask = distSq.compare(GT, minDistSq[f]).and(distSq.compare(LT, maxDistSq[f]));
+
+                        if (reachMask.anyTrue()) {
+                            FloatVector unitX;
+                            FloatVector unitY;
+                            FloatVector pull = FloatVector.broadcast(F_SPECIES, pullStep[f]);
+                            FloatVector spin = FloatVector.broadcast(F_SPECIES, spinStep[f]);
+                            final boolean falloff = falloff1[f] != 0 || falloff2[f] != 0;
+                            if (fastMath || falloff) {
+                                // one divide instead of three, the falloff needs 1 / r anyway
+                                FloatVector inverseDist = fastMath ? inverseSqrt(distSq) : ONE.div(distSq.sqrt());
+                                unitX = dx.mul(inverseDist);
+                                unitY = dy.mul(inverseDist);
+                                if (falloff) {
+                                    FloatVector scale = inverseDist.mul(falloff2[f]).add(falloff1[f]).mul(inverseDist)
+                                            .add(falloff0[f]);
+                                    pull = pull.mul(scale);
+                                    spin = spin.mul(scale);
+                                }
+                            } else {
+                                FloatVector dist = distSq.sqrt();
+                                unitX = dx.div(dist);
+                                unitY = dy.div(dist);
+                            }
+                            FloatVector forceX = unitX.mul(pull);
+                            FloatVector forceY = unitY.mul(pull);
+                            if (spinStep[f] != 0) {
+                                forceX = forceX.sub(unitY.mul(spin));
+                                forceY = forceY.add(unitX.mul(spin));
+                            }
+                            accelX = accelX.add(forceX, reachMask);
+                            accelY = accelY.add(forceY, reachMask);
+                        }
+                    }
+                    vx = vx.add(accelX);
+                    vy = vy.add(accelY);
+                }
+
+                px = px.add(vx.mul(deltaTime));
+                py = py.add(vy.mul(deltaTime));
+                vx = vx.mul(FRICTION_DT_VEC);
+                vy = vy.mul(FRICTION_DT_VEC);
+                fastest = fastest.max(vx.mul(vx).add(vy.mul(vy)));
+
+                // positions round half away from zero and saturate like ParticleStore.quantize,
+                // velocities truncate like quantizeVelocity, the clamp is done on ints since
+                // float min/max is several times slower
+                px = px.mul(scaleX);
+                py = py.mul(scaleY);
+                vx = vx.mul(toVelocityUnits);
+                vy = vy.mul(toVelocityUnits);
+                px = px.add(HALF.blend(NEG_HALF, px.compare(LT, 0f)));
+                py = py.add(HALF.blend(NEG_HALF, py.compare(LT, 0f)));
+
+                IntVector ux = ((IntVector) px.convert(F2I, 0)).max(Short.MIN_VALUE).min(Short.MAX_VALUE);
+                IntVector uy = ((IntVector) py.convert(F2I, 0)).max(Short.MIN_VALUE).min(Short.MAX_VALUE);
+                ux.convertShape(I2S, S_SPECIES, 0).reinterpretAsShorts().intoMemorySegment(positionsX, offset, ORDER);
+                uy.convertShape(I2S, S_SPECIES, 0).reinterpretAsShorts().intoMemorySegment(positionsY, offset, ORDER);
+                ((IntVector) vx.convert(F2I, 0)).max(Short.MIN_VALUE).min(Short.MAX_VALUE)
+                        .convertShape(I2S, S_SPECIES, 0).reinterpretAsShorts()
+                        .intoMemorySegment(velocitiesX, offset, ORDER);
+                ((IntVector) vy.convert(F2I, 0)).max(Short.MIN_VALUE).min(Short.MAX_VALUE)
+                        .convertShape(I2S, S_SPECIES, 0).reinterpretAsShorts()
+                        .intoMemorySegment(velocitiesY, offset, ORDER);
+
+                FloatVector sx = ((FloatVector) ux.convert(I2F, 0)).mul(toPixelsX).sub(viewX).mul(viewScale);
+                FloatVector sy = ((FloatVector) uy.convert(I2F, 0)).mul(toPixelsY).sub(viewY).mul(viewScale);
+                IntVector.broadcast(I_SPECIES, culled)
+                        .blend(tileOf((IntVector) sx.convert(F2I, 0), (IntVector) sy.convert(F2I, 0), tilesX),
+                                onScreen(sx, sy, screenW, screenH).cast(I_SPECIES))
+                        .intoArray(tileLanes, 0);
+                for (int k = 0; k < LANE_SIZE; k++) {
+                    counts[tileLanes[k]]++;
+                }
+            }
+            maxSpeedSq = Math.max(maxSpeedSq, fastest.reduceLanes(MAX));
+        }
+
+        /**
+         * Compact version of {@link #integrateScalar}.
+         */
+        void integrateCompactScalar(long from, long to) {
+            final MemorySegment positionsX = engine.positionsX;
+            final MemorySegment positionsY = engine.positionsY;
+            final MemorySegment velocitiesX = engine.velocitiesX;
+            final MemorySegment velocitiesY = engine.velocitiesY;
+            final ParticleStore store = engine.store;
+            final TileRenderer tiles = engine.tiles;
+            final int[] counts = tiles.tileCounts[chunk];
+            final float toPixelsX = 1f / store.scaleX;
+            final float toPixelsY = 1f / store.scaleY;
+
+            final float scaleX = store.scaleX;
+            final float scaleY = store.scaleY;
+            final float units = ParticleStore.VELOCITY_UNITS;
+            final ForceField forces = engine.forces;
+            final float[] accel = this.accel;
+            final float frictionScalar = (float) Math.pow(engine.FRICTION, deltaTime);
+
+            for (long i = from; i < to; i++) {
+                float px = positionsX.getAtIndex(JAVA_SHORT, i) / scaleX;
+                float py = positionsY.getAtIndex(JAVA_SHORT, i) / scaleY;
+                float vx = velocitiesX.getAtIndex(JAVA_SHORT, i) / units;
+                float vy = velocitiesY.getAtIndex(JAVA_SHORT, i) / units;
+
+                forces.accelerationAt(px, py, accel);
+                vx += accel[0];
+                vy += accel[1];
+
+                px += vx * deltaTime;
+                py += vy * deltaTime;
+                vx *= frictionScalar;
+                vy *= frictionScalar;
+                maxSpeedSq = Math.max(maxSpeedSq, vx * vx + vy * vy);
+
+                short ux = ParticleStore.quantize(px * scaleX);
+                short uy = ParticleStore.quantize(py * scaleY);
+                positionsX.setAtIndex(JAVA_SHORT, i, ux);
+                positionsY.setAtIndex(JAVA_SHORT, i, uy);
+                velocitiesX.setAtIndex(JAVA_SHORT, i, ParticleStore.quantizeVelocity(vx * units));
+                velocitiesY.setAtIndex(JAVA_SHORT, i, ParticleStore.quantizeVelocity(vy * units));
+                counts[tiles.tileOf(ux * toPixelsX, uy * toPixelsY)]++;
+            }
+        }
+
+        /**
+         * Last pass of the tile counting sort, claims chunks like the tick and
+         * writes each particle's packed tile pixel and color into the slot
+         * reserved for its chunk in its tile's bin.
+         * Tiles and entries are computed a vector at a time, only the cursor
+         * bumps and stores are scalar since lanes often share a tile.
+         */
+        void binTiles() {
+            int taken = 0;
+            int next;
+            while ((next = engine.claimChunk(id, taken)) >= 0) {
+                useChunk(next);
+                if (engine.store.compact) {
+                    binTilesCompact();
+                } else {
+                    binTilesFloat();
+                }
+                taken++;
+            }
+        }
+
+        private void binTilesFloat() {
+            final MemorySegment positionsX = engine.positionsX;
+            final MemorySegment positionsY = engine.positionsY;
+            final MemorySegment colors = engine.colors;
+            final TileRenderer tiles = engine.tiles;
+            final MemorySegment binned = tiles.binned;
+            final long[] cursors = tiles.tileCursors[chunk];
+            final int[] tileLanes = this.tileLanes;
+            final int[] entryLanes = this.entryLanes;
+            final float viewX = tiles.viewOriginX;
+            final float viewY = tiles.viewOriginY;
+            final float viewScale = tiles.viewScale;
+            final float screenW = tiles.width;
+            final float screenH = tiles.height;
+            final int tilesX = tiles.tilesX;
+            final int culled = tiles.tileCount;
+
+            final long vectorEnd = startIndex + ((endIndex - startIndex) / LANE_SIZE) * LANE_SIZE;
+            for (long i = startIndex; i < vectorEnd; i += LANE_SIZE) {
+                FloatVector sx = FloatVector.fromMemorySegment(F_SPECIES, positionsX, i * Float.BYTES, ORDER)
+                        .sub(viewX).mul(viewScale);
+                FloatVector sy = FloatVector.fromMemorySegment(F_SPECIES, positionsY, i * Float.BYTES, ORDER)
+                        .sub(viewY).mul(viewScale);
+                VectorMask<Float> visible = onScreen(sx, sy, screenW, screenH);
+                if (!visible.anyTrue()) {
+                    continue;
+                }
+                IntVector ix = (IntVector) sx.convert(F2I, 0);
+                IntVector iy = (IntVector) sy.convert(F2I, 0);
+                tileOf(ix, iy, tilesX).intoArray(tileLanes, 0);
+                localOf(ix, iy).or(IntVector.fromMemorySegment(I_SPECIES, colors, i * Integer.BYTES, ORDER)
+                        .and(TileRenderer.RGB_MASK)).intoArray(entryLanes, 0);
+                if (visible.allTrue()) {
+                    for (int k = 0; k < LANE_SIZE; k++) {
+                        binned.setAtIndex(JAVA_INT, cursors[tileLanes[k]]++, entryLanes[k]);
+                    }
+                } else {
+                    binLanes(visible, binned, cursors);
+                }
+            }
+            for (long i = vectorEnd; i < endIndex; i++) {
+                final float x = positionsX.getAtIndex(JAVA_FLOAT, i);
+                final float y = positionsY.getAtIndex(JAVA_FLOAT, i);
+                final int tile = tiles.tileOf(x, y);
+                if (tile != culled) {
+                    final int px = (int) ((x - viewX) * viewScale);
+                    final int py = (int) ((y - viewY) * viewScale);
+                    binned.setAtIndex(JAVA_INT, cursors[tile]++, TileRenderer.pack(px & TileRenderer.TILE_MASK,
+                            py & TileRenderer.TILE_MASK, colors.getAtIndex(JAVA_INT, i)));
+                }
+            }
+        }
+
+        /**
+         * Bins the spilled lanes of a vector that is partly off screen.
+         */
+        private void binLanes(VectorMask<Float> visible, MemorySegment binned, long[] cursors) {
+            final int[] tileLanes = this.tileLanes;
+            final int[] entryLanes = this.entryLanes;
+            for (int k = 0; k < LANE_SIZE; k++) {
+                if (visible.laneIsSet(k)) {
+                    binned.setAtIndex(JAVA_INT, cursors[tileLanes[k]]++, entryLanes[k]);
+                }
+            }
+        }
+
+        /**
+         * The tile relative pixel in the top byte, as laid out by
+         * {@link TileRenderer#pack}.
+         */
+        private static IntVector localOf(IntVector ix, IntVector iy) {
+            return iy.and(TileRenderer.TILE_MASK).lanewise(LSHL, TileRenderer.TILE_SHIFT)
+                    .or(ix.and(TileRenderer.TILE_MASK)).lanewise(LSHL, 24);
+        }
+
+        private void binTilesCompact() {
+            final MemorySegment positionsX = engine.positionsX;
+            final MemorySegment positionsY = engine.positionsY;
+            final MemorySegment colors = engine.colors;
+            final TileRenderer tiles = engine.tiles;
+            final MemorySegment binned = tiles.binned;
+            final long[] cursors = tiles.tileCursors[chunk];
+            final int[] palette = engine.store.palette;
+            final int[] tileLanes = this.tileLanes;
+            final int[] entryLanes = this.entryLanes;
+            final float toPixelsX = 1f / engine.store.scaleX;
+            final float toPixelsY = 1f / engine.store.scaleY;
+            final float viewX = tiles.viewOriginX;
+            final float viewY = tiles.viewOriginY;
+            final float viewScale = tiles.viewScale;
+            final float screenW = tiles.width;
+            final float screenH = tiles.height;
+            final int tilesX = tiles.tilesX;
+            final int culled = tiles.tileCount;
+
+            final long vectorEnd = startIndex + ((endIndex - startIndex) / LANE_SIZE) * LANE_SIZE;
+            for (long i = startIndex; i < vectorEnd; i += LANE_SIZE) {
+                FloatVector sx = ((FloatVector) ShortVector
+                        .fromMemorySegment(S_SPECIES, positionsX, i * Short.BYTES, ORDER)
+                        .convertShape(S2F, F_SPECIES, 0)).mul(toPixelsX).sub(viewX).mul(viewScale);
+                FloatVector sy = ((FloatVector) ShortVector
+                        .fromMemorySegment(S_SPECIES, positionsY, i * Short.BYTES, ORDER)
+                        .convertShape(S2F, F_SPECIES, 0)).mul(toPixelsY).sub(viewY).mul(viewScale);
+                VectorMask<Float> visible = onScreen(sx, sy, screenW, screenH);
+                if (!visible.anyTrue()) {
+                    continue;
+                }
+                IntVector ix = (IntVector) sx.convert(F2I, 0);
+                IntVector iy = (IntVector) sy.convert(F2I, 0);
+                tileOf(ix, iy, tilesX).intoArray(tileLanes, 0);
+                localOf(ix, iy).intoArray(entryLanes, 0);
+                for (int k = 0; k < LANE_SIZE; k++) {
+                    int color = palette[colors.getAtIndex(JAVA_BYTE, i + k) & 0xFF] & TileRenderer.RGB_MASK;
+                    entryLanes[k] |= color;
+                }
+                if (visible.allTrue()) {
+                    for (int k = 0; k < LANE_SIZE; k++) {
+                        binned.setAtIndex(JAVA_INT, cursors[tileLanes[k]]++, entryLanes[k]);
+                    }
+                } else {
+                    binLanes(visible, binned, cursors);
+                }
+            }
+            for (long i = vectorEnd; i < endIndex; i++) {
+                final float x = positionsX.getAtIndex(JAVA_SHORT, i) * toPixelsX;
+                final float y = positionsY.getAtIndex(JAVA_SHORT, i) * toPixelsY;
+                final int tile = tiles.tileOf(x, y);
+                if (tile != culled) {
+                    final int px = (int) ((x - viewX) * viewScale);
+                    final int py = (int) ((y - viewY) * viewScale);
+                    binned.setAtIndex(JAVA_INT, cursors[tile]++, TileRenderer.pack(px & TileRenderer.TILE_MASK,
+                            py & TileRenderer.TILE_MASK, palette[colors.getAtIndex(JAVA_BYTE, i) & 0xFF]));
+                }
+            }
+        }
+    }
+}